@@ -0,0 +1,98 @@
+package nl.dantevg.dynmapexport.benchmark;
+
+import nl.dantevg.dynmapexport.ExportConfig;
+import nl.dantevg.dynmapexport.PngWriter;
+import nl.dantevg.dynmapexport.TileCombiner;
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Combines exports of synthetic tiles of several sizes with the
+ * <code>full</code> and <code>streaming</code> combine modes of
+ * {@link TileCombiner}: every tile is decoded from its PNG file and drawn at
+ * its place in the combined image, which is then encoded with
+ * {@link PngWriter}.
+ * <p>
+ * The tiles are read from memory instead of the export history of a running
+ * plugin, and the combined image is written to a stream that only counts the
+ * bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CombineBenchmark {
+	/**
+	 * The number of distinct tile images, which are repeated over the export
+	 */
+	private static final int N_DISTINCT_TILES = 64;
+	private static final int COMPRESSION_LEVEL = 4;
+	
+	/**
+	 * The width and height of the export, in tiles
+	 */
+	@Param({"4", "16", "32"})
+	public int tiles;
+	
+	private ExportConfig config;
+	private byte[][] tileFiles;
+	
+	@Setup
+	public void setup() throws IOException {
+		config = Tiles.createConfig(tiles, tiles, 0);
+		tileFiles = new byte[N_DISTINCT_TILES][];
+		for (int i = 0; i < N_DISTINCT_TILES; i++) tileFiles[i] = Tiles.encodePNG(Tiles.createTile(i));
+	}
+	
+	/**
+	 * Draw all tiles into a single image.
+	 */
+	@Benchmark
+	public BufferedImage combine() throws IOException {
+		return TileCombiner.combine(config, this::readTile);
+	}
+	
+	/**
+	 * Like <code>full</code> combine mode: draw all tiles into a single image
+	 * and encode it.
+	 */
+	@Benchmark
+	public long combineFull() throws IOException {
+		BufferedImage image = combine();
+		CountingOutputStream out = new CountingOutputStream();
+		try (PngWriter writer = new PngWriter(out, image.getWidth(), image.getHeight(), COMPRESSION_LEVEL, null)) {
+			TileCombiner.writeImage(image, writer);
+			writer.finish();
+		}
+		return out.count;
+	}
+	
+	/**
+	 * Like <code>streaming</code> combine mode: draw and encode one row of
+	 * tiles at a time.
+	 */
+	@Benchmark
+	public long combineStreaming() throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		try (PngWriter writer = new PngWriter(out, TileCombiner.getWidth(config), TileCombiner.getHeight(config),
+				COMPRESSION_LEVEL, null)) {
+			TileCombiner.writeRows(config, this::readTile, writer);
+			writer.finish();
+		}
+		return out.count;
+	}
+	
+	private @NotNull BufferedImage readTile(@NotNull TileCoords tile) throws IOException {
+		byte[] file = tileFiles[Math.floorMod(tile.x * 31 + tile.y, N_DISTINCT_TILES)];
+		return TileCombiner.readImage(ByteBuffer.wrap(file));
+	}
+	
+}
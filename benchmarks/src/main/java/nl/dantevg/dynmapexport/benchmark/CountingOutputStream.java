@@ -0,0 +1,24 @@
+package nl.dantevg.dynmapexport.benchmark;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.OutputStream;
+
+/**
+ * An output stream that only counts the bytes written to it, so that
+ * encoding benchmarks do not measure disk speed.
+ */
+public class CountingOutputStream extends OutputStream {
+	public long count = 0;
+	
+	@Override
+	public void write(int b) {
+		count++;
+	}
+	
+	@Override
+	public void write(byte @NotNull [] b, int off, int len) {
+		count += len;
+	}
+	
+}
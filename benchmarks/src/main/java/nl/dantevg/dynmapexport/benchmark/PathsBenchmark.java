@@ -0,0 +1,55 @@
+package nl.dantevg.dynmapexport.benchmark;
+
+import nl.dantevg.dynmapexport.ExportConfig;
+import nl.dantevg.dynmapexport.Paths;
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the Dynmap path and local file of a tile, which is done for every
+ * tile of every export. The local file is built in a fixed data folder
+ * instead of the data folder of a running plugin.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PathsBenchmark {
+	private static final File DATA_FOLDER = new File("plugins/DynmapExport");
+	
+	@Param({"0", "3"})
+	public int zoom;
+	
+	private ExportConfig config;
+	private TileCoords tile;
+	private Instant instant;
+	
+	@Setup
+	public void setup() {
+		config = Tiles.createConfig(1, 1, zoom);
+		tile = new TileCoords(-40 << zoom, 24 << zoom);
+		instant = Instant.parse("2022-08-04T21:32:15Z");
+	}
+	
+	@Benchmark
+	public String getDynmapTilePath() {
+		return Paths.getDynmapTilePath(config, tile);
+	}
+	
+	@Benchmark
+	public String getLocalTileName() {
+		return Paths.getLocalTileName(tile, zoom);
+	}
+	
+	@Benchmark
+	public File getLocalTileFile() {
+		return Paths.getLocalTileFile(DATA_FOLDER, config, instant, tile, zoom);
+	}
+	
+}
@@ -0,0 +1,85 @@
+package nl.dantevg.dynmapexport.benchmark;
+
+import nl.dantevg.dynmapexport.PngWriter;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares encoding a combined image with <code>ImageIO.write</code> (what
+ * TileCombiner used before) with {@link PngWriter}, on one thread and in
+ * parallel. The images are made of synthetic tiles, and are written to a
+ * stream that only counts the bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PngEncodeBenchmark {
+	/**
+	 * The width and height of the combined image, in tiles
+	 */
+	@Param({"8", "32"})
+	public int tiles;
+	
+	/**
+	 * The number of threads for the parallel encoder
+	 */
+	@Param({"4"})
+	public int threads;
+	
+	@Param({"4"})
+	public int compressionLevel;
+	
+	private BufferedImage image;
+	private int[] pixels;
+	private ExecutorService executor;
+	
+	@Setup
+	public void setup() {
+		image = Tiles.createCombined(tiles, tiles);
+		pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		executor = Executors.newFixedThreadPool(threads);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		executor.shutdown();
+	}
+	
+	@Benchmark
+	public long imageIO() throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		ImageIO.write(image, "png", out);
+		return out.count;
+	}
+	
+	@Benchmark
+	public long pngWriter() throws IOException {
+		return encode(null);
+	}
+	
+	@Benchmark
+	public long pngWriterParallel() throws IOException {
+		return encode(executor);
+	}
+	
+	private long encode(ExecutorService executor) throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		int width = image.getWidth();
+		try (PngWriter writer = new PngWriter(out, width, image.getHeight(), compressionLevel, executor)) {
+			for (int y = 0; y < image.getHeight(); y++) writer.writeRow(pixels, y * width);
+			writer.finish();
+		}
+		return out.count;
+	}
+	
+}
@@ -0,0 +1,91 @@
+package nl.dantevg.dynmapexport.benchmark;
+
+import nl.dantevg.dynmapexport.RasterDiff;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per-pixel <code>getRGB</code> diff that ImageTresholdCache used
+ * before with {@link RasterDiff}, on synthetic 128x128 tiles.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RasterDiffBenchmark {
+	private static final int SIZE = 128;
+	private static final double TRESHOLD = 0.2;
+	
+	/**
+	 * The fraction of pixels that differ between the two tiles
+	 */
+	@Param({"0", "0.05", "0.5"})
+	public double changed;
+	
+	/**
+	 * How the tiles are stored: decoded from PNG like tiles from Dynmap, or
+	 * as <code>TYPE_INT_ARGB</code>
+	 */
+	@Param({"png", "int"})
+	public String format;
+	
+	private BufferedImage from;
+	private BufferedImage to;
+	private int minPixelsChanged;
+	
+	@Setup
+	public void setup() throws IOException {
+		BufferedImage original = Tiles.createTile(1);
+		BufferedImage modified = Tiles.changePixels(original, (int) (changed * SIZE * SIZE), 2);
+		if (format.equals("png")) {
+			from = roundTripPNG(original);
+			to = roundTripPNG(modified);
+		} else {
+			from = original;
+			to = modified;
+		}
+		minPixelsChanged = (int) Math.ceil(TRESHOLD * SIZE * SIZE);
+	}
+	
+	@Benchmark
+	public int getRGBColumnMajor() {
+		return getNPixelsChangedRGB(from, to);
+	}
+	
+	@Benchmark
+	public int rasterDiff() {
+		return RasterDiff.countChangedPixels(from, to);
+	}
+	
+	@Benchmark
+	public int rasterDiffWithTreshold() {
+		return RasterDiff.countChangedPixels(from, to, minPixelsChanged);
+	}
+	
+	/**
+	 * The implementation of <code>ImageTresholdCache.getNPixelsChanged</code>
+	 * before it used {@link RasterDiff}.
+	 */
+	private static int getNPixelsChangedRGB(@NotNull BufferedImage from, @NotNull BufferedImage to) {
+		int changed = 0;
+		for (int x = 0; x < from.getWidth(); x++) {
+			for (int y = 0; y < from.getHeight(); y++) {
+				if (from.getRGB(x, y) != to.getRGB(x, y)) changed++;
+			}
+		}
+		return changed;
+	}
+	
+	private static @NotNull BufferedImage roundTripPNG(@NotNull BufferedImage image) throws IOException {
+		return ImageIO.read(new ByteArrayInputStream(Tiles.encodePNG(image)));
+	}
+	
+}
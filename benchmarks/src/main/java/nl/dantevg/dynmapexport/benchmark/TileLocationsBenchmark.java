@@ -0,0 +1,43 @@
+package nl.dantevg.dynmapexport.benchmark;
+
+import nl.dantevg.dynmapexport.Downloader;
+import nl.dantevg.dynmapexport.ExportConfig;
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lists the tiles of exports of several sizes with
+ * {@link Downloader#configToTileLocations(ExportConfig)}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TileLocationsBenchmark {
+	/**
+	 * The width and height of the export, in tiles
+	 */
+	@Param({"8", "32", "128"})
+	public int tiles;
+	
+	@Param({"0", "2"})
+	public int zoom;
+	
+	private ExportConfig config;
+	
+	@Setup
+	public void setup() {
+		config = Tiles.createConfig(tiles, tiles, zoom);
+	}
+	
+	@Benchmark
+	public List<TileCoords> configToTileLocations() {
+		return Downloader.configToTileLocations(config);
+	}
+	
+}
@@ -0,0 +1,126 @@
+package nl.dantevg.dynmapexport.benchmark;
+
+import nl.dantevg.dynmapexport.DynmapWebAPI;
+import nl.dantevg.dynmapexport.ExportConfig;
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.jetbrains.annotations.NotNull;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Synthetic Dynmap tiles for the benchmarks.
+ */
+public final class Tiles {
+	public static final int SIZE = 128;
+	
+	private Tiles() {
+	}
+	
+	/**
+	 * Create a tile of 8x8 pixel blocks with random colours, which compresses
+	 * roughly as well as a real Dynmap tile.
+	 *
+	 * @param seed the random seed
+	 * @return the tile image
+	 */
+	public static @NotNull BufferedImage createTile(long seed) {
+		Random random = new Random(seed);
+		BufferedImage tile = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+		for (int blockY = 0; blockY < SIZE; blockY += 8) {
+			for (int blockX = 0; blockX < SIZE; blockX += 8) {
+				int colour = 0xff000000 | random.nextInt(0x1000000);
+				for (int y = blockY; y < blockY + 8; y++) {
+					for (int x = blockX; x < blockX + 8; x++) {
+						tile.setRGB(x, y, colour ^ random.nextInt(8));
+					}
+				}
+			}
+		}
+		return tile;
+	}
+	
+	/**
+	 * Create a combined image of synthetic tiles, like the one TileCombiner
+	 * creates.
+	 *
+	 * @param width  the width in tiles
+	 * @param height the height in tiles
+	 * @return the combined image, of type <code>TYPE_INT_RGB</code>
+	 */
+	public static @NotNull BufferedImage createCombined(int width, int height) {
+		BufferedImage combined = new BufferedImage(width * SIZE, height * SIZE, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = combined.createGraphics();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				graphics.drawImage(createTile(y * width + x), x * SIZE, y * SIZE, null);
+			}
+		}
+		graphics.dispose();
+		return combined;
+	}
+	
+	/**
+	 * Encode an image as PNG, like the tile files that Dynmap serves.
+	 *
+	 * @param image the image to encode
+	 * @return the PNG file contents
+	 * @throws IOException when the image could not be encoded
+	 */
+	public static byte @NotNull [] encodePNG(@NotNull BufferedImage image) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Create an export configuration of the flat map of world
+	 * <code>world</code>, from tile (0, 0).
+	 *
+	 * @param width  the width in tiles
+	 * @param height the height in tiles
+	 * @param zoom   the zoom-out level
+	 * @return the export configuration
+	 */
+	public static @NotNull ExportConfig createConfig(int width, int height, int zoom) {
+		DynmapWebAPI.World world = new DynmapWebAPI.World();
+		world.name = "world";
+		DynmapWebAPI.Map map = new DynmapWebAPI.Map();
+		map.name = "flat";
+		map.prefix = "flat";
+		return new ExportConfig(world, map, zoom, new TileCoords(0, 0),
+				new TileCoords((width - 1) << zoom, (height - 1) << zoom));
+	}
+	
+	/**
+	 * Copy a tile and change the colour of <code>n</code> random pixels.
+	 *
+	 * @param tile the tile to copy
+	 * @param n    the number of pixels to change
+	 * @param seed the random seed
+	 * @return the changed copy
+	 */
+	public static @NotNull BufferedImage changePixels(@NotNull BufferedImage tile, int n, long seed) {
+		Random random = new Random(seed);
+		BufferedImage changed = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+		changed.getGraphics().drawImage(tile, 0, 0, null);
+		int[] pixels = new int[SIZE * SIZE];
+		for (int i = 0; i < pixels.length; i++) pixels[i] = i;
+		for (int i = 0; i < n; i++) {
+			// Partial Fisher-Yates shuffle to pick n distinct pixels
+			int j = i + random.nextInt(pixels.length - i);
+			int pixel = pixels[j];
+			pixels[j] = pixels[i];
+			pixels[i] = pixel;
+			int x = pixel % SIZE;
+			int y = pixel / SIZE;
+			changed.setRGB(x, y, changed.getRGB(x, y) ^ 0x00ffffff);
+		}
+		return changed;
+	}
+	
+}
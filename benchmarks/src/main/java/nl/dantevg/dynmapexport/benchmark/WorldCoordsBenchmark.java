@@ -0,0 +1,65 @@
+package nl.dantevg.dynmapexport.benchmark;
+
+import nl.dantevg.dynmapexport.DynmapWebAPI;
+import nl.dantevg.dynmapexport.location.WorldCoords;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts world coordinates to tile coordinates with
+ * {@link WorldCoords#toTileCoords(DynmapWebAPI.Map, int)}, for the
+ * projections of Dynmap's default flat and surface maps.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WorldCoordsBenchmark {
+	private static final int N_COORDS = 1024;
+	
+	@Param({"flat", "surface"})
+	public String projection;
+	
+	@Param({"0", "2"})
+	public int zoom;
+	
+	private DynmapWebAPI.Map map;
+	private WorldCoords[] coords;
+	
+	@Setup
+	public void setup() {
+		map = new DynmapWebAPI.Map();
+		map.worldtomap = projection.equals("flat")
+				? new double[] {
+						4, 0, -2.4492935982947064e-16,
+						-2.4492935982947064e-16, 0, -4,
+						0, 1, 0
+				}
+				: new double[] {
+						11.31370849898476, 0, -11.313708498984761,
+						-5.6568542494923815, 13.856406460551018, -5.656854249492381,
+						5.551115123125782e-17, 0.9999999999999997, 5.551115123125782e-17
+				};
+		
+		Random random = new Random(1);
+		coords = new WorldCoords[N_COORDS];
+		for (int i = 0; i < N_COORDS; i++) {
+			coords[i] = new WorldCoords(random.nextInt(20000) - 10000, random.nextInt(256),
+					random.nextInt(20000) - 10000);
+		}
+	}
+	
+	/**
+	 * Convert {@value N_COORDS} coordinates.
+	 */
+	@Benchmark
+	public void toTileCoords(Blackhole blackhole) {
+		for (WorldCoords worldCoords : coords) blackhole.consume(worldCoords.toTileCoords(map, zoom));
+	}
+	
+}
@@ -0,0 +1,97 @@
+package nl.dantevg.dynmapexport;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+
+/**
+ * An export interval that adapts to how much a map changes. The interval is
+ * scaled by how far the recent change fraction is from the target change
+ * fraction, at most doubling or halving per export:
+ * <ul>
+ *     <li>quiet maps (no changes) back off until the maximum interval</li>
+ *     <li>busy maps (twice the target or more) tighten until the minimum interval</li>
+ * </ul>
+ * The recent change fraction is an exponentially weighted moving average, so
+ * the interval backs off gradually: a single quiet export lengthens it by a
+ * third, and only the third quiet export in a row doubles it. A spike in
+ * changes is acted on right away.
+ */
+public class AdaptiveInterval {
+	/**
+	 * The weight of the newest change fraction in the moving average
+	 */
+	static final double SMOOTHING = 0.25;
+	static final double MAX_FACTOR = 2;
+	
+	private final @NotNull Duration min;
+	private final @NotNull Duration max;
+	private final double targetChangeFraction;
+	private @NotNull Duration interval;
+	private double averageChangeFraction;
+	
+	/**
+	 * @param min                  the minimum interval
+	 * @param max                  the maximum interval
+	 * @param targetChangeFraction the change fraction at which the interval
+	 *                             stays the same
+	 * @param initial              the interval to start at
+	 */
+	public AdaptiveInterval(@NotNull Duration min, @NotNull Duration max, double targetChangeFraction,
+	                        @NotNull Duration initial) {
+		this.min = min;
+		this.max = (max.compareTo(min) < 0) ? min : max;
+		this.targetChangeFraction = targetChangeFraction;
+		this.interval = clamp(initial);
+		this.averageChangeFraction = targetChangeFraction;
+	}
+	
+	public @NotNull Duration getInterval() {
+		return interval;
+	}
+	
+	/**
+	 * @return the moving average of the change fraction
+	 */
+	public double getAverageChangeFraction() {
+		return averageChangeFraction;
+	}
+	
+	/**
+	 * Continue from a saved interval and average change fraction, for example
+	 * after a restart.
+	 *
+	 * @param interval              the interval, see {@link #getInterval()}
+	 * @param averageChangeFraction the moving average of the change
+	 *                              fraction, see {@link #getAverageChangeFraction()}
+	 */
+	public void restore(@NotNull Duration interval, double averageChangeFraction) {
+		this.interval = clamp(interval);
+		this.averageChangeFraction = averageChangeFraction;
+	}
+	
+	/**
+	 * Update the interval with the result of an export.
+	 *
+	 * @param changeFraction the fraction of tiles that changed by at least the
+	 *                       change treshold, 0 when nothing changed
+	 * @return the new interval
+	 */
+	public @NotNull Duration update(double changeFraction) {
+		averageChangeFraction = SMOOTHING * changeFraction + (1 - SMOOTHING) * averageChangeFraction;
+		// Back off on the average only, but tighten on a spike right away
+		double recent = Math.max(changeFraction, averageChangeFraction);
+		
+		double factor = (recent > 0) ? targetChangeFraction / recent : MAX_FACTOR;
+		factor = Math.max(1 / MAX_FACTOR, Math.min(MAX_FACTOR, factor));
+		interval = clamp(Duration.ofMillis(Math.round(interval.toMillis() * factor)));
+		return interval;
+	}
+	
+	private @NotNull Duration clamp(@NotNull Duration duration) {
+		if (duration.compareTo(min) < 0) return min;
+		if (duration.compareTo(max) > 0) return max;
+		return duration;
+	}
+	
+}
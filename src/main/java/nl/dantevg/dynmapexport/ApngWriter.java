@@ -0,0 +1,141 @@
+package nl.dantevg.dynmapexport;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Incremental encoder for animated PNGs (<a href="https://wiki.mozilla.org/APNG_Specification">APNG</a>)
+ * of 8-bit RGB images. Every frame covers a rectangle of the image, and is
+ * drawn over the previous frames, so a frame only needs to contain the part
+ * of the image that changed. The frames are encoded with {@link PngWriter}
+ * one at a time, row by row.
+ * <p>
+ * The first frame covers the whole image and is also the image shown by
+ * viewers that do not support animation.
+ */
+public class ApngWriter implements Closeable {
+	private static final int DISPOSE_OP_NONE = 0;
+	private static final int BLEND_OP_SOURCE = 0;
+	private static final int MAX_DELAY = 0xFFFF;
+	
+	private final DataOutputStream out;
+	private final int width;
+	private final int height;
+	private final int nFrames;
+	private final int compressionLevel;
+	private final @Nullable ExecutorService executor;
+	private int sequence = 0;
+	private int nFramesWritten = 0;
+	
+	/**
+	 * Create an animated PNG writer and write the PNG header to <code>out</code>.
+	 *
+	 * @param out              the stream to write the animated PNG to
+	 * @param width            the width of the image in pixels
+	 * @param height           the height of the image in pixels
+	 * @param nFrames          the number of frames that will be written
+	 * @param compressionLevel the deflate compression level, 0-9
+	 * @param executor         the executor to compress frames on, or null to
+	 *                         encode on the calling thread
+	 * @throws IOException when the header could not be written
+	 */
+	public ApngWriter(@NotNull OutputStream out, int width, int height, int nFrames, int compressionLevel,
+	                  @Nullable ExecutorService executor) throws IOException {
+		if (nFrames <= 0) throw new IllegalArgumentException("an animation needs at least one frame");
+		this.out = new DataOutputStream(out);
+		this.width = width;
+		this.height = height;
+		this.nFrames = nFrames;
+		this.compressionLevel = compressionLevel;
+		this.executor = executor;
+		
+		PngWriter.writeHeader(this.out, width, height);
+		ByteArrayOutputStream control = new ByteArrayOutputStream(8);
+		DataOutputStream controlOut = new DataOutputStream(control);
+		controlOut.writeInt(nFrames);
+		controlOut.writeInt(0); // number of plays: loop forever
+		PngWriter.writeChunk(this.out, "acTL", control.toByteArray(), control.size());
+	}
+	
+	/**
+	 * Start the next frame. Write the rows of the frame to the returned
+	 * writer, and call {@link PngWriter#finish()} before starting the next
+	 * frame. The first frame must cover the whole image.
+	 *
+	 * @param x           the left edge of the frame in pixels
+	 * @param y           the top edge of the frame in pixels
+	 * @param width       the width of the frame in pixels
+	 * @param height      the height of the frame in pixels
+	 * @param delayMillis how long to show the frame, in milliseconds
+	 * @return the writer for the rows of the frame
+	 * @throws IOException when the frame header could not be written
+	 */
+	public @NotNull PngWriter writeFrame(int x, int y, int width, int height, int delayMillis) throws IOException {
+		if (nFramesWritten >= nFrames) throw new IllegalStateException("all frames have been written already");
+		if (x < 0 || y < 0 || width <= 0 || height <= 0 || x + width > this.width || y + height > this.height) {
+			throw new IllegalArgumentException(String.format("frame %dx%d at %d,%d is outside the %dx%d image",
+					width, height, x, y, this.width, this.height));
+		}
+		if (nFramesWritten == 0 && (x != 0 || y != 0 || width != this.width || height != this.height)) {
+			throw new IllegalArgumentException("the first frame must cover the whole image");
+		}
+		
+		ByteArrayOutputStream control = new ByteArrayOutputStream(26);
+		DataOutputStream controlOut = new DataOutputStream(control);
+		controlOut.writeInt(sequence++);
+		controlOut.writeInt(width);
+		controlOut.writeInt(height);
+		controlOut.writeInt(x);
+		controlOut.writeInt(y);
+		controlOut.writeShort(Math.max(0, Math.min(MAX_DELAY, delayMillis))); // delay numerator
+		controlOut.writeShort(1000); // delay denominator
+		controlOut.writeByte(DISPOSE_OP_NONE);
+		controlOut.writeByte(BLEND_OP_SOURCE);
+		PngWriter.writeChunk(out, "fcTL", control.toByteArray(), control.size());
+		
+		nFramesWritten++;
+		return new PngWriter(out, width, height, compressionLevel, executor, this);
+	}
+	
+	/**
+	 * Write the end of the animated PNG. All frames must have been written.
+	 *
+	 * @throws IOException when the end could not be written
+	 */
+	public void finish() throws IOException {
+		if (nFramesWritten < nFrames) {
+			throw new IllegalStateException(String.format("only %d of %d frames have been written",
+					nFramesWritten, nFrames));
+		}
+		PngWriter.writeChunk(out, "IEND", new byte[0], 0);
+		out.flush();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+	
+	/**
+	 * Write compressed image data of the current frame: as IDAT chunk for the
+	 * first frame, and as fdAT chunk (with sequence number) for the others.
+	 */
+	void writeImageData(byte @NotNull [] data, int length) throws IOException {
+		if (nFramesWritten == 1) {
+			PngWriter.writeChunk(out, "IDAT", data, length);
+			return;
+		}
+		byte[] frameData = new byte[length + 4];
+		frameData[0] = (byte) (sequence >>> 24);
+		frameData[1] = (byte) (sequence >>> 16);
+		frameData[2] = (byte) (sequence >>> 8);
+		frameData[3] = (byte) sequence;
+		System.arraycopy(data, 0, frameData, 4, length);
+		sequence++;
+		PngWriter.writeChunk(out, "fdAT", frameData, length + 4);
+	}
+	
+}
@@ -0,0 +1,118 @@
+package nl.dantevg.dynmapexport;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Size-bounded, least-recently-used cache of decoded tiles of the baseline
+ * exports (the exports that new tiles are compared to). Survives between
+ * exports, so that a baseline tile is only read from disk once as long as it
+ * stays the baseline. The tiles of a new export are added as they are
+ * decoded, so that they are cached once the export becomes the baseline.
+ */
+public class BaselineCache {
+	private final long maxBytes;
+	private final Map<File, BufferedImage> images = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+	
+	/**
+	 * @param maxBytes the maximum total size of the cached images, 0 to disable the cache
+	 */
+	public BaselineCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Get the decoded image of a baseline tile, reading it from disk if it is
+	 * not cached.
+	 *
+	 * @param file the tile file in the baseline export
+	 * @return the decoded image, or null if the file could not be decoded
+	 * @throws IOException when the file could not be read
+	 */
+	public @Nullable BufferedImage get(@NotNull File file) throws IOException {
+		synchronized (images) {
+			BufferedImage image = images.get(file);
+			if (image != null) return image;
+		}
+		
+		BufferedImage image = ImageIO.read(file);
+		if (image != null) put(file, image);
+		return image;
+	}
+	
+	/**
+	 * Remove all cached tiles of the exports in <code>mapDir</code>, except
+	 * those of the export in <code>baselineDir</code>. Call this when a new
+	 * baseline export has been saved.
+	 *
+	 * @param mapDir      the local map directory
+	 * @param baselineDir the export directory of the new baseline
+	 */
+	public void invalidate(@NotNull File mapDir, @NotNull File baselineDir) {
+		removeIf(exportDir -> mapDir.equals(exportDir.getParentFile()) && !baselineDir.equals(exportDir));
+	}
+	
+	/**
+	 * Remove all cached tiles of an export that does not become a baseline,
+	 * because it is discarded.
+	 *
+	 * @param exportDir the export directory
+	 */
+	public void remove(@NotNull File exportDir) {
+		removeIf(exportDir::equals);
+	}
+	
+	/**
+	 * Cache the decoded image of a tile.
+	 *
+	 * @param file  the tile file
+	 * @param image the decoded image
+	 */
+	public void put(@NotNull File file, @NotNull BufferedImage image) {
+		long size = getSize(image);
+		if (size > maxBytes) return;
+		synchronized (images) {
+			BufferedImage previous = images.put(file, image);
+			if (previous != null) bytes -= getSize(previous);
+			bytes += size;
+			
+			// Evict least recently used images
+			Iterator<BufferedImage> iterator = images.values().iterator();
+			while (bytes > maxBytes && iterator.hasNext()) {
+				bytes -= getSize(iterator.next());
+				iterator.remove();
+			}
+		}
+	}
+	
+	private void removeIf(@NotNull Predicate<File> exportDirFilter) {
+		synchronized (images) {
+			Iterator<Map.Entry<File, BufferedImage>> iterator = images.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<File, BufferedImage> entry = iterator.next();
+				if (exportDirFilter.test(entry.getKey().getParentFile())) {
+					bytes -= getSize(entry.getValue());
+					iterator.remove();
+				}
+			}
+		}
+	}
+	
+	private static long getSize(@NotNull BufferedImage image) {
+		DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+		return (long) dataBuffer.getSize() * dataBuffer.getNumBanks()
+				* DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+	}
+	
+}
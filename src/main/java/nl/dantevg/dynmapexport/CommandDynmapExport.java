@@ -7,6 +7,7 @@ import org.bukkit.command.*;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -33,6 +34,15 @@ public class CommandDynmapExport implements CommandExecutor, TabCompleter {
 		} else if (args.length == 1 && args[0].equals("debug")) {
 			sender.sendMessage(plugin.debug());
 			return true;
+		} else if ((args.length >= 1 && args.length <= 3) && args[0].equals("stats")) {
+			List<String> summary = plugin.exportMetrics.getSummary(
+					(args.length >= 2) ? args[1] : null, (args.length >= 3) ? args[2] : null);
+			if (summary.isEmpty()) {
+				sender.sendMessage("No exports since the plugin was enabled");
+			} else {
+				sender.sendMessage(summary.toArray(new String[0]));
+			}
+			return true;
 		} else if (args.length == 6 && args[0].equals("export")) {
 			// Export single
 			String world = args[1];
@@ -60,6 +70,28 @@ public class CommandDynmapExport implements CommandExecutor, TabCompleter {
 				sender.sendMessage("Could not save tile (see console)");
 			}
 			return true;
+		} else if ((args.length == 3 || args.length == 4) && args[0].equals("timelapse")) {
+			int frameDelay = TimeLapse.DEFAULT_FRAME_DELAY_MILLIS;
+			try {
+				if (args.length == 4) frameDelay = Integer.parseInt(args[3]);
+			} catch (NumberFormatException e) {
+				sender.sendMessage("Invalid number");
+				return false;
+			}
+			ExportConfig config = plugin.exportConfigs.stream()
+					.filter(c -> c.world.name.equals(args[1]) && c.map.name.equals(args[2]))
+					.findFirst().orElse(null);
+			if (config == null) {
+				sender.sendMessage("no export configuration for map " + args[1] + ":" + args[2]);
+				return false;
+			}
+			int finalFrameDelay = frameDelay;
+			Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+				File file = new TimeLapse(plugin).create(config, finalFrameDelay);
+				sender.sendMessage((file != null) ? "Saved time-lapse at " + file
+						: "Could not create time-lapse (see console)");
+			});
+			return true;
 		} else if ((args.length == 6 || args.length == 7) && args[0].equals("worldtomap")) {
 			String worldName = args[1];
 			String mapName = args[2];
@@ -86,7 +118,20 @@ public class CommandDynmapExport implements CommandExecutor, TabCompleter {
 	@Override
 	public List<String> onTabComplete(CommandSender sender, Command command, String label, String @NotNull [] args) {
 		if (args.length == 1) {
-			return Arrays.asList("now", "export", "reload", "debug", "worldtomap");
+			return Arrays.asList("now", "export", "reload", "debug", "worldtomap", "timelapse", "stats");
+		} else if (args.length == 2 && (args[0].equals("timelapse") || args[0].equals("stats"))) {
+			// Suggest world of an export configuration
+			return plugin.exportConfigs.stream()
+					.map(config -> config.world.name)
+					.distinct()
+					.collect(Collectors.toList());
+		} else if (args.length == 3 && (args[0].equals("timelapse") || args[0].equals("stats"))) {
+			// Suggest map of an export configuration
+			return plugin.exportConfigs.stream()
+					.filter(config -> config.world.name.equals(args[1]))
+					.map(config -> config.map.name)
+					.distinct()
+					.collect(Collectors.toList());
 		} else if (args.length == 2 && (args[0].equals("export") || args[0].equals("worldtomap"))) {
 			// Suggest world
 			return plugin.worldConfiguration.worlds.stream()
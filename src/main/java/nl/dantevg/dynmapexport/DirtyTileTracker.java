@@ -0,0 +1,268 @@
+package nl.dantevg.dynmapexport;
+
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of which tiles of each export configuration Dynmap re-rendered
+ * since the previous export, by polling the same update feed that the Dynmap
+ * web map uses (<code>up/world/{world}/{timestamp}</code>). An export then
+ * only needs to download these dirty tiles, and can copy all others from the
+ * previous export.
+ * <p>
+ * Dynmap only keeps recent updates, so when polling fails or the time between
+ * two polls is longer than <code>maxGap</code>, updates may have been missed.
+ * The dirty tiles of all configurations of the world are then unknown until
+ * the next export that downloads all tiles.
+ */
+public class DirtyTileTracker {
+	private final @NotNull DynmapHttpClient httpClient;
+	private final @NotNull Logger logger;
+	private final @NotNull Duration maxGap;
+	private final Map<String, WorldFeed> worlds = new HashMap<>();
+	private final AtomicBoolean isPolling = new AtomicBoolean();
+	
+	public DirtyTileTracker(@NotNull DynmapHttpClient httpClient, @NotNull Logger logger, @NotNull Duration maxGap) {
+		this.httpClient = httpClient;
+		this.logger = logger;
+		this.maxGap = maxGap;
+	}
+	
+	/**
+	 * Start tracking the dirty tiles of export configurations. The dirty
+	 * tiles of a configuration are unknown until its first export.
+	 *
+	 * @param configs the export configurations
+	 */
+	public synchronized void track(@NotNull List<ExportConfig> configs) {
+		for (ExportConfig config : configs) {
+			worlds.computeIfAbsent(config.world.name, WorldFeed::new)
+					.configs.putIfAbsent(config.getId(), new DirtyTiles(config));
+		}
+	}
+	
+	/**
+	 * Poll the update feed of every tracked world once, and mark the updated
+	 * tiles dirty. Does nothing if the previous poll is still running.
+	 */
+	public void poll() {
+		if (!isPolling.compareAndSet(false, true)) return;
+		try {
+			List<WorldFeed> feeds;
+			synchronized (this) {
+				feeds = new ArrayList<>(worlds.values());
+			}
+			for (WorldFeed feed : feeds) poll(feed);
+		} finally {
+			isPolling.set(false);
+		}
+	}
+	
+	/**
+	 * Get the tiles of a configuration that may have changed since its
+	 * previous export. Pass the returned snapshot to {@link #commit} once the
+	 * export is saved.
+	 *
+	 * @param config the export configuration
+	 * @return the dirty tiles, or null if the configuration is not tracked
+	 */
+	public synchronized @Nullable Snapshot take(@NotNull ExportConfig config) {
+		WorldFeed feed = worlds.get(config.world.name);
+		DirtyTiles dirtyTiles = (feed != null) ? feed.configs.get(config.getId()) : null;
+		if (dirtyTiles == null) return null;
+		
+		Set<TileCoords> tiles = dirtyTiles.isComplete ? new HashSet<>(dirtyTiles.tiles.keySet()) : null;
+		return new Snapshot(config, feed.sequence, tiles);
+	}
+	
+	/**
+	 * Mark the tiles of a snapshot clean, because an export with these tiles
+	 * was saved. Tiles that were updated after the snapshot stay dirty.
+	 *
+	 * @param snapshot the snapshot of the dirty tiles at the start of the export
+	 */
+	public synchronized void commit(@NotNull Snapshot snapshot) {
+		WorldFeed feed = worlds.get(snapshot.config.world.name);
+		DirtyTiles dirtyTiles = (feed != null) ? feed.configs.get(snapshot.config.getId()) : null;
+		if (dirtyTiles == null) return;
+		
+		dirtyTiles.tiles.values().removeIf(sequence -> sequence <= snapshot.sequence);
+		// Complete only if no updates were missed since the snapshot
+		dirtyTiles.isComplete = feed.lastGap <= snapshot.sequence;
+	}
+	
+	private void poll(@NotNull WorldFeed feed) {
+		long since;
+		synchronized (this) {
+			since = feed.since;
+		}
+		
+		DynmapWebAPI.WorldUpdates updates;
+		try {
+			updates = httpClient.getJson(String.format("up/world/%s/%d", feed.world, since),
+					DynmapWebAPI.WorldUpdates.class);
+			if (updates == null) throw new IOException("empty response");
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not get tile updates of world " + feed.world
+					+ ", downloading all tiles in the next export", e);
+			synchronized (this) {
+				feed.markGap();
+			}
+			return;
+		}
+		
+		synchronized (this) {
+			Instant now = Instant.now();
+			feed.sequence++;
+			if (feed.lastPoll == null || Duration.between(feed.lastPoll, now).compareTo(maxGap) > 0
+					|| updates.timestamp < since) {
+				// First poll, too long since the previous poll, or Dynmap restarted
+				feed.markGap();
+			}
+			feed.lastPoll = now;
+			feed.since = updates.timestamp;
+			if (updates.updates == null) return;
+			for (DynmapWebAPI.Update update : updates.updates) {
+				if (!"tile".equals(update.type) || update.name == null) continue;
+				feed.markDirty(update.name);
+			}
+		}
+	}
+	
+	/**
+	 * Parse the path of an updated tile.
+	 *
+	 * @param name the path of the tile below the world's tile directory
+	 *             (e.g. <code>"flat/0_0/z_2_4.png"</code>)
+	 * @return the map prefix, the zoom level and the tile coordinates, or null
+	 * if the path is not a tile
+	 */
+	static @Nullable UpdatedTile parseTile(@NotNull String name) {
+		String[] parts = name.split("/");
+		if (parts.length < 2) return null;
+		String file = parts[parts.length - 1];
+		int extension = file.lastIndexOf('.');
+		if (extension >= 0) file = file.substring(0, extension);
+		
+		int zoom = 0;
+		while (zoom < file.length() && file.charAt(zoom) == 'z') zoom++;
+		if (zoom > 0) {
+			if (zoom >= file.length() || file.charAt(zoom) != '_') return null;
+			file = file.substring(zoom + 1);
+		}
+		
+		String[] coords = file.split("_");
+		if (coords.length != 2) return null;
+		try {
+			return new UpdatedTile(parts[0], zoom, new TileCoords(Integer.parseInt(coords[0]), Integer.parseInt(coords[1])));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * The dirty tiles of a single export configuration at some point in time.
+	 */
+	public static class Snapshot {
+		public final @NotNull ExportConfig config;
+		private final long sequence;
+		/**
+		 * The tiles that may have changed since the previous export, or null
+		 * if unknown
+		 */
+		public final @Nullable Set<TileCoords> tiles;
+		
+		private Snapshot(@NotNull ExportConfig config, long sequence, @Nullable Set<TileCoords> tiles) {
+			this.config = config;
+			this.sequence = sequence;
+			this.tiles = tiles;
+		}
+	}
+	
+	static class UpdatedTile {
+		final @NotNull String prefix;
+		final int zoom;
+		final @NotNull TileCoords tile;
+		
+		UpdatedTile(@NotNull String prefix, int zoom, @NotNull TileCoords tile) {
+			this.prefix = prefix;
+			this.zoom = zoom;
+			this.tile = tile;
+		}
+	}
+	
+	/**
+	 * The update feed of a single world.
+	 */
+	private static class WorldFeed {
+		private final @NotNull String world;
+		private final Map<String, DirtyTiles> configs = new LinkedHashMap<>();
+		/**
+		 * The Dynmap timestamp to request the next updates since
+		 */
+		private long since = 0;
+		private @Nullable Instant lastPoll;
+		/**
+		 * Incremented on every poll, to tell which updates came after a snapshot
+		 */
+		private long sequence = 0;
+		/**
+		 * The sequence number of the last poll where updates may have been missed
+		 */
+		private long lastGap = 0;
+		
+		private WorldFeed(@NotNull String world) {
+			this.world = world;
+		}
+		
+		private void markGap() {
+			lastGap = ++sequence;
+			for (DirtyTiles dirtyTiles : configs.values()) dirtyTiles.isComplete = false;
+		}
+		
+		private void markDirty(@NotNull String name) {
+			UpdatedTile updated = parseTile(name);
+			if (updated == null) return;
+			for (DirtyTiles dirtyTiles : configs.values()) {
+				ExportConfig config = dirtyTiles.config;
+				// Coarser tiles are updated because finer tiles were, which are tracked themselves
+				if (!updated.prefix.equals(config.map.prefix) || updated.zoom > config.zoom) continue;
+				TileCoords tile = updated.tile.toZoom(config.zoom);
+				if (tile.x < config.from.x || tile.x > config.to.x || tile.y < config.from.y || tile.y > config.to.y) {
+					continue;
+				}
+				dirtyTiles.tiles.put(tile, sequence);
+			}
+		}
+	}
+	
+	/**
+	 * The dirty tiles of a single export configuration.
+	 */
+	private static class DirtyTiles {
+		private final @NotNull ExportConfig config;
+		/**
+		 * The dirty tiles, with the sequence number of the poll that last
+		 * marked them dirty
+		 */
+		private final Map<TileCoords, Long> tiles = new HashMap<>();
+		/**
+		 * Whether all updates since the previous export are known
+		 */
+		private boolean isComplete = false;
+		
+		private DirtyTiles(@NotNull ExportConfig config) {
+			this.config = config;
+		}
+	}
+	
+}
@@ -1,5 +1,6 @@
 package nl.dantevg.dynmapexport;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import nl.dantevg.dynmapexport.location.TileCoords;
 import nl.dantevg.dynmapexport.location.WorldCoords;
 import org.jetbrains.annotations.NotNull;
@@ -7,21 +8,37 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.MalformedURLException;
-import java.net.URL;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
-import java.util.stream.Collectors;
 
 public class Downloader {
+	private static final int DEFAULT_DOWNLOAD_THREADS = 4;
+	
 	private final DynmapExport plugin;
+	private final ExecutorService executor;
 	
 	public Downloader(DynmapExport plugin) {
 		this.plugin = plugin;
+		int nThreads = Math.max(1, plugin.config.getInt("download-threads", DEFAULT_DOWNLOAD_THREADS));
+		executor = Executors.newFixedThreadPool(nThreads, new ThreadFactoryBuilder()
+				.setNameFormat("DynmapExport download #%d")
+				.setDaemon(true)
+				.build());
+	}
+	
+	/**
+	 * Stop the download workers. Downloads that are still queued will not run.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
 	}
 	
 	/**
@@ -54,64 +71,172 @@ public class Downloader {
 	 * @return the path to the downloaded file
 	 */
 	public @Nullable String downloadTile(@NotNull ExportConfig config, @NotNull TileCoords tileCoords) {
-		String tilePath = Paths.getDynmapTilePath(config, tileCoords);
 		File dest = Paths.getLocalTileFile(plugin, config, Instant.now(), tileCoords);
-		return download(tilePath, dest) ? dest.getPath() : null;
+		return download(config, tileCoords, dest) ? dest.getPath() : null;
 	}
 	
 	/**
-	 * Download multiple tiles in the rectangle between <code>from</code> and <code>to</code> (inclusive)
+	 * Download multiple tiles in the rectangle between <code>from</code> and <code>to</code> (inclusive).
+	 * The tiles are downloaded in parallel by the download workers. Tiles that
+	 * Dynmap has not modified since the last export are copied from that export
+	 * instead, and are not checked for changes.
 	 *
 	 * @param config the export configuration
-	 * @return the amount of tiles downloaded, or -1 if nothing changed in the Dynmap
+	 * @return the successfully downloaded tiles and their changes, or null if
+	 * nothing changed in the Dynmap
+	 * @throws DownloadFailedException when it is unknown whether anything
+	 *                                 changed, because tiles failed to download
 	 */
-	public Map<TileCoords, File> downloadTiles(@NotNull ExportConfig config, Instant now) {
+	public @Nullable ExportResult downloadTiles(@NotNull ExportConfig config, Instant now)
+			throws DownloadFailedException {
+		return downloadTiles(config, now, null);
+	}
+	
+	/**
+	 * Download multiple tiles in the rectangle between <code>from</code> and <code>to</code> (inclusive).
+	 * Tiles that another export configuration already fetched in the same run
+	 * are taken from <code>runCache</code> instead of from Dynmap.
+	 *
+	 * @param config   the export configuration
+	 * @param runCache the tiles fetched during this run, if any
+	 * @return the successfully downloaded tiles and their changes, or null if
+	 * nothing changed in the Dynmap
+	 * @throws DownloadFailedException when it is unknown whether anything
+	 *                                 changed, because tiles failed to download,
+	 *                                 or the download was interrupted or its
+	 *                                 workers were stopped
+	 */
+	public @Nullable ExportResult downloadTiles(@NotNull ExportConfig config, Instant now,
+	                                            @Nullable RunTileCache runCache) throws DownloadFailedException {
+		long start = System.nanoTime();
 		Instant cached = plugin.imageTresholdCache.getCachedInstant(config);
 		List<TileCoords> tiles = configToTileLocations(config);
+		ValidatorIndex previousValidators = ValidatorIndex.load(plugin, config, cached);
+		ValidatorIndex validators = new ValidatorIndex(now);
+		DirtyTileTracker.Snapshot dirty = (plugin.dirtyTileTracker != null)
+				? plugin.dirtyTileTracker.take(config) : null;
+		Set<TileCoords> dirtyTiles = (dirty != null && cached != null) ? dirty.tiles : null;
+		
+		Map<TileCoords, Future<TileStatus>> downloads = new LinkedHashMap<>();
+		try {
+			for (TileCoords tile : tiles) {
+				if (dirtyTiles != null && !dirtyTiles.contains(tile)) {
+					// Dynmap did not re-render the tile since the previous export
+					downloads.put(tile, executor.submit(() ->
+							carryForward(config, tile, now, cached, previousValidators, validators)));
+				} else {
+					downloads.put(tile, submit(config, tile, now, cached, previousValidators, validators, runCache));
+				}
+			}
+		} catch (RejectedExecutionException e) {
+			throw stopped(config, now, downloads.values());
+		}
+		if (dirtyTiles != null) {
+			plugin.logger.log(Level.CONFIG, String.format("%d of %d tiles of map %s:%s were updated by Dynmap",
+					dirtyTiles.size(), tiles.size(), config.world.name, config.map.name));
+		}
 		
 		Map<TileCoords, File> downloadedFiles = new HashMap<>();
-		for (TileCoords tile : tiles) {
-			String tilePath = Paths.getDynmapTilePath(config, tile);
-			File dest = Paths.getLocalTileFile(plugin, config, now, tile);
-			downloadedFiles.put(tile, dest);
-			download(tilePath, dest);
+		Set<TileCoords> modifiedTiles = new HashSet<>();
+		List<TileCoords> failedTiles = new ArrayList<>();
+		for (Map.Entry<TileCoords, Future<TileStatus>> download : downloads.entrySet()) {
+			TileCoords tile = download.getKey();
+			File file = Paths.getLocalTileFile(plugin, config, now, tile);
+			try {
+				TileStatus status = download.getValue().get();
+				plugin.exportMetrics.addTile(config, status);
+				if (status == TileStatus.FAILED) {
+					failedTiles.add(tile);
+					continue;
+				}
+				downloadedFiles.put(tile, file);
+				if (status == TileStatus.DOWNLOADED) modifiedTiles.add(tile);
+			} catch (InterruptedException e) {
+				downloads.values().forEach(future -> future.cancel(true));
+				Thread.currentThread().interrupt();
+				removeExportDir(config, now);
+				throw new DownloadFailedException(String.format("Interrupted, not exporting map %s:%s",
+						config.world.name, config.map.name));
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RejectedExecutionException) {
+					throw stopped(config, now, downloads.values());
+				}
+				plugin.logger.log(Level.SEVERE, "Could not download tile " + tile, e.getCause());
+				plugin.exportMetrics.addTile(config, TileStatus.FAILED);
+				failedTiles.add(tile);
+			}
+		}
+		plugin.exportMetrics.addTime(config, ExportMetrics.Phase.DOWNLOAD, System.nanoTime() - start);
+		
+		if (!failedTiles.isEmpty()) {
+			plugin.logger.log(Level.WARNING, String.format("Could not download %d of %d tiles of map %s:%s: %s",
+					failedTiles.size(), tiles.size(), config.world.name, config.map.name, failedTiles));
+		}
+		plugin.logger.log(Level.CONFIG, String.format("%d of %d tiles of map %s:%s were not modified",
+				downloadedFiles.size() - modifiedTiles.size(), tiles.size(), config.world.name, config.map.name));
+		
+		// Nothing modified, remove tile files and directory again
+		if (modifiedTiles.isEmpty()) {
+			removeExportDir(config, now);
+			if (!failedTiles.isEmpty()) {
+				throw new DownloadFailedException(String.format("Could not download %d of %d tiles of map %s:%s",
+						failedTiles.size(), tiles.size(), config.world.name, config.map.name));
+			}
+			return null;
 		}
 		
 		// Not enough changes, remove tile files and directory again
-		if (downloadedFiles.size() > 0
-				&& !plugin.imageTresholdCache.anyChangedSince(cached, config, downloadedFiles.values())) {
+		ImageTresholdCache.Changes changes;
+		plugin.cpuPermits.acquireUninterruptibly();
+		try {
+			long diffStart = System.nanoTime();
+			changes = plugin.imageTresholdCache.getChanges(cached, config, downloadedFiles, modifiedTiles);
+			plugin.exportMetrics.addTime(config, ExportMetrics.Phase.DIFF, System.nanoTime() - diffStart);
+		} finally {
+			plugin.cpuPermits.release();
+		}
+		plugin.exportMetrics.setChanges(config, changes);
+		if (!changes.isOverTreshold()) {
 			removeExportDir(config, now);
 			return null;
 		}
 		
-		return downloadedFiles;
+		validators.save(plugin, config);
+		changes.fingerprints.save(plugin, config, now);
+		// Failed tiles are not in this export. Combining all tiles fails without
+		// them, but incremental combining keeps their possibly outdated pixels
+		// from the previous combined image, so count their area as changed
+		Set<TileCoords> changedTiles = new HashSet<>(changes.modified);
+		changedTiles.addAll(failedTiles);
+		plugin.getManifest(config).addExport(now, downloadedFiles.size(), changes.getChangeFraction(),
+				(cached != null) ? TileCombiner.getPixelBounds(config, changedTiles) : null);
+		if (dirty != null) plugin.dirtyTileTracker.commit(dirty);
+		plugin.imageTresholdCache.setBaseline(config, now);
+		return new ExportResult(config, now, cached, downloadedFiles, changes);
+	}
+	
+	/**
+	 * End an export because the download workers were stopped, which happens
+	 * when the plugin is disabled during the export.
+	 *
+	 * @return the error to end the export with
+	 */
+	private @NotNull DownloadFailedException stopped(@NotNull ExportConfig config, @NotNull Instant now,
+	                                                 @NotNull Collection<Future<TileStatus>> downloads) {
+		downloads.forEach(future -> future.cancel(true));
+		removeExportDir(config, now);
+		return new DownloadFailedException(String.format("Download workers were stopped, not exporting map %s:%s",
+				config.world.name, config.map.name));
 	}
 	
 	public void removeExportDir(ExportConfig config, Instant instant) {
+		plugin.imageTresholdCache.discard(config, instant);
 		File dir = Paths.getLocalExportDir(plugin, config, instant);
+		if (!dir.isDirectory()) return;
 		for (File file : dir.listFiles()) file.delete();
 		dir.delete();
 	}
 	
-	/**
-	 * Remove all but the last export directory, except ones that do not have
-	 * an associated auto-combined image.
-	 *
-	 * @param config the export configuration
-	 */
-	public void removeOldExportDirs(ExportConfig config) {
-		File dir = Paths.getLocalMapDir(plugin, config);
-		Instant lastExport = plugin.imageTresholdCache.getCachedInstant(config);
-		List<File> exportDirs = Arrays.stream(dir.listFiles())
-				.filter(File::isDirectory)
-				.filter(exportDir -> Arrays.asList(dir.list()).contains(exportDir.getName() + ".png"))
-				.collect(Collectors.toList());
-		for (File exportDir : exportDirs) {
-			Instant instant = Paths.getInstantFromFile(exportDir);
-			if (!instant.equals(lastExport)) removeExportDir(config, instant);
-		}
-	}
-	
 	/**
 	 * Get all tile locations from an export config.
 	 *
@@ -131,18 +256,175 @@ public class Downloader {
 	}
 	
 	/**
-	 * Download the Dynmap tile at <code>path</code> to <code>dest</code>.
+	 * Schedule the download of a single tile of an export on the download
+	 * workers. With a run cache, only the first export configuration that
+	 * needs the tile downloads it, the others wait for it and reuse it.
 	 *
-	 * @param path the Dynmap path to the tile
-	 * @param dest the destination file to download to.
+	 * @return the future download status
+	 */
+	private @NotNull Future<TileStatus> submit(@NotNull ExportConfig config, @NotNull TileCoords tile,
+	                                           @NotNull Instant now, @Nullable Instant cached,
+	                                           @NotNull ValidatorIndex previousValidators,
+	                                           @NotNull ValidatorIndex validators,
+	                                           @Nullable RunTileCache runCache) {
+		if (runCache == null) {
+			return executor.submit(() -> download(config, tile, now, cached, previousValidators, validators));
+		}
+		
+		CompletableFuture<RunTileCache.Entry> fetched = runCache.claim(config, tile);
+		if (fetched == null) {
+			try {
+				return CompletableFuture.supplyAsync(() -> {
+					File dest = Paths.getLocalTileFile(plugin, config, now, tile);
+					TileStatus status = TileStatus.FAILED;
+					try {
+						status = download(config, tile, now, cached, previousValidators, validators);
+						return status;
+					} finally {
+						runCache.put(config, tile, (status != TileStatus.FAILED) ? dest : null, validators.get(dest));
+					}
+				}, executor);
+			} catch (RejectedExecutionException e) {
+				// Do not let other configurations wait for a tile that is never fetched
+				runCache.put(config, tile, null, null);
+				throw e;
+			}
+		}
+		// Do not wait on the download workers, but continue once the tile is fetched
+		return fetched.thenApplyAsync(entry -> (entry != null)
+				? reuse(config, tile, now, cached, previousValidators, validators, entry)
+				: download(config, tile, now, cached, previousValidators, validators), executor);
+	}
+	
+	/**
+	 * Copy a tile that Dynmap did not update from the previous export, or
+	 * download it if the previous export does not have it. Tiles without
+	 * validators were not fetched successfully, so they are downloaded too.
+	 *
+	 * @return whether the tile was copied, downloaded or failed
+	 */
+	private @NotNull TileStatus carryForward(@NotNull ExportConfig config, @NotNull TileCoords tile,
+	                                         @NotNull Instant now, @NotNull Instant cached,
+	                                         @NotNull ValidatorIndex previousValidators,
+	                                         @NotNull ValidatorIndex validators) {
+		File dest = Paths.getLocalTileFile(plugin, config, now, tile);
+		File previous = Paths.getLocalTileFile(plugin, config, cached, tile);
+		DynmapHttpClient.Validators previousTileValidators = previous.isFile() ? previousValidators.get(previous) : null;
+		if (previousTileValidators != null) {
+			try {
+				dest.getParentFile().mkdirs(); // Make all directories on path to file
+				plugin.tileStore.copy(previous, dest);
+				validators.put(dest, previousTileValidators);
+				return TileStatus.NOT_MODIFIED;
+			} catch (IOException e) {
+				plugin.logger.log(Level.WARNING, "Could not copy tile " + previous + ", downloading it instead", e);
+			}
+		}
+		return download(config, tile, now, cached, previousValidators, validators);
+	}
+	
+	/**
+	 * Use a tile that another export configuration fetched during this run.
+	 *
+	 * @param config             the export configuration
+	 * @param tile               the tile coordinates
+	 * @param now                the time of the export
+	 * @param cached             the time of the previous export, if any
+	 * @param previousValidators the validators of the tiles in the previous export
+	 * @param validators         the index to store the validators of this tile in
+	 * @param fetched            the fetched tile
+	 * @return whether the tile was modified since the previous export, or failed
+	 */
+	private @NotNull TileStatus reuse(@NotNull ExportConfig config, @NotNull TileCoords tile,
+	                                  @NotNull Instant now, @Nullable Instant cached,
+	                                  @NotNull ValidatorIndex previousValidators,
+	                                  @NotNull ValidatorIndex validators,
+	                                  @NotNull RunTileCache.Entry fetched) {
+		File dest = Paths.getLocalTileFile(plugin, config, now, tile);
+		File previous = (cached != null) ? Paths.getLocalTileFile(plugin, config, cached, tile) : null;
+		DynmapHttpClient.Validators previousTileValidators = (previous != null && previous.isFile())
+				? previousValidators.get(previous) : null;
+		
+		try {
+			dest.getParentFile().mkdirs(); // Make all directories on path to file
+			fetched.copyTo(dest);
+			plugin.exportMetrics.addBytesWritten(config, dest.length());
+			plugin.tileStore.add(dest);
+			validators.put(dest, fetched.validators);
+			return (previousTileValidators != null && previousTileValidators.equals(fetched.validators))
+					? TileStatus.NOT_MODIFIED
+					: TileStatus.DOWNLOADED;
+		} catch (IOException e) {
+			plugin.logger.log(Level.SEVERE, "Could not reuse tile " + fetched.file, e);
+		}
+		dest.delete();
+		return TileStatus.FAILED;
+	}
+	
+	/**
+	 * Download a single tile of an export. When the tile is present in the
+	 * previous export, only download it if Dynmap modified it since then, and
+	 * copy it from the previous export otherwise.
+	 *
+	 * @param config             the export configuration
+	 * @param tile               the tile coordinates
+	 * @param now                the time of the export
+	 * @param cached             the time of the previous export, if any
+	 * @param previousValidators the validators of the tiles in the previous export
+	 * @param validators         the index to store the validators of this tile in
+	 * @return whether the tile was downloaded, copied or failed
+	 */
+	private @NotNull TileStatus download(@NotNull ExportConfig config, @NotNull TileCoords tile,
+	                                     @NotNull Instant now, @Nullable Instant cached,
+	                                     @NotNull ValidatorIndex previousValidators,
+	                                     @NotNull ValidatorIndex validators) {
+		String path = Paths.getDynmapTilePath(config, tile);
+		File dest = Paths.getLocalTileFile(plugin, config, now, tile);
+		File previous = (cached != null) ? Paths.getLocalTileFile(plugin, config, cached, tile) : null;
+		DynmapHttpClient.Validators previousTileValidators = (previous != null && previous.isFile())
+				? previousValidators.get(previous) : null;
+		
+		try {
+			dest.getParentFile().mkdirs(); // Make all directories on path to file
+			long fetchStart = System.nanoTime();
+			DynmapHttpClient.Download download = plugin.tileSource.fetch(config, tile, dest, previousTileValidators);
+			plugin.exportMetrics.addFetch(config, System.nanoTime() - fetchStart, download.bytes);
+			if (download.notModified) {
+				plugin.tileStore.copy(previous, dest);
+				validators.put(dest, previousTileValidators);
+				return TileStatus.NOT_MODIFIED;
+			}
+			plugin.logger.log(Level.CONFIG, "Downloaded tile " + path);
+			if (download.bytes == 0) {
+				plugin.logger.log(Level.WARNING, "Tile was 0 bytes!");
+				dest.delete();
+				return TileStatus.FAILED;
+			}
+			plugin.tileStore.add(dest);
+			validators.put(dest, download.validators);
+			return TileStatus.DOWNLOADED;
+		} catch (MalformedURLException e) {
+			plugin.logger.log(Level.SEVERE, e.getMessage());
+		} catch (IOException e) {
+			plugin.logger.log(Level.SEVERE, "Could not download tile " + path, e);
+		}
+		dest.delete(); // Do not leave a partially downloaded tile behind
+		return TileStatus.FAILED;
+	}
+	
+	/**
+	 * Download a single Dynmap tile to <code>dest</code>.
+	 *
+	 * @param config the export configuration
+	 * @param tile   the tile coordinates
+	 * @param dest   the destination file to download to.
 	 * @return whether the download succeeded
 	 */
-	private boolean download(String path, @NotNull File dest) {
+	private boolean download(@NotNull ExportConfig config, @NotNull TileCoords tile, @NotNull File dest) {
+		String path = Paths.getDynmapTilePath(config, tile);
 		try {
-			URL url = new URL(String.format("http://%s/%s", plugin.dynmapHost, path));
-			InputStream inputStream = url.openStream();
 			dest.getParentFile().mkdirs(); // Make all directories on path to file
-			long bytesWritten = Files.copy(inputStream, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			long bytesWritten = plugin.tileSource.fetch(config, tile, dest, null).bytes;
 			plugin.logger.log(Level.CONFIG, "Downloaded tile " + path);
 			if (bytesWritten == 0) plugin.logger.log(Level.WARNING, "Tile was 0 bytes!");
 			return bytesWritten > 0;
@@ -151,7 +433,33 @@ public class Downloader {
 		} catch (IOException e) {
 			plugin.logger.log(Level.SEVERE, "Could not download tile " + path, e);
 		}
+		dest.delete(); // Do not leave a partially downloaded tile behind
 		return false;
 	}
 	
+	public enum TileStatus {
+		/**
+		 * The tile was downloaded from Dynmap
+		 */
+		DOWNLOADED,
+		/**
+		 * Dynmap did not modify the tile since the previous export, it was copied
+		 */
+		NOT_MODIFIED,
+		/**
+		 * The tile could not be downloaded
+		 */
+		FAILED,
+	}
+	
+	/**
+	 * Thrown when the tiles of an export could not be downloaded, so that it
+	 * is unknown whether the map changed.
+	 */
+	public static class DownloadFailedException extends IOException {
+		public DownloadFailedException(String message) {
+			super(message);
+		}
+	}
+	
 }
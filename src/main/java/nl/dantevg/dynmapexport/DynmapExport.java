@@ -1,7 +1,6 @@
 package nl.dantevg.dynmapexport;
 
-import com.google.gson.Gson;
-import nl.dantevg.dynmapexport.location.TileCoords;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import nl.dantevg.dynmapexport.location.WorldCoords;
 import org.bukkit.Bukkit;
 import org.bukkit.command.CommandSender;
@@ -12,31 +11,49 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.ConnectException;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.time.Duration;
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.Objects;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 public class DynmapExport extends JavaPlugin {
 	public static final int Y_LEVEL = 64;
+	private static final int DEFAULT_PARALLEL_EXPORTS = 2;
+	private static final Duration DEFAULT_UPDATE_POLL_INTERVAL = Duration.ofSeconds(5);
+	private static final Duration DEFAULT_UPDATE_MAX_GAP = Duration.ofMinutes(1);
 	
 	FileConfiguration config;
 	Logger logger;
 	
 	protected @Nullable DynmapWebAPI.Configuration worldConfiguration;
+	protected DynmapHttpClient httpClient;
+	protected TileSource tileSource;
 	protected ImageTresholdCache imageTresholdCache;
+	protected TileStore tileStore;
 	protected ExportScheduler exportScheduler;
 	protected Downloader downloader;
 	protected TileCombiner tileCombiner;
+	protected TilePyramid tilePyramid;
+	protected ExportHistory exportHistory;
+	protected RetentionEngine retentionEngine;
+	protected ExportMetrics exportMetrics;
+	protected @Nullable DirtyTileTracker dirtyTileTracker;
 	protected List<ExportConfig> exportConfigs;
+	/**
+	 * Limits the number of exports doing CPU-heavy work (change detection,
+	 * zoom levels and combining) at the same time
+	 */
+	protected Semaphore cpuPermits;
+	private ExecutorService exportExecutor;
+	private final Map<File, ExportManifest> manifests = new ConcurrentHashMap<>();
 	
 	protected String dynmapHost;
 	
@@ -51,18 +68,36 @@ public class DynmapExport extends JavaPlugin {
 		saveDefaultConfig();
 		
 		dynmapHost = config.getString("dynmap-host");
+		httpClient = DynmapHttpClient.fromConfig(this);
+		tileSource = TileSource.fromConfig(this);
 		
 		// Register commands
 		CommandDynmapExport command = new CommandDynmapExport(this);
 		getCommand("dynmapexport").setExecutor(command);
 		getCommand("dynmapexport").setTabCompleter(command);
 		
+		exportMetrics = ExportMetrics.fromConfig(this);
 		imageTresholdCache = new ImageTresholdCache(this);
+		tileStore = new TileStore(this);
 		exportScheduler = new ExportScheduler(this);
 		downloader = new Downloader(this);
 		tileCombiner = new TileCombiner(this);
+		tilePyramid = new TilePyramid(this, tileCombiner.getEncodeExecutor());
+		exportHistory = new ExportHistory(this);
+		retentionEngine = new RetentionEngine(this);
+		
+		int nParallelExports = Math.max(1, config.getInt("parallel-exports", DEFAULT_PARALLEL_EXPORTS));
+		exportExecutor = Executors.newFixedThreadPool(nParallelExports, new ThreadFactoryBuilder()
+				.setNameFormat("DynmapExport export #%d")
+				.setDaemon(true)
+				.build());
+		cpuPermits = new Semaphore(Math.max(1, config.getInt("cpu-threads",
+				Runtime.getRuntime().availableProcessors())));
+		
+		manifests.clear();
 		
 		worldConfiguration = getDynmapConfiguration();
+		dirtyTileTracker = null;
 		if (worldConfiguration == null) {
 			exportConfigs = new ArrayList<>();
 			return;
@@ -72,38 +107,84 @@ public class DynmapExport extends JavaPlugin {
 				.map(this::getExportConfig)
 				.filter(Objects::nonNull)
 				.collect(Collectors.toList());
+		exportConfigs.forEach(retentionEngine::schedule);
+		exportScheduler.start(exportConfigs);
+		startDirtyTileTracker();
+	}
+	
+	@Override
+	public void onDisable() {
+		if (exportExecutor != null) exportExecutor.shutdownNow();
+		if (downloader != null) downloader.shutdown();
+		if (tileCombiner != null) tileCombiner.shutdown();
+		if (retentionEngine != null) retentionEngine.shutdown();
+		if (exportHistory != null) exportHistory.close();
+		if (tileSource != null) tileSource.close();
+		if (exportMetrics != null) exportMetrics.shutdown();
 	}
 	
 	/**
 	 * Export all configurations. <b>Should be run as an async task to prevent
-	 * server lag!</b>
+	 * server lag!</b> Configurations of different maps are exported
+	 * concurrently, configurations of the same map one after the other.
 	 *
 	 * @param commandSender where to send update and completion logs to, if any
 	 * @return the number of configs that are exported (i.e. they had enough changes)
 	 */
 	public int export(@Nullable CommandSender commandSender) {
-		int nExported = 0;
+		return export(exportConfigs, commandSender);
+	}
+	
+	/**
+	 * Export some configurations. <b>Should be run as an async task to prevent
+	 * server lag!</b>
+	 *
+	 * @param configs       the configurations to export
+	 * @param commandSender where to send update and completion logs to, if any
+	 * @return the number of configs that are exported (i.e. they had enough changes)
+	 * @see #export(CommandSender)
+	 */
+	public int export(@NotNull List<ExportConfig> configs, @Nullable CommandSender commandSender) {
+		AtomicInteger nExportedCounter = new AtomicInteger();
 		Instant now = Instant.now();
-		for (ExportConfig exportConfig : exportConfigs) {
-			if (commandSender != null) {
-				commandSender.sendMessage(String.format("Exporting map %s:%s",
-						exportConfig.world.name, exportConfig.map.name));
+		try (RunTileCache runCache = new RunTileCache(this)) {
+			// Configurations of the same map share the export directory and manifest
+			Map<File, List<ExportConfig>> configsByMap = configs.stream()
+					.collect(Collectors.groupingBy(exportConfig -> Paths.getLocalMapDir(this, exportConfig),
+							LinkedHashMap::new, Collectors.toList()));
+			
+			List<Future<?>> exports = new ArrayList<>();
+			try {
+				for (List<ExportConfig> mapConfigs : configsByMap.values()) {
+					exports.add(exportExecutor.submit(() -> {
+						for (ExportConfig exportConfig : mapConfigs) {
+							ExportResult result = export(exportConfig, now, runCache, commandSender);
+							if (result != null) nExportedCounter.incrementAndGet();
+						}
+					}));
+				}
+			} catch (RejectedExecutionException e) {
+				logger.log(Level.WARNING, "The plugin is disabled, not starting the remaining exports");
 			}
 			
-			Map<TileCoords, File> downloadedTiles = downloader.downloadTiles(exportConfig, now);
-			if (downloadedTiles != null && downloadedTiles.size() > 0) {
-				nExported++;
-				if (config.getBoolean("auto-combine")
-						&& tileCombiner.combineAndSave(exportConfig, now)) {
-					downloader.removeOldExportDirs(exportConfig);
+			for (Future<?> export : exports) {
+				try {
+					export.get();
+				} catch (InterruptedException e) {
+					exports.forEach(future -> future.cancel(true));
+					Thread.currentThread().interrupt();
+					break;
+				} catch (ExecutionException e) {
+					logger.log(Level.SEVERE, "Could not export", e.getCause());
 				}
 			}
 		}
 		
+		int nExported = nExportedCounter.get();
 		logger.log(Level.INFO, String.format("Exported %d configs, skipped %d",
-				nExported, exportConfigs.size() - nExported));
+				nExported, configs.size() - nExported));
 		if (commandSender != null) commandSender.sendMessage(String.format("Exported %d configs, skipped %d",
-				nExported, exportConfigs.size() - nExported));
+				nExported, configs.size() - nExported));
 		return nExported;
 	}
 	
@@ -117,6 +198,83 @@ public class DynmapExport extends JavaPlugin {
 		return export(null);
 	}
 	
+	/**
+	 * Export a single configuration.
+	 *
+	 * @param exportConfig  the export configuration
+	 * @param now           the time of the export
+	 * @param runCache      the tiles fetched during this run
+	 * @param commandSender where to send progress logs to, if any
+	 * @return the result of the export, or null if it did not have enough
+	 * changes or failed
+	 */
+	private @Nullable ExportResult export(@NotNull ExportConfig exportConfig, @NotNull Instant now,
+	                       @NotNull RunTileCache runCache, @Nullable CommandSender commandSender) {
+		String name = exportConfig.world.name + ":" + exportConfig.map.name;
+		if (commandSender != null) commandSender.sendMessage("Exporting map " + name);
+		
+		// Old exports of the map must not be removed while it is exported
+		Lock historyLock = getManifest(exportConfig).getHistoryLock();
+		historyLock.lock();
+		exportMetrics.start(exportConfig);
+		boolean exported = false;
+		try {
+			ExportResult result;
+			try {
+				result = downloader.downloadTiles(exportConfig, now, runCache);
+			} catch (Downloader.DownloadFailedException e) {
+				// Do not adapt the export interval, the changes are unknown
+				logger.log(Level.WARNING, e.getMessage());
+				if (commandSender != null) {
+					commandSender.sendMessage("Could not export map " + name + ": " + e.getMessage());
+				}
+				return null;
+			}
+			exportScheduler.exported(exportConfig, result);
+			if (result == null || result.tiles.isEmpty()) {
+				if (commandSender != null) commandSender.sendMessage("Skipped map " + name + ", not enough changes");
+				return null;
+			}
+			
+			if (commandSender != null) {
+				commandSender.sendMessage(String.format(Locale.ROOT, "Downloaded map %s, %.1f%% of tiles changed",
+						name, result.changes.getChangeFraction() * 100));
+			}
+			cpuPermits.acquireUninterruptibly();
+			try {
+				long start = System.nanoTime();
+				boolean pyramidBuilt = tilePyramid.build(result);
+				exportMetrics.addTime(exportConfig, ExportMetrics.Phase.PYRAMID, System.nanoTime() - start);
+				if (!pyramidBuilt && commandSender != null) {
+					commandSender.sendMessage("Could not generate all zoomed-out tiles of map " + name
+							+ ", see the server log");
+				}
+				if (config.getBoolean("auto-combine")) {
+					start = System.nanoTime();
+					boolean combined = tileCombiner.combineAndSave(result);
+					exportMetrics.addTime(exportConfig, ExportMetrics.Phase.COMBINE, System.nanoTime() - start);
+					if (combined && commandSender != null) commandSender.sendMessage("Combined map " + name);
+				}
+				start = System.nanoTime();
+				exportHistory.compact(exportConfig);
+				exportHistory.pack(exportConfig);
+				exportMetrics.addTime(exportConfig, ExportMetrics.Phase.HISTORY, System.nanoTime() - start);
+			} finally {
+				cpuPermits.release();
+			}
+			exported = true;
+			return result;
+		} finally {
+			historyLock.unlock();
+			exportMetrics.finish(exportConfig, exported);
+			if (exported) {
+				retentionEngine.schedule(exportConfig);
+			} else {
+				retentionEngine.retryDeferred(exportConfig);
+			}
+		}
+	}
+	
 	public void reload() {
 		logger.log(Level.INFO, "Reload: disabling plugin");
 		setEnabled(false);
@@ -127,6 +285,33 @@ public class DynmapExport extends JavaPlugin {
 		logger.log(Level.INFO, "Reload complete");
 	}
 	
+	/**
+	 * Get the export manifest of the map of an export configuration. The
+	 * manifest is loaded once and shared by all configurations of the map.
+	 *
+	 * @param config the export configuration
+	 * @return the manifest
+	 */
+	protected @NotNull ExportManifest getManifest(@NotNull ExportConfig config) {
+		return manifests.computeIfAbsent(Paths.getLocalMapDir(this, config),
+				mapDir -> ExportManifest.load(this, config));
+	}
+	
+	/**
+	 * Start polling Dynmap for updated tiles, if <code>update-feed</code> is
+	 * enabled.
+	 */
+	private void startDirtyTileTracker() {
+		if (!config.getBoolean("update-feed.enabled", false) || exportConfigs.isEmpty()) return;
+		
+		dirtyTileTracker = new DirtyTileTracker(httpClient, logger,
+				getConfigDuration("update-feed.max-gap", DEFAULT_UPDATE_MAX_GAP));
+		dirtyTileTracker.track(exportConfigs);
+		long interval = Math.max(1, getConfigDuration("update-feed.poll-interval", DEFAULT_UPDATE_POLL_INTERVAL)
+				.toMillis() / 50); // 20 ticks per second
+		Bukkit.getScheduler().runTaskTimerAsynchronously(this, dirtyTileTracker::poll, 0, interval);
+	}
+	
 	/**
 	 * Download the world configuration from Dynmap, which is used to determine
 	 * the tile coordinates from world coordinates.
@@ -135,9 +320,7 @@ public class DynmapExport extends JavaPlugin {
 	 */
 	private @Nullable DynmapWebAPI.Configuration getDynmapConfiguration() {
 		try {
-			URL url = new URL(String.format("http://%s/up/configuration", dynmapHost));
-			InputStreamReader reader = new InputStreamReader(url.openStream());
-			return new Gson().fromJson(reader, DynmapWebAPI.Configuration.class);
+			return httpClient.getJson("up/configuration", DynmapWebAPI.Configuration.class);
 		} catch (MalformedURLException e) {
 			logger.log(Level.SEVERE, e.getMessage());
 		} catch (ConnectException e) {
@@ -148,10 +331,32 @@ public class DynmapExport extends JavaPlugin {
 		return null;
 	}
 	
+	/**
+	 * Get a duration from the config, in the simplified ISO-8601 format that is
+	 * also used for the schedule (e.g. <code>1h30m</code>, <code>0.5s</code>).
+	 *
+	 * @param path the path of the config entry
+	 * @param def  the default duration, used when the entry is absent or invalid
+	 * @return the parsed duration
+	 */
+	protected @NotNull Duration getConfigDuration(@NotNull String path, @NotNull Duration def) {
+		String value = config.getString(path);
+		if (value == null) return def;
+		try {
+			return Duration.parse("PT" + value);
+		} catch (DateTimeParseException e) {
+			logger.log(Level.WARNING, String.format("Invalid duration format for %s: %s (only seconds, minutes, hours allowed!)",
+					path, value));
+			return def;
+		}
+	}
+	
 	private @Nullable ExportConfig getExportConfig(@NotNull Map<?, ?> exportMap) {
 		String worldName = (String) exportMap.get("world");
 		String mapName = (String) exportMap.get("map");
 		int zoom = (int) exportMap.get("zoom");
+		Object pyramidLevels = exportMap.get("pyramid-levels");
+		Object scheduleStr = exportMap.get("schedule");
 		Map<String, Integer> fromMap = (Map<String, Integer>) exportMap.get("from");
 		Map<String, Integer> toMap = (Map<String, Integer>) exportMap.get("to");
 		
@@ -184,7 +389,18 @@ public class DynmapExport extends JavaPlugin {
 			return null;
 		}
 		
-		return new ExportConfig(world, map, zoom, from, to);
+		Duration schedule = null;
+		if (scheduleStr != null) {
+			try {
+				schedule = Duration.parse("PT" + scheduleStr);
+			} catch (DateTimeParseException e) {
+				logger.log(Level.WARNING, String.format("Invalid schedule format for export of %s:%s: %s (only seconds, minutes, hours allowed!), using the global schedule",
+						worldName, mapName, scheduleStr));
+			}
+		}
+		
+		return new ExportConfig(world, map, zoom,
+				(pyramidLevels instanceof Integer) ? Math.max(0, (int) pyramidLevels) : 0, schedule, from, to);
 	}
 	
 	protected @NotNull String debug() {
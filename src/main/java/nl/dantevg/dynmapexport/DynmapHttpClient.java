@@ -0,0 +1,261 @@
+package nl.dantevg.dynmapexport;
+
+import com.google.gson.Gson;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HTTP client for all requests to the Dynmap web server. Uses
+ * {@link HttpURLConnection}, which keeps connections to Dynmap alive and
+ * re-uses them as long as every response body is read to the end and closed.
+ * Transient failures (connection problems, timeouts, 5xx responses) are retried
+ * with a bounded exponential backoff.
+ */
+public class DynmapHttpClient {
+	private static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(5);
+	private static final Duration DEFAULT_READ_TIMEOUT = Duration.ofSeconds(30);
+	private static final int DEFAULT_RETRIES = 3;
+	private static final Duration DEFAULT_RETRY_BACKOFF = Duration.ofMillis(500);
+	private static final Duration DEFAULT_MAX_RETRY_BACKOFF = Duration.ofSeconds(10);
+	
+	private final String host;
+	private final Logger logger;
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final int retries;
+	private final long retryBackoff;
+	private final long maxRetryBackoff;
+	
+	public DynmapHttpClient(@NotNull String host, @NotNull Logger logger,
+	                        @NotNull Duration connectTimeout, @NotNull Duration readTimeout,
+	                        int retries, @NotNull Duration retryBackoff, @NotNull Duration maxRetryBackoff) {
+		this.host = host;
+		this.logger = logger;
+		this.connectTimeout = (int) connectTimeout.toMillis();
+		this.readTimeout = (int) readTimeout.toMillis();
+		this.retries = Math.max(0, retries);
+		this.retryBackoff = retryBackoff.toMillis();
+		this.maxRetryBackoff = maxRetryBackoff.toMillis();
+	}
+	
+	/**
+	 * Create a HTTP client from the <code>dynmap-host</code> and
+	 * <code>http</code> sections of the plugin config.
+	 *
+	 * @param plugin the DynmapExport plugin
+	 * @return the HTTP client
+	 */
+	public static @NotNull DynmapHttpClient fromConfig(@NotNull DynmapExport plugin) {
+		return new DynmapHttpClient(plugin.dynmapHost, plugin.logger,
+				plugin.getConfigDuration("http.connect-timeout", DEFAULT_CONNECT_TIMEOUT),
+				plugin.getConfigDuration("http.read-timeout", DEFAULT_READ_TIMEOUT),
+				plugin.config.getInt("http.retries", DEFAULT_RETRIES),
+				plugin.getConfigDuration("http.retry-backoff", DEFAULT_RETRY_BACKOFF),
+				plugin.getConfigDuration("http.max-retry-backoff", DEFAULT_MAX_RETRY_BACKOFF));
+	}
+	
+	/**
+	 * Download the file at <code>path</code> on the Dynmap web server to <code>dest</code>.
+	 *
+	 * @param path the path on the Dynmap web server, without leading slash
+	 * @param dest the destination file, which will be overwritten
+	 * @return the number of bytes written
+	 * @throws IOException when the download still failed after retrying
+	 */
+	public long download(@NotNull String path, @NotNull File dest) throws IOException {
+		return download(path, dest, null).bytes;
+	}
+	
+	/**
+	 * Download the file at <code>path</code> on the Dynmap web server to
+	 * <code>dest</code>, unless it was not modified since a previous download.
+	 *
+	 * @param path       the path on the Dynmap web server, without leading slash
+	 * @param dest       the destination file, which will be overwritten
+	 * @param validators the validators of the previous download, if any. When
+	 *                   given, <code>dest</code> is left untouched if Dynmap
+	 *                   responds with 304 Not Modified.
+	 * @return the result of the download
+	 * @throws IOException when the download still failed after retrying
+	 */
+	public @NotNull Download download(@NotNull String path, @NotNull File dest, @Nullable Validators validators) throws IOException {
+		return withRetries(path, () -> {
+			HttpURLConnection connection = open(path, validators);
+			if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				drain(connection.getInputStream());
+				return new Download(0, validators, true);
+			}
+			try (InputStream inputStream = connection.getInputStream()) {
+				long bytes = Files.copy(inputStream, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				return new Download(bytes, new Validators(
+						connection.getHeaderField("Last-Modified"),
+						connection.getHeaderField("ETag")), false);
+			}
+		});
+	}
+	
+	/**
+	 * Get and parse the JSON document at <code>path</code> on the Dynmap web server.
+	 *
+	 * @param path the path on the Dynmap web server, without leading slash
+	 * @param type the class to parse the JSON into
+	 * @return the parsed JSON document
+	 * @throws IOException when the request still failed after retrying
+	 */
+	public <T> T getJson(@NotNull String path, @NotNull Class<T> type) throws IOException {
+		return withRetries(path, () -> {
+			HttpURLConnection connection = open(path, null);
+			try (Reader reader = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+				return new Gson().fromJson(reader, type);
+			}
+		});
+	}
+	
+	/**
+	 * Open a connection to <code>path</code> and check its response status.
+	 * Error responses are read and closed, so that the connection can be re-used.
+	 * When <code>validators</code> are given, the request is made conditional.
+	 */
+	private @NotNull HttpURLConnection open(@NotNull String path, @Nullable Validators validators) throws IOException {
+		URL url = new URL(String.format("http://%s/%s", host, path));
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		if (validators != null && validators.etag != null) {
+			connection.setRequestProperty("If-None-Match", validators.etag);
+		}
+		if (validators != null && validators.lastModified != null) {
+			connection.setRequestProperty("If-Modified-Since", validators.lastModified);
+		}
+		
+		int status = connection.getResponseCode();
+		if (status >= 400) {
+			drain(connection.getErrorStream());
+			throw new HttpStatusException(path, status);
+		}
+		return connection;
+	}
+	
+	private <T> T withRetries(@NotNull String path, @NotNull Request<T> request) throws IOException {
+		for (int attempt = 0; ; attempt++) {
+			try {
+				return request.run();
+			} catch (IOException e) {
+				if (attempt >= retries || !isTransient(e)) throw e;
+				long backoff = getBackoff(attempt);
+				logger.log(Level.FINE, String.format("Request for %s failed (%s), retrying in %d ms",
+						path, e, backoff));
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting to retry " + path);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Get the time to wait before the next attempt: exponential in the number
+	 * of attempts, bounded by the maximum backoff, with some random jitter so
+	 * that parallel downloads do not all retry at the same moment.
+	 */
+	private long getBackoff(int attempt) {
+		long backoff = Math.min(maxRetryBackoff, retryBackoff << Math.min(attempt, 30));
+		return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+	}
+	
+	private static boolean isTransient(@NotNull IOException e) {
+		if (e instanceof HttpStatusException) {
+			int status = ((HttpStatusException) e).status;
+			return status == 408 || status == 429 || status >= 500;
+		}
+		if (e instanceof SocketTimeoutException) return true;
+		return !(e instanceof MalformedURLException || e instanceof InterruptedIOException);
+	}
+	
+	private static void drain(InputStream inputStream) {
+		if (inputStream == null) return;
+		try (InputStream in = inputStream) {
+			byte[] buffer = new byte[1024];
+			while (in.read(buffer) >= 0) ;
+		} catch (IOException ignored) {
+			// Connection will simply not be re-used
+		}
+	}
+	
+	@FunctionalInterface
+	private interface Request<T> {
+		T run() throws IOException;
+	}
+	
+	/**
+	 * The <code>Last-Modified</code> and <code>ETag</code> response headers of a
+	 * download, used to make a later request for the same file conditional.
+	 */
+	public static class Validators {
+		public final @Nullable String lastModified;
+		public final @Nullable String etag;
+		
+		public Validators(@Nullable String lastModified, @Nullable String etag) {
+			this.lastModified = lastModified;
+			this.etag = etag;
+		}
+		
+		public boolean isEmpty() {
+			return lastModified == null && etag == null;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			Validators that = (Validators) o;
+			return Objects.equals(lastModified, that.lastModified) && Objects.equals(etag, that.etag);
+		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hash(lastModified, etag);
+		}
+	}
+	
+	public static class Download {
+		/**
+		 * The number of bytes written to the destination file, 0 if not modified.
+		 */
+		public final long bytes;
+		public final @Nullable Validators validators;
+		public final boolean notModified;
+		
+		public Download(long bytes, @Nullable Validators validators, boolean notModified) {
+			this.bytes = bytes;
+			this.validators = validators;
+			this.notModified = notModified;
+		}
+	}
+	
+	public static class HttpStatusException extends IOException {
+		public final int status;
+		
+		public HttpStatusException(String path, int status) {
+			super(String.format("Dynmap responded with HTTP %d for %s", status, path));
+			this.status = status;
+		}
+	}
+	
+}
@@ -58,4 +58,29 @@ public class DynmapWebAPI {
 		}
 	}
 	
+	/**
+	 * The response of <code>up/world/{world}/{timestamp}</code>: everything
+	 * that changed in the world since the timestamp.
+	 */
+	public static class WorldUpdates {
+		/**
+		 * The current time of the Dynmap server, to request the next updates since
+		 */
+		public long timestamp;
+		public List<Update> updates;
+	}
+	
+	public static class Update {
+		/**
+		 * The kind of update, <code>"tile"</code> for re-rendered tiles
+		 */
+		public String type;
+		/**
+		 * For tile updates, the path of the tile below the world's tile
+		 * directory (e.g. <code>"flat/0_0/z_2_4.png"</code>)
+		 */
+		public String name;
+		public long timestamp;
+	}
+	
 }
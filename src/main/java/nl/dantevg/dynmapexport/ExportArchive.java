@@ -0,0 +1,305 @@
+package nl.dantevg.dynmapexport;
+
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * All tiles of a single export packed into one file, so that an export is a
+ * single file to list, copy or remove instead of one file per tile. The file
+ * is written append-only:
+ * <ol>
+ *     <li>the tile images, one after the other</li>
+ *     <li>the index, with for every tile its zoom level, x and y coordinate
+ *     (ints), offset (long) and length (int)</li>
+ *     <li>the footer: the offset of the index (long), the number of tiles
+ *     (int) and the magic bytes <code>DXTILES1</code></li>
+ * </ol>
+ * An open archive keeps its file open and reads tiles with positional reads,
+ * which may run concurrently. It is not memory-mapped, because a mapping
+ * cannot be released before it is garbage collected, which keeps the file
+ * from being replaced or removed on some platforms. The archive must still be
+ * closed before its file is replaced or removed: reading a closed archive
+ * throws a {@link java.nio.channels.ClosedChannelException}, and on Windows an
+ * open archive cannot be replaced or removed at all. On other platforms, an
+ * archive that is not closed keeps reading the old file.
+ */
+public class ExportArchive implements Closeable {
+	private static final byte[] MAGIC = "DXTILES1".getBytes(StandardCharsets.US_ASCII);
+	private static final int INDEX_ENTRY_SIZE = 3 * 4 + 8 + 4;
+	private static final int FOOTER_SIZE = 8 + 4 + MAGIC.length;
+	
+	private final @NotNull File file;
+	private final @NotNull FileChannel channel;
+	private final Map<Key, long[]> index = new HashMap<>();
+	
+	private ExportArchive(@NotNull File file, @NotNull FileChannel channel) throws IOException {
+		this.file = file;
+		this.channel = channel;
+		
+		long size = channel.size();
+		if (size < FOOTER_SIZE) throw new IOException("not a tile archive: " + file);
+		ByteBuffer footer = read(size - FOOTER_SIZE, FOOTER_SIZE);
+		long indexOffset = footer.getLong();
+		int nTiles = footer.getInt();
+		byte[] magic = new byte[MAGIC.length];
+		footer.get(magic);
+		if (!Arrays.equals(magic, MAGIC) || indexOffset < 0
+				|| indexOffset + (long) nTiles * INDEX_ENTRY_SIZE != size - FOOTER_SIZE) {
+			throw new IOException("not a tile archive: " + file);
+		}
+		
+		ByteBuffer entries = read(indexOffset, nTiles * INDEX_ENTRY_SIZE);
+		for (int i = 0; i < nTiles; i++) {
+			int zoom = entries.getInt();
+			TileCoords tile = new TileCoords(entries.getInt(), entries.getInt());
+			long offset = entries.getLong();
+			int length = entries.getInt();
+			if (offset < 0 || length < 0 || offset + length > indexOffset) {
+				throw new IOException("corrupt tile archive: " + file);
+			}
+			index.put(new Key(tile, zoom), new long[] {offset, length});
+		}
+	}
+	
+	/**
+	 * Open an archive and read its index.
+	 *
+	 * @param file the archive file
+	 * @return the archive
+	 * @throws IOException when the file could not be read or is not an archive
+	 */
+	public static @NotNull ExportArchive open(@NotNull File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			return new ExportArchive(file, channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	public @NotNull File getFile() {
+		return file;
+	}
+	
+	/**
+	 * @return the tiles in the archive
+	 */
+	public @NotNull Set<Key> getTiles() {
+		return Collections.unmodifiableSet(index.keySet());
+	}
+	
+	public boolean contains(@NotNull TileCoords tile, int zoom) {
+		return index.containsKey(new Key(tile, zoom));
+	}
+	
+	/**
+	 * @param tile the tile coordinates
+	 * @param zoom the zoom-out level of the tile
+	 * @return the image file of the tile, or null if the archive does not have it
+	 * @throws IOException when the tile could not be read, or the archive is closed
+	 */
+	public @Nullable ByteBuffer getTile(@NotNull TileCoords tile, int zoom) throws IOException {
+		long[] location = index.get(new Key(tile, zoom));
+		return (location != null) ? read(location[0], (int) location[1]) : null;
+	}
+	
+	/**
+	 * Close the file of the archive. Tiles that were read stay valid.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+	
+	private @NotNull ByteBuffer read(long offset, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, offset + buffer.position());
+			if (n < 0) throw new EOFException("unexpected end of tile archive " + file);
+		}
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**
+	 * @param buffer the bytes to read
+	 * @return a stream that reads the remaining bytes of <code>buffer</code>
+	 */
+	public static @NotNull InputStream asInputStream(@NotNull ByteBuffer buffer) {
+		ByteBuffer data = buffer.duplicate();
+		return new InputStream() {
+			@Override
+			public int read() {
+				return data.hasRemaining() ? data.get() & 0xFF : -1;
+			}
+			
+			@Override
+			public int read(byte @NotNull [] b, int off, int len) {
+				if (len == 0) return 0;
+				if (!data.hasRemaining()) return -1;
+				int n = Math.min(len, data.remaining());
+				data.get(b, off, n);
+				return n;
+			}
+			
+			@Override
+			public int available() {
+				return data.remaining();
+			}
+		};
+	}
+	
+	/**
+	 * Get the tile of a local tile file name like
+	 * <code>{zoom}_{tileX}_{tileY}.png</code>, see
+	 * {@link Paths#getLocalTileName(TileCoords, int)}.
+	 *
+	 * @param name the file name
+	 * @return the tile, or null if the name is not a tile file name
+	 */
+	public static @Nullable Key parseTileName(@NotNull String name) {
+		if (!name.endsWith(".png")) return null;
+		name = name.substring(0, name.length() - ".png".length());
+		int zoom = 0;
+		while (zoom < name.length() && name.charAt(zoom) == 'z') zoom++;
+		if (zoom > 0) {
+			if (zoom >= name.length() || name.charAt(zoom) != '_') return null;
+			name = name.substring(zoom + 1);
+		}
+		
+		String[] coords = name.split("_");
+		if (coords.length != 2) return null;
+		try {
+			return new Key(new TileCoords(Integer.parseInt(coords[0]), Integer.parseInt(coords[1])), zoom);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * A tile at a zoom level.
+	 */
+	public static class Key {
+		public final @NotNull TileCoords tile;
+		public final int zoom;
+		
+		public Key(@NotNull TileCoords tile, int zoom) {
+			this.tile = tile;
+			this.zoom = zoom;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			Key key = (Key) o;
+			return zoom == key.zoom && tile.equals(key.tile);
+		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hash(tile, zoom);
+		}
+		
+		@Override
+		public @NotNull String toString() {
+			return tile + "@" + zoom;
+		}
+	}
+	
+	/**
+	 * Writes an archive, one tile at a time.
+	 */
+	public static class Writer implements Closeable {
+		private final FileChannel channel;
+		private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+		private final DataOutputStream indexOut = new DataOutputStream(index);
+		private final Set<Key> tiles = new HashSet<>();
+		private long offset = 0;
+		
+		/**
+		 * @param file the archive file to create or overwrite
+		 * @throws IOException when the file could not be opened
+		 */
+		public Writer(@NotNull File file) throws IOException {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		
+		/**
+		 * Append a tile. Tiles that were added already are ignored.
+		 *
+		 * @param tile the tile coordinates
+		 * @param zoom the zoom-out level of the tile
+		 * @param data the image file of the tile
+		 * @return whether the tile was added
+		 * @throws IOException when the tile could not be written
+		 */
+		public boolean add(@NotNull TileCoords tile, int zoom, @NotNull ByteBuffer data) throws IOException {
+			if (!tiles.add(new Key(tile, zoom))) return false;
+			ByteBuffer source = data.duplicate();
+			int length = source.remaining();
+			while (source.hasRemaining()) channel.write(source);
+			addToIndex(tile, zoom, length);
+			return true;
+		}
+		
+		/**
+		 * Append a tile from a file. Tiles that were added already are ignored.
+		 *
+		 * @param tile the tile coordinates
+		 * @param zoom the zoom-out level of the tile
+		 * @param file the image file of the tile
+		 * @return whether the tile was added
+		 * @throws IOException when the tile could not be read or written
+		 */
+		public boolean add(@NotNull TileCoords tile, int zoom, @NotNull File file) throws IOException {
+			if (!tiles.add(new Key(tile, zoom))) return false;
+			try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				long length = source.size();
+				for (long n = 0; n < length; ) n += source.transferTo(n, length - n, channel);
+				addToIndex(tile, zoom, (int) length);
+			}
+			return true;
+		}
+		
+		private void addToIndex(@NotNull TileCoords tile, int zoom, int length) throws IOException {
+			indexOut.writeInt(zoom);
+			indexOut.writeInt(tile.x);
+			indexOut.writeInt(tile.y);
+			indexOut.writeLong(offset);
+			indexOut.writeInt(length);
+			offset += length;
+		}
+		
+		/**
+		 * Write the index and footer, and flush the archive to disk.
+		 *
+		 * @throws IOException when the index could not be written
+		 */
+		public void finish() throws IOException {
+			DataOutputStream footerOut = new DataOutputStream(index);
+			footerOut.writeLong(offset);
+			footerOut.writeInt(tiles.size());
+			footerOut.write(MAGIC);
+			ByteBuffer end = ByteBuffer.wrap(index.toByteArray());
+			while (end.hasRemaining()) channel.write(end);
+			channel.force(false);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+	
+}
@@ -3,23 +3,48 @@ package nl.dantevg.dynmapexport;
 import nl.dantevg.dynmapexport.location.TileCoords;
 import nl.dantevg.dynmapexport.location.WorldCoords;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
 
 public class ExportConfig {
 	public final DynmapWebAPI.World world;
 	public final DynmapWebAPI.Map map;
 	public final int zoom;
+	/**
+	 * The number of coarser zoom levels to generate locally from the
+	 * downloaded tiles
+	 */
+	public final int pyramidLevels;
+	/**
+	 * The interval to export this configuration at, or null to use the global
+	 * schedule
+	 */
+	public final @Nullable Duration schedule;
 	
 	public final TileCoords from;
 	public final TileCoords to;
 	
-	public ExportConfig(DynmapWebAPI.World world, DynmapWebAPI.Map map, int zoom, TileCoords from, TileCoords to) {
+	public ExportConfig(DynmapWebAPI.World world, DynmapWebAPI.Map map, int zoom, int pyramidLevels,
+	                    @Nullable Duration schedule, TileCoords from, TileCoords to) {
 		this.world = world;
 		this.map = map;
 		this.zoom = zoom;
+		this.pyramidLevels = pyramidLevels;
+		this.schedule = schedule;
 		this.from = new TileCoords(Math.min(from.x, to.x), Math.min(from.y, to.y)).floorToZoom(zoom);
 		this.to = new TileCoords(Math.max(from.x, to.x), Math.max(from.y, to.y)).ceilToZoom(zoom);
 	}
 	
+	public ExportConfig(DynmapWebAPI.World world, DynmapWebAPI.Map map, int zoom, int pyramidLevels,
+	                    TileCoords from, TileCoords to) {
+		this(world, map, zoom, pyramidLevels, null, from, to);
+	}
+	
+	public ExportConfig(DynmapWebAPI.World world, DynmapWebAPI.Map map, int zoom, TileCoords from, TileCoords to) {
+		this(world, map, zoom, 0, from, to);
+	}
+	
 	public ExportConfig(DynmapWebAPI.World world, DynmapWebAPI.Map map, int zoom, TileCoords tile) {
 		this(world, map, zoom, tile, tile);
 	}
@@ -28,8 +53,22 @@ public class ExportConfig {
 		this(world, map, zoom, from.toTileCoords(map, zoom), to.toTileCoords(map, zoom));
 	}
 	
+	public ExportConfig(DynmapWebAPI.World world, DynmapWebAPI.Map map, int zoom, int pyramidLevels,
+	                    @Nullable Duration schedule, @NotNull WorldCoords from, @NotNull WorldCoords to) {
+		this(world, map, zoom, pyramidLevels, schedule, from.toTileCoords(map, zoom), to.toTileCoords(map, zoom));
+	}
+	
 	public ExportConfig(DynmapWebAPI.World world, DynmapWebAPI.Map map, int zoom, @NotNull WorldCoords coords) {
 		this(world, map, zoom, coords.toTileCoords(map, zoom));
 	}
 	
+	/**
+	 * @return an identifier of this configuration that stays the same between
+	 * restarts, as long as the configuration does not change
+	 * (e.g. <code>world/flat/0/-2,-2/1,1</code>)
+	 */
+	public @NotNull String getId() {
+		return String.format("%s/%s/%d/%d,%d/%d,%d", world.name, map.name, zoom, from.x, from.y, to.x, to.y);
+	}
+	
 }
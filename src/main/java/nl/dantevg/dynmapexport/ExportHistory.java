@@ -0,0 +1,383 @@
+package nl.dantevg.dynmapexport;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the tiles of past exports small. With <code>history-mode: delta</code>,
+ * only every <code>keyframe-interval</code>th export keeps all of its tiles (a
+ * keyframe). The exports in between keep only the tiles that changed since
+ * the export before them, and the other tiles are found in earlier exports,
+ * see {@link #readTile(ExportConfig, Instant, TileCoords, int)}. With
+ * <code>pack-exports</code>, the tiles of past exports are moved from their
+ * tile directory into a single {@link ExportArchive}.
+ * <p>
+ * The latest export always keeps all of its tiles in its tile directory,
+ * because the next export is compared to it and copies its unmodified tiles
+ * from it. An export is only reduced and packed once the export after it is
+ * complete.
+ */
+public class ExportHistory {
+	private static final int DEFAULT_KEYFRAME_INTERVAL = 24;
+	private static final int MAX_OPEN_ARCHIVES = 16;
+	
+	private final Logger logger;
+	private final File dataFolder;
+	private final Function<ExportConfig, ExportManifest> manifests;
+	private final ExportMetrics exportMetrics;
+	private final TileStore tileStore;
+	private final HistoryMode mode;
+	private final int keyframeInterval;
+	private final boolean packExports;
+	/**
+	 * The open archives. An archive is closed when it is removed from the
+	 * cache, which must happen before its file is replaced or removed.
+	 */
+	private final Cache<File, ExportArchive> archives = CacheBuilder.newBuilder()
+			.maximumSize(MAX_OPEN_ARCHIVES)
+			.removalListener((RemovalListener<File, ExportArchive>) notification -> close(notification.getValue()))
+			.build();
+	
+	public ExportHistory(DynmapExport plugin) {
+		this(plugin.logger, plugin.getDataFolder(), plugin::getManifest, plugin.exportMetrics, plugin.tileStore,
+				getHistoryMode(plugin),
+				plugin.config.getInt("keyframe-interval", DEFAULT_KEYFRAME_INTERVAL),
+				plugin.config.getBoolean("pack-exports", false));
+	}
+	
+	/**
+	 * @param logger           the logger to log errors to
+	 * @param dataFolder       the data folder of the plugin
+	 * @param manifests        the manifest of the map of an export configuration
+	 * @param exportMetrics    the metrics to add the size of written archives to
+	 * @param tileStore        the tile store to remove unused tiles from
+	 * @param mode             how to keep the tiles of past exports
+	 * @param keyframeInterval the number of exports from one keyframe to the next
+	 * @param packExports      whether to pack past exports into archives
+	 */
+	ExportHistory(@NotNull Logger logger, @NotNull File dataFolder,
+	              @NotNull Function<ExportConfig, ExportManifest> manifests, @NotNull ExportMetrics exportMetrics,
+	              @NotNull TileStore tileStore, @NotNull HistoryMode mode, int keyframeInterval,
+	              boolean packExports) {
+		this.logger = logger;
+		this.dataFolder = dataFolder;
+		this.manifests = manifests;
+		this.exportMetrics = exportMetrics;
+		this.tileStore = tileStore;
+		this.mode = mode;
+		this.keyframeInterval = Math.max(1, keyframeInterval);
+		this.packExports = packExports;
+	}
+	
+	/**
+	 * @return whether the tiles of past exports are kept in reduced form, so
+	 * that they are not removed once the exports are combined
+	 */
+	public boolean keepsTiles() {
+		return mode == HistoryMode.DELTA || packExports;
+	}
+	
+	/**
+	 * Read a tile of an export, from its tile directory or archive. For delta
+	 * exports, tiles that did not change are read from the exports before it.
+	 *
+	 * @param config  the export configuration
+	 * @param instant the time of the export
+	 * @param tile    the tile coordinates
+	 * @param zoom    the zoom-out level of the tile
+	 * @return the image file of the tile, or null if the export does not have it
+	 * @throws IOException when the tile could not be read
+	 */
+	public @Nullable ByteBuffer readTile(@NotNull ExportConfig config, @NotNull Instant instant,
+	                                     @NotNull TileCoords tile, int zoom) throws IOException {
+		for (Instant source : manifests.apply(config).getDeltaChain(instant)) {
+			ByteBuffer data = readOwnTile(config, source, tile, zoom);
+			if (data != null) return data;
+		}
+		return null;
+	}
+	
+	/**
+	 * Read a tile that an export has itself, not looking in earlier exports.
+	 */
+	private @Nullable ByteBuffer readOwnTile(@NotNull ExportConfig config, @NotNull Instant instant,
+	                                         @NotNull TileCoords tile, int zoom) throws IOException {
+		File file = Paths.getLocalTileFile(dataFolder, config, instant, tile, zoom);
+		if (file.isFile()) return ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		ExportArchive archive = getArchive(config, instant);
+		if (archive == null) return null;
+		try {
+			return archive.getTile(tile, zoom);
+		} catch (ClosedChannelException e) {
+			// Closed because it was evicted from the cache, open it again
+			archive = getArchive(config, instant);
+			return (archive != null) ? archive.getTile(tile, zoom) : null;
+		}
+	}
+	
+	/**
+	 * Reduce the export before the latest export of a map to a delta export,
+	 * unless it is due to be a keyframe. Does nothing in full history mode.
+	 * Must be called with the history lock of the manifest held.
+	 *
+	 * @param config the export configuration
+	 */
+	public void compact(@NotNull ExportConfig config) {
+		if (mode != HistoryMode.DELTA) return;
+		
+		ExportManifest manifest = manifests.apply(config);
+		List<ExportManifest.Entry> entries = manifest.getEntries();
+		entries.removeIf(entry -> !entry.hasTiles);
+		if (entries.size() < 2) return;
+		
+		// The latest export stays complete
+		int index = entries.size() - 2;
+		ExportManifest.Entry entry = entries.get(index);
+		if (entry.delta) return;
+		
+		// Count the delta exports since the last keyframe
+		int nDeltas = 0;
+		for (int i = index - 1; i >= 0 && entries.get(i).delta; i--) nDeltas++;
+		if (index == 0 || nDeltas + 1 >= keyframeInterval) return;
+		
+		// Record the export as delta first: when reducing it fails halfway,
+		// the remaining tiles are only redundant
+		manifest.setDelta(entry.instant, true);
+		Instant previous = entries.get(index - 1).instant;
+		File[] files = Paths.getLocalExportDir(dataFolder, config, entry.instant)
+				.listFiles((dir, name) -> ExportArchive.parseTileName(name) != null);
+		if (files == null) return;
+		int nRemoved = 0;
+		Set<File> blobs = new HashSet<>();
+		for (File file : files) {
+			ExportArchive.Key key = Objects.requireNonNull(ExportArchive.parseTileName(file.getName()));
+			try {
+				ByteBuffer previousTile = readTile(config, previous, key.tile, key.zoom);
+				if (previousTile != null && previousTile.equals(ByteBuffer.wrap(Files.readAllBytes(file.toPath())))) {
+					Set<File> fileBlobs = tileStore.getStoredTiles(file);
+					if (file.delete()) {
+						blobs.addAll(fileBlobs);
+						nRemoved++;
+					}
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Could not compare tile " + file + " to the previous export", e);
+			}
+		}
+		logger.log(Level.CONFIG, String.format("Reduced export %s of map %s:%s to %d of %d tiles",
+				Paths.getInstantFormat().format(entry.instant), config.world.name, config.map.name,
+				files.length - nRemoved, files.length));
+		tileStore.removeUnreferenced(blobs);
+	}
+	
+	/**
+	 * Pack the tile directories of all exports of a map except the latest
+	 * into archives. Does nothing unless <code>pack-exports</code> is enabled.
+	 * Must be called with the history lock of the manifest held.
+	 *
+	 * @param config the export configuration
+	 */
+	public void pack(@NotNull ExportConfig config) {
+		if (!packExports) return;
+		
+		List<ExportManifest.Entry> entries = manifests.apply(config).getEntries();
+		entries.removeIf(entry -> !entry.hasTiles);
+		for (ExportManifest.Entry entry : entries.subList(0, Math.max(0, entries.size() - 1))) {
+			if (Paths.getLocalExportDir(dataFolder, config, entry.instant).isDirectory()) {
+				pack(config, entry.instant);
+			}
+		}
+	}
+	
+	/**
+	 * Pack the tiles in the tile directory of an export into its archive,
+	 * together with the tiles that are in the archive already, and remove
+	 * the tile directory.
+	 */
+	private void pack(@NotNull ExportConfig config, @NotNull Instant instant) {
+		File dir = Paths.getLocalExportDir(dataFolder, config, instant);
+		File file = Paths.getLocalArchiveFile(dataFolder, config, instant);
+		File tempFile = new File(file.getPath() + ".tmp");
+		File[] files = dir.listFiles((d, name) -> ExportArchive.parseTileName(name) != null);
+		if (files == null) return;
+		
+		int nTiles = 0;
+		boolean saved = false;
+		try (ExportArchive.Writer writer = new ExportArchive.Writer(tempFile)) {
+			for (File tileFile : files) {
+				ExportArchive.Key key = Objects.requireNonNull(ExportArchive.parseTileName(tileFile.getName()));
+				if (writer.add(key.tile, key.zoom, tileFile)) nTiles++;
+			}
+			ExportArchive existing = getArchive(config, instant);
+			if (existing != null) {
+				for (ExportArchive.Key key : existing.getTiles()) {
+					if (writer.add(key.tile, key.zoom, Objects.requireNonNull(existing.getTile(key.tile, key.zoom)))) {
+						nTiles++;
+					}
+				}
+			}
+			writer.finish();
+			saved = true;
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Could not pack export " + dir + " into " + file, e);
+		} finally {
+			if (!saved) tempFile.delete();
+		}
+		if (!saved) return;
+		
+		archives.invalidate(file);
+		try {
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Could not pack export " + dir + " into " + file, e);
+			tempFile.delete();
+			return;
+		}
+		exportMetrics.addBytesWritten(config, file.length());
+		Set<File> blobs = tileStore.getStoredTiles(dir);
+		File[] packed = dir.listFiles();
+		for (File packedFile : (packed != null) ? packed : new File[0]) packedFile.delete();
+		dir.delete();
+		tileStore.removeUnreferenced(blobs);
+		logger.log(Level.CONFIG, String.format("Packed %d tiles of export %s of map %s:%s",
+				nTiles, Paths.getInstantFormat().format(instant), config.world.name, config.map.name));
+	}
+	
+	/**
+	 * Prepare removing the tiles of an export: when the export after it is a
+	 * delta export, copy the tiles it needs into it, and close its archive.
+	 * Must be called with the history lock of the manifest held, and the
+	 * removal must be recorded in the manifest before the tile directory and
+	 * archive are removed.
+	 *
+	 * @param config  the export configuration
+	 * @param instant the time of the export to remove
+	 * @return whether the tiles can be removed
+	 */
+	public boolean prepareRemoval(@NotNull ExportConfig config, @NotNull Instant instant) {
+		ExportManifest manifest = manifests.apply(config);
+		ExportManifest.Entry removed = null;
+		ExportManifest.Entry next = null;
+		for (ExportManifest.Entry entry : manifest.getEntries()) {
+			if (entry.instant.equals(instant)) {
+				removed = entry;
+			} else if (removed != null && entry.hasTiles) {
+				next = entry;
+				break;
+			}
+		}
+		File archiveFile = Paths.getLocalArchiveFile(dataFolder, config, instant);
+		if (removed == null || next == null || !next.delta) {
+			archives.invalidate(archiveFile);
+			return true;
+		}
+		
+		// The loose tiles of the next export take precedence over its archive
+		File nextDir = Paths.getLocalExportDir(dataFolder, config, next.instant);
+		nextDir.mkdirs();
+		try {
+			ExportArchive archive = getArchive(config, instant);
+			ExportArchive nextArchive = getArchive(config, next.instant);
+			File[] files = Paths.getLocalExportDir(dataFolder, config, instant)
+					.listFiles((dir, name) -> ExportArchive.parseTileName(name) != null);
+			for (File file : (files != null) ? files : new File[0]) {
+				ExportArchive.Key key = Objects.requireNonNull(ExportArchive.parseTileName(file.getName()));
+				File dest = new File(nextDir, file.getName());
+				if (dest.exists() || nextArchive != null && nextArchive.contains(key.tile, key.zoom)) continue;
+				Files.move(file.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			if (archive != null) {
+				for (ExportArchive.Key key : archive.getTiles()) {
+					File dest = Paths.getLocalTileFile(dataFolder, config, next.instant, key.tile, key.zoom);
+					if (dest.exists() || nextArchive != null && nextArchive.contains(key.tile, key.zoom)) continue;
+					write(Objects.requireNonNull(archive.getTile(key.tile, key.zoom)), dest);
+				}
+			}
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Could not move the tiles of export "
+					+ Paths.getInstantFormat().format(instant) + " to the next export, not removing it", e);
+			return false;
+		}
+		archives.invalidate(archiveFile);
+		// The next export now has all tiles that this keyframe had
+		if (!removed.delta) manifest.setDelta(next.instant, false);
+		return true;
+	}
+	
+	/**
+	 * Close all open archives.
+	 */
+	public void close() {
+		archives.invalidateAll();
+	}
+	
+	private @Nullable ExportArchive getArchive(@NotNull ExportConfig config, @NotNull Instant instant)
+			throws IOException {
+		File file = Paths.getLocalArchiveFile(dataFolder, config, instant);
+		if (!file.isFile()) return null;
+		try {
+			return archives.get(file, () -> ExportArchive.open(file));
+		} catch (ExecutionException e) {
+			throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+	
+	private void close(@Nullable ExportArchive archive) {
+		if (archive == null) return;
+		try {
+			archive.close();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not close tile archive " + archive.getFile(), e);
+		}
+	}
+	
+	private static void write(@NotNull ByteBuffer data, @NotNull File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE)) {
+			ByteBuffer source = data.duplicate();
+			while (source.hasRemaining()) channel.write(source);
+		}
+	}
+	
+	private static HistoryMode getHistoryMode(DynmapExport plugin) {
+		String value = plugin.config.getString("history-mode", "full");
+		try {
+			return HistoryMode.valueOf(value.toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			plugin.logger.log(Level.WARNING, "Invalid history-mode " + value + ", using full");
+			return HistoryMode.FULL;
+		}
+	}
+	
+	public enum HistoryMode {
+		/**
+		 * Every export keeps all of its tiles
+		 */
+		FULL,
+		/**
+		 * Only keyframes keep all of their tiles, other exports only the
+		 * tiles that changed
+		 */
+		DELTA,
+	}
+	
+}
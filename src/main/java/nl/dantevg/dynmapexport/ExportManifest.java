@@ -0,0 +1,387 @@
+package nl.dantevg.dynmapexport;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.Rectangle;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * The history of all exports of a map, stored next to the exports. The
+ * manifest is an append-only text file with one record per line:
+ * <ul>
+ *     <li><code>{instant} export {tiles} {change fraction} [{x},{y},{width},{height}]</code>
+ *     when an export is saved, optionally with the area of the combined image
+ *     that changed since the previous export</li>
+ *     <li><code>{instant} combined</code> when the tiles of an export are combined</li>
+ *     <li><code>{instant} removed</code> when the tile directory of an export is removed</li>
+ *     <li><code>{instant} delta</code> when the tile directory of an export is reduced to the tiles
+ *     that changed since the previous export, see {@link ExportHistory}</li>
+ *     <li><code>{instant} keyframe</code> when the tile directory of a delta export contains all
+ *     tiles again</li>
+ *     <li><code>{instant} deleted</code> when both the tile directory and the combined image of an
+ *     export are removed</li>
+ * </ul>
+ * The manifest is read once and kept in memory, so that history queries do not
+ * need to list the map directory.
+ */
+public class ExportManifest {
+	private static final String HEADER = "# DynmapExport export manifest v1";
+	private static final String EXPORT = "export";
+	private static final String COMBINED = "combined";
+	private static final String REMOVED = "removed";
+	private static final String DELTA = "delta";
+	private static final String KEYFRAME = "keyframe";
+	private static final String DELETED = "deleted";
+	
+	private final Logger logger;
+	private final File file;
+	private final NavigableMap<Instant, Entry> entries = new TreeMap<>();
+	/**
+	 * Held while exporting the map and while removing its old exports, so that
+	 * exports are never removed while an export still reads them
+	 */
+	private final Lock historyLock = new ReentrantLock();
+	
+	private ExportManifest(@NotNull Logger logger, @NotNull File file) {
+		this.logger = logger;
+		this.file = file;
+	}
+	
+	public @NotNull Lock getHistoryLock() {
+		return historyLock;
+	}
+	
+	/**
+	 * @return the time of the latest export that still has its tile directory,
+	 * or null if there is none
+	 */
+	public synchronized @Nullable Instant getLatestExport() {
+		for (Entry entry : entries.descendingMap().values()) {
+			if (entry.hasTiles) return entry.instant;
+		}
+		return null;
+	}
+	
+	/**
+	 * Get the exports to look for the tiles of an export in. For a delta
+	 * export, these are the export itself and the exports before it, up to and
+	 * including the last keyframe.
+	 *
+	 * @param instant the time of the export
+	 * @return the times of the exports to look in, newest first
+	 */
+	public synchronized @NotNull List<Instant> getDeltaChain(@NotNull Instant instant) {
+		List<Instant> chain = new ArrayList<>();
+		chain.add(instant);
+		Entry entry = entries.get(instant);
+		if (entry == null || !entry.delta) return chain;
+		for (Entry previous : entries.headMap(instant, false).descendingMap().values()) {
+			if (!previous.hasTiles) continue;
+			chain.add(previous.instant);
+			if (!previous.delta) break;
+		}
+		return chain;
+	}
+	
+	/**
+	 * @return all exports in chronological order
+	 */
+	public synchronized @NotNull List<Entry> getEntries() {
+		return entries.values().stream()
+				.map(Entry::new)
+				.collect(Collectors.toList());
+	}
+	
+	/**
+	 * Record a new export.
+	 *
+	 * @param instant        the time of the export
+	 * @param nTiles         the number of tiles in the export
+	 * @param changeFraction the fraction of tiles that changed by at least the
+	 *                       change treshold since the previous export
+	 * @param changedArea    the area of the combined image that differs from
+	 *                       the previous export, or null if unknown
+	 */
+	public synchronized void addExport(@NotNull Instant instant, int nTiles, double changeFraction,
+	                                   @Nullable Rectangle changedArea) {
+		apply(instant, EXPORT, nTiles, changeFraction);
+		entries.get(instant).changedArea = changedArea;
+		String line = format(instant, EXPORT, nTiles, changeFraction);
+		append((changedArea != null) ? line + " " + format(changedArea) : line);
+	}
+	
+	/**
+	 * Record that the tiles of an export were combined into a single image.
+	 *
+	 * @param instant the time of the export
+	 */
+	public synchronized void setCombined(@NotNull Instant instant) {
+		apply(instant, COMBINED, -1, Double.NaN);
+		append(format(instant, COMBINED));
+	}
+	
+	/**
+	 * Record that the tile directory of an export was removed.
+	 *
+	 * @param instant the time of the export
+	 */
+	public synchronized void setRemoved(@NotNull Instant instant) {
+		apply(instant, REMOVED, -1, Double.NaN);
+		append(format(instant, REMOVED));
+	}
+	
+	/**
+	 * Record that both the tile directory and the combined image of an export
+	 * were removed. The export stays in the manifest, so that it is still
+	 * known which exports followed each other.
+	 *
+	 * @param instant the time of the export
+	 */
+	public synchronized void setDeleted(@NotNull Instant instant) {
+		apply(instant, DELETED, -1, Double.NaN);
+		append(format(instant, DELETED));
+	}
+	
+	/**
+	 * Record that the tile directory of an export only contains the tiles
+	 * that changed since the previous export, or that it contains all tiles
+	 * again.
+	 *
+	 * @param instant the time of the export
+	 * @param delta   whether the export is a delta export
+	 */
+	public synchronized void setDelta(@NotNull Instant instant, boolean delta) {
+		String type = delta ? DELTA : KEYFRAME;
+		apply(instant, type, -1, Double.NaN);
+		append(format(instant, type));
+	}
+	
+	/**
+	 * Load the manifest of a map. When the map does not have a manifest yet,
+	 * one is created from the export directories and combined images that are
+	 * present in the map directory.
+	 *
+	 * @param plugin the DynmapExport plugin
+	 * @param config the export configuration
+	 * @return the manifest
+	 */
+	public static @NotNull ExportManifest load(@NotNull DynmapExport plugin, @NotNull ExportConfig config) {
+		return load(plugin.logger, plugin.getDataFolder(), config);
+	}
+	
+	/**
+	 * Load the manifest of a map.
+	 *
+	 * @param logger     the logger to log errors to
+	 * @param dataFolder the data folder of the plugin
+	 * @param config     the export configuration
+	 * @return the manifest
+	 */
+	static @NotNull ExportManifest load(@NotNull Logger logger, @NotNull File dataFolder,
+	                                    @NotNull ExportConfig config) {
+		ExportManifest manifest = new ExportManifest(logger, Paths.getManifestFile(dataFolder, config));
+		if (manifest.file.isFile()) {
+			manifest.read();
+		} else {
+			manifest.migrate(Paths.getLocalMapDir(dataFolder, config));
+		}
+		return manifest;
+	}
+	
+	private void read() {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				if (!parse(line)) {
+					logger.log(Level.WARNING, "Ignoring invalid line in export manifest " + file + ": " + line);
+				}
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not read export manifest " + file, e);
+		}
+	}
+	
+	private boolean parse(@NotNull String line) {
+		String[] parts = line.split(" ");
+		try {
+			Instant instant = Instant.from(Paths.getInstantFormat().parse(parts[0]));
+			if ((parts.length == 4 || parts.length == 5) && parts[1].equals(EXPORT)) {
+				apply(instant, EXPORT, Integer.parseInt(parts[2]), Double.parseDouble(parts[3]));
+				entries.get(instant).changedArea = (parts.length == 5) ? parseRectangle(parts[4]) : null;
+				return true;
+			} else if (parts.length == 2 && (parts[1].equals(COMBINED) || parts[1].equals(REMOVED)
+					|| parts[1].equals(DELTA) || parts[1].equals(KEYFRAME) || parts[1].equals(DELETED))) {
+				apply(instant, parts[1], -1, Double.NaN);
+				return true;
+			}
+		} catch (DateTimeParseException | NumberFormatException e) {
+			// Invalid line, fall through
+		}
+		return false;
+	}
+	
+	/**
+	 * Create the manifest from the contents of the map directory, for maps
+	 * that were exported before manifests existed.
+	 */
+	private void migrate(@NotNull File mapDir) {
+		if (!mapDir.isDirectory()) return;
+		
+		File[] files = mapDir.listFiles(Paths::isInstantFile);
+		if (files == null) return;
+		for (File instantFile : files) {
+			Instant instant = Paths.getInstantFromFile(instantFile);
+			if (instantFile.isDirectory()) {
+				File[] tiles = instantFile.listFiles((dir, name) -> name.endsWith(".png"));
+				apply(instant, EXPORT, (tiles != null) ? tiles.length : -1, Double.NaN);
+			} else if (instantFile.getName().endsWith(".tiles")) {
+				apply(instant, EXPORT, -1, Double.NaN);
+			} else {
+				apply(instant, COMBINED, -1, Double.NaN);
+			}
+		}
+		if (entries.isEmpty()) return;
+		
+		List<String> lines = new ArrayList<>();
+		lines.add(HEADER);
+		for (Entry entry : entries.values()) {
+			lines.add(format(entry.instant, EXPORT, entry.nTiles, entry.changeFraction));
+			if (entry.combined) lines.add(format(entry.instant, COMBINED));
+			if (!entry.hasTiles) lines.add(format(entry.instant, REMOVED));
+		}
+		write(lines, false);
+		logger.log(Level.CONFIG, String.format("Created export manifest %s with %d exports",
+				file, entries.size()));
+	}
+	
+	private static @NotNull Rectangle parseRectangle(@NotNull String str) {
+		String[] parts = str.split(",");
+		if (parts.length != 4) throw new NumberFormatException("invalid rectangle " + str);
+		return new Rectangle(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+				Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+	}
+	
+	private void apply(@NotNull Instant instant, @NotNull String type, int nTiles, double changeFraction) {
+		Entry entry = entries.get(instant);
+		if (entry == null) {
+			entry = new Entry(instant);
+			// A combined image without an export record (only during migration)
+			// means the tile directory was removed already
+			entry.hasTiles = type.equals(EXPORT);
+			entries.put(instant, entry);
+		}
+		switch (type) {
+			case EXPORT:
+				entry.nTiles = nTiles;
+				entry.changeFraction = changeFraction;
+				entry.hasTiles = true;
+				break;
+			case COMBINED:
+				entry.combined = true;
+				break;
+			case REMOVED:
+				entry.hasTiles = false;
+				break;
+			case DELTA:
+				entry.delta = true;
+				break;
+			case KEYFRAME:
+				entry.delta = false;
+				break;
+			case DELETED:
+				entry.hasTiles = false;
+				entry.combined = false;
+				break;
+		}
+	}
+	
+	private void append(@NotNull String line) {
+		boolean isNew = !file.isFile();
+		List<String> lines = isNew ? Arrays.asList(HEADER, line) : Collections.singletonList(line);
+		write(lines, !isNew);
+	}
+	
+	private void write(@NotNull List<String> lines, boolean append) {
+		file.getParentFile().mkdirs();
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file, append), StandardCharsets.UTF_8))) {
+			for (String line : lines) writer.write(line + "\n");
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not write export manifest " + file, e);
+		}
+	}
+	
+	private static @NotNull String format(@NotNull Instant instant, @NotNull String type) {
+		return Paths.getInstantFormat().format(instant) + " " + type;
+	}
+	
+	private static @NotNull String format(@NotNull Instant instant, @NotNull String type,
+	                                      int nTiles, double changeFraction) {
+		return String.format(Locale.ROOT, "%s %d %s", format(instant, type), nTiles, changeFraction);
+	}
+	
+	private static @NotNull String format(@NotNull Rectangle rectangle) {
+		return rectangle.x + "," + rectangle.y + "," + rectangle.width + "," + rectangle.height;
+	}
+	
+	/**
+	 * A single export in the manifest.
+	 */
+	public static class Entry {
+		public final @NotNull Instant instant;
+		/**
+		 * The number of tiles in the export, or -1 if unknown
+		 */
+		public int nTiles = -1;
+		/**
+		 * The fraction of tiles that changed since the previous export, or NaN
+		 * if unknown
+		 */
+		public double changeFraction = Double.NaN;
+		/**
+		 * The area of the combined image that differs from the previous export
+		 * in the manifest, or null if unknown
+		 */
+		public @Nullable Rectangle changedArea;
+		/**
+		 * Whether the tiles were combined into a single image
+		 */
+		public boolean combined;
+		/**
+		 * Whether the tile directory of the export is still present
+		 */
+		public boolean hasTiles;
+		/**
+		 * Whether the tile directory only contains the tiles that changed
+		 * since the previous export
+		 */
+		public boolean delta;
+		
+		private Entry(@NotNull Instant instant) {
+			this.instant = instant;
+		}
+		
+		private Entry(@NotNull Entry entry) {
+			this.instant = entry.instant;
+			this.nTiles = entry.nTiles;
+			this.changeFraction = entry.changeFraction;
+			this.changedArea = (entry.changedArea != null) ? new Rectangle(entry.changedArea) : null;
+			this.combined = entry.combined;
+			this.hasTiles = entry.hasTiles;
+			this.delta = entry.delta;
+		}
+	}
+	
+}
@@ -0,0 +1,533 @@
+package nl.dantevg.dynmapexport;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures the exports of every export configuration: how many tiles were
+ * downloaded, how long fetching a tile took, how many bytes were downloaded
+ * and written to disk, and how long each {@link Phase} of the export took.
+ * The measurements of the latest export of every configuration are kept,
+ * together with totals since the plugin was enabled.
+ * <p>
+ * The measurements are shown by <code>/dynmapexport stats</code>, and can be
+ * saved to <code>plugins/DynmapExport/metrics.prom</code> after every export
+ * and served over HTTP, both in the Prometheus text format.
+ */
+public class ExportMetrics {
+	private static final String FILENAME = "metrics.prom";
+	private static final String DEFAULT_ADDRESS = "127.0.0.1";
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	private static final double NANOS_PER_SECOND = 1e9;
+	private static final double BYTES_PER_MB = 1024 * 1024;
+	static final double[] QUANTILES = {0.5, 0.9, 0.99};
+	
+	private final @NotNull Logger logger;
+	private final @Nullable File file;
+	/**
+	 * The exports that are in progress, by configuration id
+	 */
+	private final Map<String, Run> running = new ConcurrentHashMap<>();
+	/**
+	 * The measurements of every configuration, by configuration id. Guarded
+	 * by <code>this</code>.
+	 */
+	private final Map<String, ConfigStats> stats = new LinkedHashMap<>();
+	private @Nullable HttpServer server;
+	private @Nullable ExecutorService serverExecutor;
+	
+	/**
+	 * @param logger the logger to log export summaries to
+	 * @param file   the file to save the metrics to after every export, if any
+	 */
+	public ExportMetrics(@NotNull Logger logger, @Nullable File file) {
+		this.logger = logger;
+		this.file = file;
+	}
+	
+	/**
+	 * Create the export metrics from the <code>metrics</code> section of the
+	 * plugin config, and start the metrics endpoint if it has a port.
+	 *
+	 * @param plugin the DynmapExport plugin
+	 * @return the export metrics
+	 */
+	public static @NotNull ExportMetrics fromConfig(@NotNull DynmapExport plugin) {
+		File file = plugin.config.getBoolean("metrics.file", false)
+				? new File(plugin.getDataFolder(), FILENAME)
+				: null;
+		ExportMetrics metrics = new ExportMetrics(plugin.logger, file);
+		int port = plugin.config.getInt("metrics.port", 0);
+		if (port > 0) {
+			metrics.startServer(new InetSocketAddress(
+					plugin.config.getString("metrics.address", DEFAULT_ADDRESS), port));
+		}
+		return metrics;
+	}
+	
+	/**
+	 * Serve the metrics in the Prometheus text format at <code>/metrics</code>.
+	 *
+	 * @param address the address to listen on
+	 */
+	public void startServer(@NotNull InetSocketAddress address) {
+		try {
+			server = HttpServer.create(address, 0);
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Could not start the metrics endpoint at " + address, e);
+			return;
+		}
+		server.createContext("/metrics", exchange -> {
+			byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		serverExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("DynmapExport metrics")
+				.setDaemon(true)
+				.build());
+		server.setExecutor(serverExecutor);
+		server.start();
+		logger.log(Level.INFO, String.format("Serving metrics at http://%s:%d/metrics",
+				address.getHostString(), server.getAddress().getPort()));
+	}
+	
+	/**
+	 * @return the address of the metrics endpoint, or null if it is not running
+	 */
+	@Nullable InetSocketAddress getServerAddress() {
+		return (server != null) ? server.getAddress() : null;
+	}
+	
+	/**
+	 * Stop the metrics endpoint.
+	 */
+	public void shutdown() {
+		if (server != null) server.stop(0);
+		if (serverExecutor != null) serverExecutor.shutdownNow();
+	}
+	
+	/**
+	 * Start measuring an export. The measurements of the other methods are
+	 * added to this export until {@link #finish(ExportConfig, boolean)}, and
+	 * are ignored while the configuration is not being exported.
+	 *
+	 * @param config the export configuration
+	 */
+	public void start(@NotNull ExportConfig config) {
+		running.put(config.getId(), new Run(Instant.now(), System.nanoTime()));
+	}
+	
+	/**
+	 * @param config the export configuration
+	 * @param status how a tile of the export was fetched
+	 */
+	public void addTile(@NotNull ExportConfig config, @NotNull Downloader.TileStatus status) {
+		Run run = running.get(config.getId());
+		if (run != null) run.tiles.incrementAndGet(status.ordinal());
+	}
+	
+	/**
+	 * Add a fetch of a tile from the tile source. The fetched bytes are
+	 * counted as downloaded and as written to disk.
+	 *
+	 * @param config the export configuration
+	 * @param nanos  the time the fetch took, including retries
+	 * @param bytes  the number of bytes fetched, 0 if not modified
+	 */
+	public void addFetch(@NotNull ExportConfig config, long nanos, long bytes) {
+		Run run = running.get(config.getId());
+		if (run == null) return;
+		run.addFetch(nanos);
+		run.bytesDownloaded.addAndGet(bytes);
+		run.bytesWritten.addAndGet(bytes);
+	}
+	
+	/**
+	 * @param config the export configuration
+	 * @param bytes  the size of a file that the export wrote
+	 */
+	public void addBytesWritten(@NotNull ExportConfig config, long bytes) {
+		Run run = running.get(config.getId());
+		if (run != null) run.bytesWritten.addAndGet(bytes);
+	}
+	
+	/**
+	 * @param config the export configuration
+	 * @param phase  the phase of the export
+	 * @param nanos  the time spent in the phase
+	 */
+	public void addTime(@NotNull ExportConfig config, @NotNull Phase phase, long nanos) {
+		Run run = running.get(config.getId());
+		if (run != null) run.phaseNanos.addAndGet(phase.ordinal(), nanos);
+	}
+	
+	/**
+	 * @param config  the export configuration
+	 * @param changes the changed tiles of the export
+	 */
+	public void setChanges(@NotNull ExportConfig config, @NotNull ImageTresholdCache.Changes changes) {
+		Run run = running.get(config.getId());
+		if (run == null) return;
+		run.nChanged = changes.modified.size();
+		run.nOverTreshold = changes.overTreshold.size();
+	}
+	
+	/**
+	 * Stop measuring an export, log a summary of it, and save the metrics to
+	 * the metrics file if enabled.
+	 *
+	 * @param config   the export configuration
+	 * @param exported whether the export had enough changes to be kept
+	 */
+	public void finish(@NotNull ExportConfig config, boolean exported) {
+		Run run = running.remove(config.getId());
+		if (run == null) return;
+		run.finish(System.nanoTime(), exported);
+		synchronized (this) {
+			stats.computeIfAbsent(config.getId(), id -> new ConfigStats(config)).add(run);
+		}
+		logger.log(Level.CONFIG, String.format(Locale.ROOT, "Export of map %s:%s took %s: %s",
+				config.world.name, config.map.name, formatSeconds(run.durationNanos), formatPhases(run.getPhaseNanos())));
+		if (file != null) save(file);
+	}
+	
+	/**
+	 * Get a readable summary of the latest export of every configuration, for
+	 * <code>/dynmapexport stats</code>.
+	 *
+	 * @param worldName the world to show the configurations of, or null for all
+	 * @param mapName   the map to show the configurations of, or null for all
+	 * @return the lines of the summary
+	 */
+	public synchronized @NotNull List<String> getSummary(@Nullable String worldName, @Nullable String mapName) {
+		List<String> lines = new ArrayList<>();
+		for (ConfigStats configStats : stats.values()) {
+			if (worldName != null && !configStats.world.equals(worldName)) continue;
+			if (mapName != null && !configStats.map.equals(mapName)) continue;
+			Run last = Objects.requireNonNull(configStats.last);
+			lines.add(String.format(Locale.ROOT, "Map %s:%s (%s), %d exported, %d skipped",
+					configStats.world, configStats.map, configStats.id, configStats.nExported, configStats.nSkipped));
+			lines.add(String.format(Locale.ROOT, "  Last export at %s %s in %s: %s",
+					Paths.getInstantFormat().format(last.start), last.exported ? "exported" : "skipped",
+					formatSeconds(last.durationNanos), formatPhases(last.getPhaseNanos())));
+			lines.add(String.format(Locale.ROOT,
+					"  Tiles: %d downloaded, %d not modified, %d failed, %d changed, %d over treshold",
+					last.getTiles(Downloader.TileStatus.DOWNLOADED), last.getTiles(Downloader.TileStatus.NOT_MODIFIED),
+					last.getTiles(Downloader.TileStatus.FAILED), last.nChanged, last.nOverTreshold));
+			if (last.getFetches() > 0) {
+				lines.add(String.format(Locale.ROOT, "  Fetch time: p50 %d ms, p90 %d ms, p99 %d ms, max %d ms (%d fetches)",
+						last.getFetchQuantile(0.5) / 1000000, last.getFetchQuantile(0.9) / 1000000,
+						last.getFetchQuantile(0.99) / 1000000, last.getFetchQuantile(1) / 1000000,
+						last.getFetches()));
+			}
+			lines.add(String.format(Locale.ROOT, "  Downloaded %.1f MB, wrote %.1f MB",
+					last.bytesDownloaded.get() / BYTES_PER_MB, last.bytesWritten.get() / BYTES_PER_MB));
+		}
+		return lines;
+	}
+	
+	/**
+	 * Get the metrics of all configurations in the Prometheus text format.
+	 * Every sample has the labels <code>export</code> (the id of the
+	 * configuration), <code>world</code> and <code>map</code>. Counters are
+	 * totals since the plugin was enabled, the tile fetch time quantiles and
+	 * the <code>last_export</code> gauges are of the latest export.
+	 *
+	 * @return the metrics
+	 */
+	public synchronized @NotNull String toPrometheus() {
+		StringBuilder out = new StringBuilder();
+		
+		family(out, "dynmapexport_exports_total", "counter",
+				"Number of exports, by whether they had enough changes to be kept");
+		for (ConfigStats s : stats.values()) {
+			sample(out, "dynmapexport_exports_total", s, "result", "exported", s.nExported);
+			sample(out, "dynmapexport_exports_total", s, "result", "skipped", s.nSkipped);
+		}
+		
+		family(out, "dynmapexport_tiles_total", "counter", "Number of tiles, by how they were fetched");
+		for (ConfigStats s : stats.values()) {
+			for (Downloader.TileStatus status : Downloader.TileStatus.values()) {
+				sample(out, "dynmapexport_tiles_total", s, "status", status.name().toLowerCase(Locale.ROOT),
+						s.tiles[status.ordinal()]);
+			}
+		}
+		
+		family(out, "dynmapexport_downloaded_bytes_total", "counter", "Bytes of tiles fetched from Dynmap");
+		for (ConfigStats s : stats.values()) {
+			sample(out, "dynmapexport_downloaded_bytes_total", s, null, null, s.bytesDownloaded);
+		}
+		
+		family(out, "dynmapexport_written_bytes_total", "counter",
+				"Bytes of tiles, zoom levels, combined images and archives written to disk");
+		for (ConfigStats s : stats.values()) {
+			sample(out, "dynmapexport_written_bytes_total", s, null, null, s.bytesWritten);
+		}
+		
+		family(out, "dynmapexport_phase_seconds_total", "counter", "Time spent in each phase of the exports");
+		for (ConfigStats s : stats.values()) {
+			for (Phase phase : Phase.values()) {
+				sample(out, "dynmapexport_phase_seconds_total", s, "phase", phase.getName(),
+						s.phaseNanos[phase.ordinal()] / NANOS_PER_SECOND);
+			}
+		}
+		
+		family(out, "dynmapexport_tile_fetch_seconds", "summary",
+				"Time to fetch a tile from Dynmap, quantiles of the latest export");
+		for (ConfigStats s : stats.values()) {
+			Run last = Objects.requireNonNull(s.last);
+			if (last.getFetches() > 0) {
+				for (double quantile : QUANTILES) {
+					sample(out, "dynmapexport_tile_fetch_seconds", s, "quantile", Double.toString(quantile),
+							last.getFetchQuantile(quantile) / NANOS_PER_SECOND);
+				}
+			}
+			sample(out, "dynmapexport_tile_fetch_seconds_sum", s, null, null, s.fetchNanos / NANOS_PER_SECOND);
+			sample(out, "dynmapexport_tile_fetch_seconds_count", s, null, null, s.nFetches);
+		}
+		
+		family(out, "dynmapexport_last_export_timestamp_seconds", "gauge", "Start time of the latest export");
+		for (ConfigStats s : stats.values()) {
+			sample(out, "dynmapexport_last_export_timestamp_seconds", s, null, null,
+					Objects.requireNonNull(s.last).start.toEpochMilli() / 1000.0);
+		}
+		
+		family(out, "dynmapexport_last_export_duration_seconds", "gauge", "Duration of the latest export");
+		for (ConfigStats s : stats.values()) {
+			sample(out, "dynmapexport_last_export_duration_seconds", s, null, null,
+					Objects.requireNonNull(s.last).durationNanos / NANOS_PER_SECOND);
+		}
+		
+		family(out, "dynmapexport_last_export_changed_tiles", "gauge",
+				"Number of tiles that changed in the latest export, by whether they changed by at least the change treshold");
+		for (ConfigStats s : stats.values()) {
+			Run last = Objects.requireNonNull(s.last);
+			sample(out, "dynmapexport_last_export_changed_tiles", s, "over_treshold", "false",
+					last.nChanged - last.nOverTreshold);
+			sample(out, "dynmapexport_last_export_changed_tiles", s, "over_treshold", "true", last.nOverTreshold);
+		}
+		
+		return out.toString();
+	}
+	
+	private synchronized void save(@NotNull File file) {
+		File tempFile = new File(file.getPath() + ".tmp");
+		try {
+			Files.write(tempFile.toPath(), toPrometheus().getBytes(StandardCharsets.UTF_8));
+			// Atomically, so that readers never see a partial file
+			Files.move(tempFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not save metrics to " + file, e);
+			tempFile.delete();
+		}
+	}
+	
+	private static void family(@NotNull StringBuilder out, @NotNull String name, @NotNull String type,
+	                           @NotNull String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+	
+	private static void sample(@NotNull StringBuilder out, @NotNull String name, @NotNull ConfigStats stats,
+	                           @Nullable String label, @Nullable String value, long sample) {
+		appendName(out, name, stats, label, value).append(' ').append(sample).append('\n');
+	}
+	
+	private static void sample(@NotNull StringBuilder out, @NotNull String name, @NotNull ConfigStats stats,
+	                           @Nullable String label, @Nullable String value, double sample) {
+		appendName(out, name, stats, label, value).append(' ').append(sample).append('\n');
+	}
+	
+	private static @NotNull StringBuilder appendName(@NotNull StringBuilder out, @NotNull String name,
+	                                                 @NotNull ConfigStats stats,
+	                                                 @Nullable String label, @Nullable String value) {
+		out.append(name)
+				.append("{export=\"").append(escape(stats.id))
+				.append("\",world=\"").append(escape(stats.world))
+				.append("\",map=\"").append(escape(stats.map)).append('"');
+		if (label != null) out.append(',').append(label).append("=\"").append(escape(value)).append('"');
+		return out.append('}');
+	}
+	
+	private static @NotNull String escape(@NotNull String labelValue) {
+		return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+	
+	private static @NotNull String formatSeconds(long nanos) {
+		return String.format(Locale.ROOT, "%.1fs", nanos / NANOS_PER_SECOND);
+	}
+	
+	private static @NotNull String formatPhases(long @NotNull [] phaseNanos) {
+		StringJoiner phases = new StringJoiner(", ");
+		for (Phase phase : Phase.values()) {
+			phases.add(phase.getName() + " " + formatSeconds(phaseNanos[phase.ordinal()]));
+		}
+		return phases.toString();
+	}
+	
+	/**
+	 * The phases of an export.
+	 */
+	public enum Phase {
+		/**
+		 * Fetching the tiles, or copying them from the previous export
+		 */
+		DOWNLOAD,
+		/**
+		 * Checking how much the modified tiles changed
+		 */
+		DIFF,
+		/**
+		 * Generating the zoom levels of <code>pyramid-levels</code>
+		 */
+		PYRAMID,
+		/**
+		 * Combining and encoding the combined image
+		 */
+		COMBINE,
+		/**
+		 * Reducing and packing the previous exports
+		 */
+		HISTORY;
+		
+		public @NotNull String getName() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+	
+	/**
+	 * The measurements of a single export. Updated concurrently by the
+	 * download workers while the export is in progress.
+	 */
+	static class Run {
+		final @NotNull Instant start;
+		private final long startNanos;
+		final AtomicIntegerArray tiles = new AtomicIntegerArray(Downloader.TileStatus.values().length);
+		final AtomicLong bytesDownloaded = new AtomicLong();
+		final AtomicLong bytesWritten = new AtomicLong();
+		final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+		volatile int nChanged;
+		volatile int nOverTreshold;
+		long durationNanos;
+		boolean exported;
+		/**
+		 * The fetch times, sorted once the export is finished. Guarded by
+		 * <code>this</code>.
+		 */
+		private long[] fetchNanos = new long[64];
+		private int nFetches;
+		
+		Run(@NotNull Instant start, long startNanos) {
+			this.start = start;
+			this.startNanos = startNanos;
+		}
+		
+		synchronized void addFetch(long nanos) {
+			if (nFetches == fetchNanos.length) fetchNanos = Arrays.copyOf(fetchNanos, nFetches * 2);
+			fetchNanos[nFetches++] = nanos;
+		}
+		
+		synchronized void finish(long endNanos, boolean exported) {
+			this.durationNanos = endNanos - startNanos;
+			this.exported = exported;
+			Arrays.sort(fetchNanos, 0, nFetches);
+		}
+		
+		synchronized int getFetches() {
+			return nFetches;
+		}
+		
+		synchronized long getFetchNanos() {
+			long sum = 0;
+			for (int i = 0; i < nFetches; i++) sum += fetchNanos[i];
+			return sum;
+		}
+		
+		/**
+		 * Get a quantile of the fetch times, with the nearest-rank method.
+		 * Only valid once the export is finished.
+		 *
+		 * @param quantile the quantile, from 0 to 1
+		 * @return the fetch time at the quantile, or 0 if nothing was fetched
+		 */
+		synchronized long getFetchQuantile(double quantile) {
+			if (nFetches == 0) return 0;
+			int rank = (int) Math.ceil(quantile * nFetches);
+			return fetchNanos[Math.max(0, Math.min(nFetches, rank) - 1)];
+		}
+		
+		int getTiles(@NotNull Downloader.TileStatus status) {
+			return tiles.get(status.ordinal());
+		}
+		
+		long @NotNull [] getPhaseNanos() {
+			long[] nanos = new long[phaseNanos.length()];
+			for (int i = 0; i < nanos.length; i++) nanos[i] = phaseNanos.get(i);
+			return nanos;
+		}
+	}
+	
+	/**
+	 * The totals of all exports of a configuration, and its latest export.
+	 * Guarded by the {@link ExportMetrics}.
+	 */
+	private static class ConfigStats {
+		private final @NotNull String id;
+		private final @NotNull String world;
+		private final @NotNull String map;
+		private @Nullable Run last;
+		private int nExported;
+		private int nSkipped;
+		private final long[] tiles = new long[Downloader.TileStatus.values().length];
+		private long bytesDownloaded;
+		private long bytesWritten;
+		private final long[] phaseNanos = new long[Phase.values().length];
+		private long fetchNanos;
+		private long nFetches;
+		
+		private ConfigStats(@NotNull ExportConfig config) {
+			this.id = config.getId();
+			this.world = config.world.name;
+			this.map = config.map.name;
+		}
+		
+		private void add(@NotNull Run run) {
+			last = run;
+			if (run.exported) nExported++;
+			else nSkipped++;
+			for (int i = 0; i < tiles.length; i++) tiles[i] += run.tiles.get(i);
+			bytesDownloaded += run.bytesDownloaded.get();
+			bytesWritten += run.bytesWritten.get();
+			long[] runPhaseNanos = run.getPhaseNanos();
+			for (int i = 0; i < phaseNanos.length; i++) phaseNanos[i] += runPhaseNanos[i];
+			fetchNanos += run.getFetchNanos();
+			nFetches += run.getFetches();
+		}
+	}
+	
+}
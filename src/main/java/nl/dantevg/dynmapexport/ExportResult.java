@@ -0,0 +1,42 @@
+package nl.dantevg.dynmapexport;
+
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * The result of downloading the tiles of a single export configuration.
+ */
+public class ExportResult {
+	public final @NotNull ExportConfig config;
+	/**
+	 * The time of this export
+	 */
+	public final @NotNull Instant instant;
+	/**
+	 * The time of the export that this export was compared with, if any
+	 */
+	public final @Nullable Instant previous;
+	/**
+	 * The successfully downloaded tiles
+	 */
+	public final @NotNull Map<TileCoords, File> tiles;
+	/**
+	 * The changes since the previous export
+	 */
+	public final @NotNull ImageTresholdCache.Changes changes;
+	
+	public ExportResult(@NotNull ExportConfig config, @NotNull Instant instant, @Nullable Instant previous,
+	                    @NotNull Map<TileCoords, File> tiles, @NotNull ImageTresholdCache.Changes changes) {
+		this.config = config;
+		this.instant = instant;
+		this.previous = previous;
+		this.tiles = tiles;
+		this.changes = changes;
+	}
+	
+}
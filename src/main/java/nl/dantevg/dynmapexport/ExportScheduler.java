@@ -2,8 +2,9 @@ package nl.dantevg.dynmapexport;
 
 import com.google.common.io.Files;
 import org.apache.commons.lang.time.DurationFormatUtils;
-import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.Bukkit;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
@@ -11,71 +12,267 @@ import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.format.DateTimeParseException;
+import java.util.*;
 import java.util.logging.Level;
+import java.util.stream.Collectors;
 
+/**
+ * Runs every export configuration at its own interval: the <code>schedule</code>
+ * of the configuration, or the global <code>schedule</code> if it has none.
+ * Configurations wait in a queue ordered by their next export time. All
+ * configurations that are due at the same moment are exported in a single
+ * run, so that they share fetched tiles and configurations of the same map
+ * are exported one after the other. Runs are started at least
+ * <code>schedule-stagger</code> apart, so they do not all query Dynmap at once.
+ * The time of the last export of each configuration is saved, so that the
+ * schedule continues where it left off after a restart.
+ * <p>
+ * With <code>adaptive-schedule</code> enabled, the interval of each
+ * configuration adapts to how much its map changes, see {@link AdaptiveInterval}.
+ * The adapted intervals are saved next to the export manifest of the map, so
+ * they are not reset by a restart.
+ */
 public class ExportScheduler {
-	private static final String FILENAME = "last-export.txt";
+	private static final String LEGACY_FILENAME = "last-export.txt";
+	private static final String FILENAME = "last-exports.txt";
+	private static final Duration DEFAULT_STAGGER = Duration.ofSeconds(10);
+	private static final Duration DEFAULT_MIN_INTERVAL = Duration.ofMinutes(1);
+	private static final Duration DEFAULT_MAX_INTERVAL = Duration.ofHours(1);
+	private static final double DEFAULT_TARGET_CHANGE_FRACTION = 0.05;
+	private static final long TICKS_PER_SECOND = 20;
 	
 	private final @NotNull DynmapExport plugin;
-	private final @NotNull File lastExportFile;
-	private Instant lastExport;
+	private final @NotNull File lastExportsFile;
+	private final @Nullable Duration defaultSchedule;
+	private final @NotNull Duration stagger;
+	private final boolean adaptive;
+	private final Map<String, Instant> lastExports = new HashMap<>();
+	private final Map<String, ScheduledExport> scheduled = new HashMap<>();
+	private final PriorityQueue<ScheduledExport> queue = new PriorityQueue<>(
+			Comparator.comparing((ScheduledExport export) -> export.nextExport));
+	private Instant legacyLastExport;
+	private Instant lastStart = Instant.EPOCH;
 	
 	public ExportScheduler(@NotNull DynmapExport plugin) {
 		this.plugin = plugin;
-		lastExportFile = new File(plugin.getDataFolder(), FILENAME);
-		loadLastExport();
+		lastExportsFile = new File(plugin.getDataFolder(), FILENAME);
+		stagger = plugin.getConfigDuration("schedule-stagger", DEFAULT_STAGGER);
+		adaptive = plugin.config.getBoolean("adaptive-schedule.enabled", false);
+		loadLastExports();
 		
+		Duration schedule = null;
 		if (plugin.config.contains("schedule")) {
-			String schedule = plugin.config.getString("schedule");
-			Duration duration;
 			try {
-				duration = Duration.parse("PT" + schedule);
+				schedule = Duration.parse("PT" + plugin.config.getString("schedule"));
 			} catch (DateTimeParseException e) {
 				plugin.logger.log(Level.WARNING, "Invalid schedule format (only seconds, minutes, hours allowed!)");
-				return;
 			}
-			startScheduledTask(duration);
 		}
+		defaultSchedule = schedule;
 	}
 	
-	private void loadLastExport() {
+	/**
+	 * Schedule all export configurations that have a schedule, and start
+	 * exporting them when they are due.
+	 *
+	 * @param configs the export configurations
+	 */
+	public synchronized void start(@NotNull List<ExportConfig> configs) {
+		Instant now = Instant.now();
+		for (ExportConfig config : configs) {
+			Duration interval = (config.schedule != null) ? config.schedule : defaultSchedule;
+			if (interval == null || interval.isZero() || interval.isNegative()) continue;
+			
+			Instant lastExport = lastExports.getOrDefault(config.getId(), legacyLastExport);
+			AdaptiveInterval adaptiveInterval = getAdaptiveInterval(config, interval);
+			if (adaptiveInterval != null) interval = adaptiveInterval.getInterval();
+			ScheduledExport export = new ScheduledExport(config, interval, lastExport.plus(interval),
+					adaptiveInterval);
+			scheduled.put(config.getId(), export);
+			queue.add(export);
+			
+			Duration delay = Duration.between(now, lastExport.plus(interval));
+			if (delay.isNegative()) delay = Duration.ZERO;
+			String intervalStr = DurationFormatUtils.formatDurationWords(interval.toMillis(), true, true);
+			String delayStr = DurationFormatUtils.formatDurationWords(delay.toMillis(), true, true);
+			plugin.logger.log(Level.INFO, String.format("Scheduled export of map %s:%s every %s starts in %s",
+					config.world.name, config.map.name, intervalStr, delayStr));
+		}
+		if (queue.isEmpty()) return;
+		
+		Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, this::startDueExport,
+				TICKS_PER_SECOND, TICKS_PER_SECOND);
+	}
+	
+	/**
+	 * Start a run of all exports that are due, unless another run was started
+	 * less than <code>stagger</code> ago. The exports are not scheduled again
+	 * until the run completes, so a slow export never overlaps with itself.
+	 */
+	private synchronized void startDueExport() {
+		Instant now = Instant.now();
+		ScheduledExport first = queue.peek();
+		if (first == null || first.nextExport.isAfter(now) || now.isBefore(lastStart.plus(stagger))) return;
+		
+		List<ScheduledExport> due = new ArrayList<>();
+		while (!queue.isEmpty() && !queue.peek().nextExport.isAfter(now)) due.add(queue.poll());
+		lastStart = now;
+		Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+			try {
+				plugin.export(due.stream().map(export -> export.config).collect(Collectors.toList()), null);
+			} finally {
+				due.forEach(export -> exportDone(export, now));
+			}
+		});
+	}
+	
+	/**
+	 * Adapt the interval of a scheduled configuration to the result of an
+	 * export of it. Called for scheduled and manual exports alike, but not
+	 * for exports whose tiles could not be downloaded, because their changes
+	 * are unknown.
+	 *
+	 * @param config the exported configuration
+	 * @param result the result of the export, or null if nothing changed
+	 */
+	public synchronized void exported(@NotNull ExportConfig config, @Nullable ExportResult result) {
+		double changeFraction = (result != null) ? result.changes.getChangeFraction() : 0;
+		ScheduledExport export = scheduled.get(config.getId());
+		if (export == null || export.adaptiveInterval == null) return;
+		
+		Duration interval = export.adaptiveInterval.update(changeFraction);
+		plugin.logger.log(Level.FINE, String.format("Export interval of map %s:%s is now %s",
+				config.world.name, config.map.name,
+				DurationFormatUtils.formatDurationWords(interval.toMillis(), true, true)));
+		saveAdaptiveInterval(config, export.adaptiveInterval);
+	}
+	
+	private synchronized void exportDone(@NotNull ScheduledExport export, @NotNull Instant start) {
+		lastExports.put(export.config.getId(), start);
+		saveLastExports();
+		export.nextExport = start.plus(export.getInterval());
+		queue.add(export);
+	}
+	
+	/**
+	 * Create the adaptive interval of a configuration, continuing from its
+	 * saved interval if there is one.
+	 */
+	private @Nullable AdaptiveInterval getAdaptiveInterval(@NotNull ExportConfig config, @NotNull Duration initial) {
+		if (!adaptive) return null;
+		AdaptiveInterval adaptiveInterval = new AdaptiveInterval(
+				plugin.getConfigDuration("adaptive-schedule.min-interval", DEFAULT_MIN_INTERVAL),
+				plugin.getConfigDuration("adaptive-schedule.max-interval", DEFAULT_MAX_INTERVAL),
+				plugin.config.getDouble("adaptive-schedule.target-change-fraction", DEFAULT_TARGET_CHANGE_FRACTION),
+				initial);
+		String saved = loadAdaptiveIntervals(config).get(config.getId());
+		if (saved != null) {
+			try {
+				String[] parts = saved.split(" ");
+				adaptiveInterval.restore(Duration.parse(parts[0]), Double.parseDouble(parts[1]));
+			} catch (DateTimeParseException | ArrayIndexOutOfBoundsException | NumberFormatException e) {
+				plugin.logger.log(Level.WARNING, "Ignoring invalid saved export interval of "
+						+ config.getId() + ": " + saved);
+			}
+		}
+		return adaptiveInterval;
+	}
+	
+	/**
+	 * Read the saved adaptive intervals of the configurations of a map.
+	 *
+	 * @return the saved interval and average change fraction by configuration id
+	 */
+	private @NotNull Map<String, String> loadAdaptiveIntervals(@NotNull ExportConfig config) {
+		Map<String, String> intervals = new LinkedHashMap<>();
+		File file = Paths.getAdaptiveIntervalFile(plugin, config);
+		if (!file.isFile()) return intervals;
 		try {
-			lastExport = Instant.parse(Files.toString(lastExportFile, StandardCharsets.UTF_8));
+			for (String line : Files.readLines(file, StandardCharsets.UTF_8)) {
+				if (line.startsWith("#")) continue;
+				// The id comes first, it may contain spaces
+				int separator = line.lastIndexOf(' ', line.lastIndexOf(' ') - 1);
+				if (separator < 0) continue;
+				intervals.put(line.substring(0, separator), line.substring(separator + 1));
+			}
 		} catch (IOException e) {
-			// Most likely the file did not exist yet, will be created later
-			lastExport = Instant.EPOCH;
+			plugin.logger.log(Level.WARNING, "Could not read export intervals from " + file, e);
 		}
+		return intervals;
 	}
 	
-	private void saveLastExport() {
+	/**
+	 * Save the adaptive interval of a configuration, keeping the saved
+	 * intervals of the other configurations of the map.
+	 */
+	private void saveAdaptiveInterval(@NotNull ExportConfig config, @NotNull AdaptiveInterval adaptiveInterval) {
+		Map<String, String> intervals = loadAdaptiveIntervals(config);
+		intervals.put(config.getId(), String.format(Locale.ROOT, "%s %s",
+				adaptiveInterval.getInterval(), adaptiveInterval.getAverageChangeFraction()));
+		
+		StringBuilder contents = new StringBuilder("# Adapted export interval and average change fraction "
+				+ "of each export configuration\n");
+		intervals.forEach((id, interval) -> contents.append(id).append(' ').append(interval).append('\n'));
+		File file = Paths.getAdaptiveIntervalFile(plugin, config);
+		file.getParentFile().mkdirs();
 		try {
-			Files.write(lastExport.toString(), lastExportFile, StandardCharsets.UTF_8);
+			Files.write(contents, file, StandardCharsets.UTF_8);
 		} catch (IOException e) {
-			plugin.logger.log(Level.WARNING, "Could not save last export time", e);
+			plugin.logger.log(Level.WARNING, "Could not save export intervals to " + file, e);
 		}
 	}
 	
-	private void startScheduledTask(@NotNull Duration duration) {
-		Duration delay = Duration.between(Instant.now(), lastExport.plus(duration));
-		if (delay.isNegative()) delay = Duration.ZERO;
-		
-		new ExportTask().runTaskTimerAsynchronously(
-				plugin,
-				delay.getSeconds() * 20,
-				duration.getSeconds() * 20);
+	private void loadLastExports() {
+		File legacyFile = new File(plugin.getDataFolder(), LEGACY_FILENAME);
+		try {
+			// From before every configuration had its own schedule
+			legacyLastExport = Instant.parse(Files.toString(legacyFile, StandardCharsets.UTF_8).trim());
+		} catch (IOException | DateTimeParseException e) {
+			legacyLastExport = Instant.EPOCH;
+		}
 		
-		String durationStr = DurationFormatUtils.formatDurationWords(duration.toMillis(), true, true);
-		String delayStr = DurationFormatUtils.formatDurationWords(delay.toMillis(), true, true);
-		plugin.logger.log(Level.INFO, "Scheduled export every " + durationStr + " starts in " + delayStr);
+		if (!lastExportsFile.isFile()) return; // Will be created after the first export
+		try {
+			for (String line : Files.readLines(lastExportsFile, StandardCharsets.UTF_8)) {
+				int separator = line.lastIndexOf(' ');
+				if (line.startsWith("#") || separator < 0) continue;
+				lastExports.put(line.substring(0, separator), Instant.parse(line.substring(separator + 1)));
+			}
+		} catch (IOException | DateTimeParseException e) {
+			plugin.logger.log(Level.WARNING, "Could not read last export times", e);
+		}
 	}
 	
-	private class ExportTask extends BukkitRunnable {
-		@Override
-		public void run() {
-			plugin.export();
-			lastExport = Instant.now();
-			saveLastExport();
+	private void saveLastExports() {
+		StringBuilder contents = new StringBuilder("# Last export time of each export configuration\n");
+		lastExports.forEach((id, instant) -> contents.append(id).append(' ').append(instant).append('\n'));
+		try {
+			Files.write(contents, lastExportsFile, StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			plugin.logger.log(Level.WARNING, "Could not save last export times", e);
+		}
+	}
+	
+	/**
+	 * An export configuration in the schedule queue.
+	 */
+	private static class ScheduledExport {
+		private final @NotNull ExportConfig config;
+		private final @NotNull Duration interval;
+		private final @Nullable AdaptiveInterval adaptiveInterval;
+		private @NotNull Instant nextExport;
+		
+		private ScheduledExport(@NotNull ExportConfig config, @NotNull Duration interval, @NotNull Instant nextExport,
+		                        @Nullable AdaptiveInterval adaptiveInterval) {
+			this.config = config;
+			this.interval = interval;
+			this.nextExport = nextExport;
+			this.adaptiveInterval = adaptiveInterval;
 		}
 		
+		private @NotNull Duration getInterval() {
+			return (adaptiveInterval != null) ? adaptiveInterval.getInterval() : interval;
+		}
 	}
+	
 }
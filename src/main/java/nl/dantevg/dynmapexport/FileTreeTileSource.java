@@ -0,0 +1,135 @@
+package nl.dantevg.dynmapexport;
+
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads tiles straight from the tiles directory of Dynmap's file tree storage,
+ * for when Dynmap runs on the same server. This skips the Dynmap web server
+ * entirely. Tiles are copied with {@link FileChannel#transferTo}, which lets
+ * the operating system copy without going through Java, or hardlinked with
+ * <code>link-tiles</code>.
+ * <p>
+ * The validators of a tile are its modification time and size, so unmodified
+ * tiles are not copied again.
+ */
+public class FileTreeTileSource implements TileSource {
+	private static final String DEFAULT_TILES_DIR = "plugins/dynmap/web/tiles";
+	
+	private final @NotNull File tilesDir;
+	private final @NotNull Logger logger;
+	private volatile boolean link;
+	
+	/**
+	 * @param tilesDir the tiles directory of Dynmap
+	 * @param link     whether to hardlink tiles instead of copying them
+	 * @param logger   the logger to log a failure to hardlink to
+	 */
+	public FileTreeTileSource(@NotNull File tilesDir, boolean link, @NotNull Logger logger) {
+		this.tilesDir = tilesDir;
+		this.link = link;
+		this.logger = logger;
+	}
+	
+	/**
+	 * Create the file tree tile source from the <code>dynmap-tiles-dir</code>
+	 * and <code>link-tiles</code> config options.
+	 *
+	 * @param plugin the DynmapExport plugin
+	 * @return the tile source
+	 */
+	public static @NotNull FileTreeTileSource fromConfig(@NotNull DynmapExport plugin) {
+		File tilesDir = new File(plugin.config.getString("dynmap-tiles-dir", DEFAULT_TILES_DIR));
+		if (!tilesDir.isDirectory()) {
+			plugin.logger.log(Level.WARNING, "Dynmap tiles directory " + tilesDir.getAbsolutePath()
+					+ " does not exist, is Dynmap using file tree storage?");
+		}
+		return new FileTreeTileSource(tilesDir, plugin.config.getBoolean("link-tiles", false), plugin.logger);
+	}
+	
+	@Override
+	public @NotNull DynmapHttpClient.Download fetch(@NotNull ExportConfig config, @NotNull TileCoords tile,
+	                                                @NotNull File dest,
+	                                                @Nullable DynmapHttpClient.Validators validators)
+			throws IOException {
+		Path source = getTileFile(config, tile).toPath();
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(source, BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			throw new FileNotFoundException("Dynmap has no tile at " + source);
+		}
+		DynmapHttpClient.Validators current = new DynmapHttpClient.Validators(
+				Long.toString(attributes.lastModifiedTime().toMillis()),
+				Long.toString(attributes.size()));
+		if (current.equals(validators)) return new DynmapHttpClient.Download(0, validators, true);
+		
+		long bytes = (link && link(source, dest.toPath())) ? attributes.size() : transfer(source, dest.toPath());
+		return new DynmapHttpClient.Download(bytes, current, false);
+	}
+	
+	/**
+	 * Get the file of a tile in Dynmap's tiles directory.
+	 *
+	 * @param config the export configuration
+	 * @param tile   the tile coordinates
+	 * @return the Dynmap tile file
+	 */
+	public @NotNull File getTileFile(@NotNull ExportConfig config, @NotNull TileCoords tile) {
+		// The Dynmap web path starts with the tiles directory itself
+		String path = Paths.getDynmapTilePath(config, tile);
+		return new File(tilesDir, path.substring(path.indexOf('/') + 1));
+	}
+	
+	/**
+	 * Hardlink <code>dest</code> to <code>source</code>, falling back to
+	 * copying from then on if the file system does not support it.
+	 *
+	 * @return whether the link was created
+	 */
+	private boolean link(@NotNull Path source, @NotNull Path dest) throws IOException {
+		Files.deleteIfExists(dest);
+		try {
+			createLink(dest, source);
+			return true;
+		} catch (NoSuchFileException e) {
+			throw e;
+		} catch (UnsupportedOperationException | FileSystemException e) {
+			link = false;
+			logger.log(Level.WARNING, "Could not hardlink Dynmap tiles, copying them instead");
+			return false;
+		}
+	}
+	
+	/**
+	 * Create a hardlink, see {@link Files#createLink(Path, Path)}. Tests
+	 * override this to simulate file systems without hardlinks.
+	 */
+	void createLink(@NotNull Path link, @NotNull Path existing) throws IOException {
+		Files.createLink(link, existing);
+	}
+	
+	private static long transfer(@NotNull Path source, @NotNull Path dest) throws IOException {
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+		     FileChannel out = FileChannel.open(dest, StandardOpenOption.WRITE,
+				     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long size = in.size();
+			long position = 0;
+			while (position < size) {
+				position += in.transferTo(position, size - position, out);
+			}
+			return position;
+		}
+	}
+	
+}
@@ -0,0 +1,295 @@
+package nl.dantevg.dynmapexport;
+
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Index of the tiles of a single export, stored in the export directory. For
+ * every tile it holds a hash of the raw file and a small signature of the
+ * pixels, so that most tiles can be compared without decoding the old tile.
+ * Export configurations of the same map share the export directory, so the
+ * index holds the tiles of all of them.
+ */
+public class FingerprintIndex {
+	private static final int MAGIC = 0x44454650; // "DEFP"
+	private static final int VERSION = 1;
+	
+	private final Map<String, Fingerprint> tiles = new ConcurrentHashMap<>();
+	
+	public @Nullable Fingerprint get(@NotNull File file) {
+		return tiles.get(file.getName());
+	}
+	
+	public void put(@NotNull File file, @NotNull Fingerprint fingerprint) {
+		tiles.put(file.getName(), fingerprint);
+	}
+	
+	public int size() {
+		return tiles.size();
+	}
+	
+	/**
+	 * Get the tiles that differ between this index and another index, without
+	 * reading any tile files.
+	 *
+	 * @param other the index of another export of the same map
+	 * @return the names of the tile files that are new, removed or have different contents
+	 */
+	public @NotNull Set<String> getChangedTiles(@NotNull FingerprintIndex other) {
+		Set<String> changed = new HashSet<>();
+		for (Map.Entry<String, Fingerprint> entry : tiles.entrySet()) {
+			Fingerprint otherFingerprint = other.tiles.get(entry.getKey());
+			if (otherFingerprint == null || !otherFingerprint.hash.equals(entry.getValue().hash)) {
+				changed.add(entry.getKey());
+			}
+		}
+		for (String name : other.tiles.keySet()) {
+			if (!tiles.containsKey(name)) changed.add(name);
+		}
+		return changed;
+	}
+	
+	/**
+	 * Load the fingerprint index of an export.
+	 *
+	 * @param plugin  the DynmapExport plugin
+	 * @param config  the export configuration
+	 * @param instant the time of the export
+	 * @return the index, or an empty index if the export has none
+	 */
+	public static @NotNull FingerprintIndex load(@NotNull DynmapExport plugin,
+	                                             @NotNull ExportConfig config,
+	                                             @NotNull Instant instant) {
+		return load(Paths.getFingerprintIndexFile(plugin, config, instant), plugin.logger);
+	}
+	
+	/**
+	 * Load a fingerprint index file.
+	 *
+	 * @param file   the index file
+	 * @param logger the logger to log read errors to
+	 * @return the index, or an empty index if the file does not exist or
+	 * could not be read
+	 */
+	static @NotNull FingerprintIndex load(@NotNull File file, @NotNull Logger logger) {
+		FingerprintIndex index = new FingerprintIndex();
+		if (!file.isFile()) return index;
+		
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(file))))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				logger.log(Level.WARNING, "Ignoring tile fingerprints of unknown format in " + file);
+				return index;
+			}
+			int nTiles = in.readInt();
+			for (int i = 0; i < nTiles; i++) {
+				String name = in.readUTF();
+				index.tiles.put(name, Fingerprint.read(in));
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not read tile fingerprints from " + file, e);
+			index.tiles.clear();
+		}
+		return index;
+	}
+	
+	/**
+	 * Save this index in the directory of an export. The tiles of the other
+	 * export configurations of the map in the index already in the directory
+	 * are kept.
+	 *
+	 * @param plugin  the DynmapExport plugin
+	 * @param config  the export configuration
+	 * @param instant the time of the export
+	 */
+	public void save(@NotNull DynmapExport plugin, @NotNull ExportConfig config, @NotNull Instant instant) {
+		save(Paths.getFingerprintIndexFile(plugin, config, instant), plugin.logger);
+	}
+	
+	/**
+	 * Merge this index into a fingerprint index file. Tiles that are in both
+	 * get the fingerprint of this index.
+	 *
+	 * @param file   the index file
+	 * @param logger the logger to log errors to
+	 */
+	void save(@NotNull File file, @NotNull Logger logger) {
+		Map<String, Fingerprint> merged = load(file, logger).tiles;
+		merged.putAll(tiles);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new GZIPOutputStream(new FileOutputStream(file))))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(merged.size());
+			for (Map.Entry<String, Fingerprint> entry : merged.entrySet()) {
+				out.writeUTF(entry.getKey());
+				entry.getValue().write(out);
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not save tile fingerprints to " + file, e);
+		}
+	}
+	
+	/**
+	 * The fingerprint of a single tile: a hash of the tile file, and a
+	 * signature of the pixels. The signature divides the tile into a grid of
+	 * blocks, and stores a hash and the sum of each colour channel per block.
+	 */
+	public static class Fingerprint {
+		public static final int GRID_SIZE = 8;
+		private static final int N_CHANNELS = 4;
+		
+		public final @NotNull String hash;
+		public final int width;
+		public final int height;
+		private final int @NotNull [] blockHashes;
+		private final int @NotNull [] blockSums;
+		
+		private Fingerprint(@NotNull String hash, int width, int height,
+		                    int @NotNull [] blockHashes, int @NotNull [] blockSums) {
+			this.hash = hash;
+			this.width = width;
+			this.height = height;
+			this.blockHashes = blockHashes;
+			this.blockSums = blockSums;
+		}
+		
+		/**
+		 * Create the fingerprint of a decoded tile.
+		 *
+		 * @param hash  the hash of the tile file, from {@link #hash(File)}
+		 * @param image the decoded tile
+		 * @return the fingerprint
+		 */
+		public static @NotNull Fingerprint of(@NotNull String hash, @NotNull BufferedImage image) {
+			int width = image.getWidth();
+			int height = image.getHeight();
+			int[] blockHashes = new int[GRID_SIZE * GRID_SIZE];
+			int[] blockSums = new int[GRID_SIZE * GRID_SIZE * N_CHANNELS];
+			int[] row = new int[width];
+			
+			for (int y = 0; y < height; y++) {
+				image.getRGB(0, y, width, 1, row, 0, width);
+				int blockRow = y * GRID_SIZE / height * GRID_SIZE;
+				for (int x = 0; x < width; x++) {
+					int block = blockRow + x * GRID_SIZE / width;
+					int argb = row[x];
+					int blockHash = (blockHashes[block] ^ argb) * 0x9E3779B1;
+					blockHashes[block] = blockHash ^ (blockHash >>> 15);
+					for (int channel = 0; channel < N_CHANNELS; channel++) {
+						blockSums[block * N_CHANNELS + channel] += (argb >>> (channel * 8)) & 0xFF;
+					}
+				}
+			}
+			return new Fingerprint(hash, width, height, blockHashes, blockSums);
+		}
+		
+		/**
+		 * Get a lower bound on the number of pixels that changed between the
+		 * tiles of two fingerprints. Each pixel can change a colour channel by
+		 * at most 255, so the change in the channel sums of a block shows how
+		 * many pixels in that block changed at least.
+		 *
+		 * @param other the fingerprint of the other tile
+		 * @return the minimum number of changed pixels
+		 */
+		public int getMinPixelsChanged(@NotNull Fingerprint other) {
+			if (!hasSameSize(other)) return Math.max(width * height, other.width * other.height);
+			if (hash.equals(other.hash)) return 0;
+			
+			int changed = 0;
+			for (int block = 0; block < blockHashes.length; block++) {
+				if (blockHashes[block] == other.blockHashes[block]) continue;
+				int blockChanged = 1;
+				for (int channel = 0; channel < N_CHANNELS; channel++) {
+					int i = block * N_CHANNELS + channel;
+					int difference = Math.abs(blockSums[i] - other.blockSums[i]);
+					blockChanged = Math.max(blockChanged, (difference + 254) / 255);
+				}
+				changed += blockChanged;
+			}
+			return changed;
+		}
+		
+		/**
+		 * Get an upper bound on the number of pixels that changed between the
+		 * tiles of two fingerprints: the number of pixels in all blocks with a
+		 * different hash. Blocks with the same hash are assumed to be unchanged.
+		 *
+		 * @param other the fingerprint of the other tile
+		 * @return the maximum number of changed pixels
+		 */
+		public int getMaxPixelsChanged(@NotNull Fingerprint other) {
+			if (!hasSameSize(other)) return Math.max(width * height, other.width * other.height);
+			if (hash.equals(other.hash)) return 0;
+			
+			int changed = 0;
+			for (int blockY = 0; blockY < GRID_SIZE; blockY++) {
+				for (int blockX = 0; blockX < GRID_SIZE; blockX++) {
+					int block = blockY * GRID_SIZE + blockX;
+					if (blockHashes[block] == other.blockHashes[block]) continue;
+					changed += getBlockSize(blockX, width) * getBlockSize(blockY, height);
+				}
+			}
+			return changed;
+		}
+		
+		private boolean hasSameSize(@NotNull Fingerprint other) {
+			return width == other.width && height == other.height;
+		}
+		
+		/**
+		 * @return the number of pixels <code>p</code> in <code>[0, size)</code>
+		 * for which <code>p * GRID_SIZE / size == block</code>
+		 */
+		private static int getBlockSize(int block, int size) {
+			return ceilDiv(size * (block + 1), GRID_SIZE) - ceilDiv(size * block, GRID_SIZE);
+		}
+		
+		private static int ceilDiv(int a, int b) {
+			return (a + b - 1) / b;
+		}
+		
+		/**
+		 * Hash the raw contents of a tile file.
+		 *
+		 * @param file the tile file
+		 * @return the hex-encoded hash
+		 * @throws IOException when the file could not be read
+		 */
+		public static @NotNull String hash(@NotNull File file) throws IOException {
+			return com.google.common.io.Files.asByteSource(file).hash(Hashing.murmur3_128()).toString();
+		}
+		
+		private void write(@NotNull DataOutputStream out) throws IOException {
+			out.writeUTF(hash);
+			out.writeInt(width);
+			out.writeInt(height);
+			for (int blockHash : blockHashes) out.writeInt(blockHash);
+			for (int blockSum : blockSums) out.writeInt(blockSum);
+		}
+		
+		private static @NotNull Fingerprint read(@NotNull DataInputStream in) throws IOException {
+			String hash = in.readUTF();
+			int width = in.readInt();
+			int height = in.readInt();
+			int[] blockHashes = new int[GRID_SIZE * GRID_SIZE];
+			int[] blockSums = new int[GRID_SIZE * GRID_SIZE * N_CHANNELS];
+			for (int i = 0; i < blockHashes.length; i++) blockHashes[i] = in.readInt();
+			for (int i = 0; i < blockSums.length; i++) blockSums[i] = in.readInt();
+			return new Fingerprint(hash, width, height, blockHashes, blockSums);
+		}
+	}
+	
+}
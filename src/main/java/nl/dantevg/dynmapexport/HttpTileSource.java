@@ -0,0 +1,29 @@
+package nl.dantevg.dynmapexport;
+
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Downloads tiles from the Dynmap web server, using conditional requests to
+ * skip tiles that were not modified.
+ */
+public class HttpTileSource implements TileSource {
+	private final @NotNull DynmapHttpClient httpClient;
+	
+	public HttpTileSource(@NotNull DynmapHttpClient httpClient) {
+		this.httpClient = httpClient;
+	}
+	
+	@Override
+	public @NotNull DynmapHttpClient.Download fetch(@NotNull ExportConfig config, @NotNull TileCoords tile,
+	                                                @NotNull File dest,
+	                                                @Nullable DynmapHttpClient.Validators validators)
+			throws IOException {
+		return httpClient.download(Paths.getDynmapTilePath(config, tile), dest, validators);
+	}
+	
+}
@@ -1,6 +1,8 @@
 package nl.dantevg.dynmapexport;
 
 import com.google.common.io.Files;
+import nl.dantevg.dynmapexport.FingerprintIndex.Fingerprint;
+import nl.dantevg.dynmapexport.location.TileCoords;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -10,75 +12,212 @@ import java.io.File;
 import java.io.IOException;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
-import java.util.Arrays;
-import java.util.Collection;
+import java.util.*;
 import java.util.logging.Level;
 
 public class ImageTresholdCache {
+	private static final int DEFAULT_BASELINE_CACHE_SIZE = 32; // MB
+	
 	private final DynmapExport plugin;
 	private final double treshold;
+	private final BaselineCache baselineCache;
 	
 	public ImageTresholdCache(DynmapExport plugin) {
 		this.plugin = plugin;
 		this.treshold = plugin.config.getDouble("change-treshold");
+		int baselineCacheSize = plugin.config.getInt("baseline-cache-size", DEFAULT_BASELINE_CACHE_SIZE);
+		this.baselineCache = new BaselineCache(Math.max(0, baselineCacheSize) * 1024L * 1024L);
 	}
 	
-	public boolean anyChangedSince(Instant since, @NotNull ExportConfig config, @NotNull Collection<File> files) {
-		return files.stream().anyMatch(file -> hasChangedSince(since, config, file));
+	/**
+	 * Check which tiles of a new export changed since the export at
+	 * <code>since</code>, and build the fingerprint index of the new export.
+	 * Tiles whose file is identical to the tile in the previous export are not
+	 * decoded, and most others are classified by their fingerprint only.
+	 *
+	 * @param since    the time of the previous export, if any
+	 * @param config   the export configuration
+	 * @param files    all tiles of the new export
+	 * @param modified the tiles that may have been modified since the previous
+	 *                 export. The other tiles are copies of the previous export.
+	 * @return the changes of the new export
+	 */
+	public @NotNull Changes getChanges(@Nullable Instant since, @NotNull ExportConfig config,
+	                                   @NotNull Map<TileCoords, File> files, @NotNull Set<TileCoords> modified) {
+		FingerprintIndex previousFingerprints = (since != null)
+				? FingerprintIndex.load(plugin, config, since)
+				: new FingerprintIndex();
+		Changes changes = new Changes(files.size());
+		
+		for (Map.Entry<TileCoords, File> entry : files.entrySet()) {
+			TileCoords tile = entry.getKey();
+			File file = entry.getValue();
+			Fingerprint previous = previousFingerprints.get(file);
+			if (!modified.contains(tile)) {
+				if (previous != null) changes.fingerprints.put(file, previous);
+				continue;
+			}
+			
+			Fingerprint fingerprint = checkTile(since, config, tile, file, previous, changes);
+			if (fingerprint != null) changes.fingerprints.put(file, fingerprint);
+		}
+		
+		return changes;
 	}
 	
+	/**
+	 * @param config the export configuration
+	 * @return the time of the latest export that still has its tiles, or null
+	 * if there is none
+	 */
 	public @Nullable Instant getCachedInstant(@NotNull ExportConfig config) {
-		File mapDir = Paths.getLocalMapDir(plugin, config);
-		if (!mapDir.isDirectory()) return null;
-		return Arrays.stream(mapDir.listFiles())
-				.map(Paths::getInstantFromFile) // file -> instant
-				.sorted()
-				.reduce((a, b) -> b) // get latest instant
-				.orElse(null);
+		return plugin.getManifest(config).getLatestExport();
+	}
+	
+	/**
+	 * Make the export at <code>instant</code> the new baseline for
+	 * <code>config</code>, dropping the cached tiles of previous baselines.
+	 *
+	 * @param config  the export configuration
+	 * @param instant the time of the new baseline export
+	 */
+	public void setBaseline(@NotNull ExportConfig config, @NotNull Instant instant) {
+		baselineCache.invalidate(Paths.getLocalMapDir(plugin, config),
+				Paths.getLocalExportDir(plugin, config, instant));
 	}
 	
-	private boolean hasChangedSince(@Nullable Instant since, @NotNull ExportConfig config, @NotNull File file) {
-		if (since == null) return true;
+	/**
+	 * Drop the cached tiles of an export that does not become the baseline.
+	 *
+	 * @param config  the export configuration
+	 * @param instant the time of the discarded export
+	 */
+	public void discard(@NotNull ExportConfig config, @NotNull Instant instant) {
+		baselineCache.remove(Paths.getLocalExportDir(plugin, config, instant));
+	}
+	
+	/**
+	 * Check whether a single tile changed since the previous export, and add
+	 * it to <code>changes</code> if it did.
+	 *
+	 * @return the fingerprint of the tile, or null if it could not be read
+	 */
+	private @Nullable Fingerprint checkTile(@Nullable Instant since, @NotNull ExportConfig config,
+	                                        @NotNull TileCoords tile, @NotNull File file,
+	                                        @Nullable Fingerprint previous, @NotNull Changes changes) {
+		String hash;
+		try {
+			hash = Fingerprint.hash(file);
+		} catch (IOException e) {
+			plugin.logger.log(Level.WARNING, "Could not read image from " + file);
+			changes.add(tile, true);
+			return null;
+		}
+		// Identical file, no need to decode anything
+		if (previous != null && previous.hash.equals(hash)) {
+			if (treshold <= 0) changes.overTreshold.add(tile);
+			return previous;
+		}
 		
 		BufferedImage image;
 		try {
 			image = ImageIO.read(file);
+			if (image == null) throw new IOException("unknown image format");
 		} catch (IOException e) {
 			plugin.logger.log(Level.WARNING, "Could not read image from " + file);
-			return true;
+			changes.add(tile, true);
+			return null;
+		}
+		Fingerprint fingerprint = Fingerprint.of(hash, image);
+		// The next export is compared to this tile if this export is kept
+		baselineCache.put(file, image);
+		
+		if (since == null) {
+			changes.add(tile, true);
+			return fingerprint;
+		}
+		
+		// Decide on fingerprints only, if possible
+		int minPixelsChanged = getMinPixelsChanged(image);
+		if (previous != null && previous.getMinPixelsChanged(fingerprint) >= minPixelsChanged) {
+			changes.add(tile, true);
+			return fingerprint;
+		} else if (previous != null && previous.getMaxPixelsChanged(fingerprint) < minPixelsChanged) {
+			changes.add(tile, false);
+			return fingerprint;
 		}
 		
 		File cachedImageFile = new File(Paths.getLocalExportDir(plugin, config, since), file.getName());
-		if (!cachedImageFile.exists()) return true;
+		if (!cachedImageFile.exists()) {
+			changes.add(tile, true);
+			return fingerprint;
+		}
 		
 		BufferedImage from;
 		try {
-			from = ImageIO.read(cachedImageFile);
+			from = baselineCache.get(cachedImageFile);
 		} catch (IOException e) {
 			plugin.logger.log(Level.WARNING, "Could not read image from " + cachedImageFile);
-			return true;
+			from = null;
 		}
-		return getFractionPixelsChanged(from, image) >= treshold;
+		changes.add(tile, from == null || isChangedOverTreshold(from, image));
+		return fingerprint;
+	}
+	
+	/**
+	 * Whether at least a fraction of <code>treshold</code> pixels differ
+	 * between the two images. Stops comparing as soon as this is known.
+	 */
+	private boolean isChangedOverTreshold(@NotNull BufferedImage from, @NotNull BufferedImage to) {
+		int minPixelsChanged = getMinPixelsChanged(to);
+		return RasterDiff.countChangedPixels(from, to, minPixelsChanged) >= minPixelsChanged;
 	}
 	
-	private double getFractionPixelsChanged(@NotNull BufferedImage from, @NotNull BufferedImage to) {
-		int pixelsChanged = getNPixelsChanged(from, to);
-		int totalPixels = to.getWidth() * to.getHeight();
-		return (double) pixelsChanged / totalPixels;
+	/**
+	 * @return the number of pixels of <code>image</code> that need to change
+	 * for it to be over the treshold
+	 */
+	private int getMinPixelsChanged(@NotNull BufferedImage image) {
+		return (int) Math.ceil(treshold * image.getWidth() * image.getHeight());
 	}
 	
-	private int getNPixelsChanged(@NotNull BufferedImage from, @NotNull BufferedImage to) {
-		assert from.getWidth() == to.getWidth();
-		assert from.getHeight() == to.getHeight();
+	/**
+	 * The changes in the tiles of a new export compared to the previous export.
+	 */
+	public static class Changes {
+		/**
+		 * The tiles that changed, by at least the change treshold or not
+		 */
+		public final Set<TileCoords> modified = new HashSet<>();
+		/**
+		 * The tiles that changed by at least the change treshold
+		 */
+		public final Set<TileCoords> overTreshold = new HashSet<>();
+		/**
+		 * The fingerprints of the tiles of the new export
+		 */
+		public final FingerprintIndex fingerprints = new FingerprintIndex();
+		public final int nTiles;
 		
-		int changed = 0;
-		for (int x = 0; x < from.getWidth(); x++) {
-			for (int y = 0; y < from.getHeight(); y++) {
-				if (from.getRGB(x, y) != to.getRGB(x, y)) changed++;
-			}
+		public Changes(int nTiles) {
+			this.nTiles = nTiles;
+		}
+		
+		private void add(@NotNull TileCoords tile, boolean isOverTreshold) {
+			modified.add(tile);
+			if (isOverTreshold) overTreshold.add(tile);
 		}
 		
-		return changed;
+		public boolean isOverTreshold() {
+			return !overTreshold.isEmpty();
+		}
+		
+		/**
+		 * @return the fraction of tiles that changed by at least the change treshold
+		 */
+		public double getChangeFraction() {
+			return (nTiles > 0) ? (double) overTreshold.size() / nTiles : 0;
+		}
 	}
 	
 }
@@ -10,6 +10,7 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 
 public class Paths {
 	private static final DateTimeFormatter dateTimeFormatter =
@@ -52,8 +53,16 @@ public class Paths {
 	 * @return the local map directory at <code>plugins/DynmapExport/exports/{world}/{map}/</code>
 	 */
 	public static @NotNull File getLocalMapDir(@NotNull DynmapExport plugin, @NotNull ExportConfig config) {
-		return new File(plugin.getDataFolder(),
-				String.format("exports/%s/%s", config.world.name, config.map.name));
+		return getLocalMapDir(plugin.getDataFolder(), config);
+	}
+	
+	/**
+	 * @param dataFolder the data folder of the plugin
+	 * @param config     the export configuration
+	 * @return the local map directory, see {@link #getLocalMapDir(DynmapExport, ExportConfig)}
+	 */
+	public static @NotNull File getLocalMapDir(@NotNull File dataFolder, @NotNull ExportConfig config) {
+		return new File(dataFolder, String.format("exports/%s/%s", config.world.name, config.map.name));
 	}
 	
 	/**
@@ -67,7 +76,19 @@ public class Paths {
 	public static @NotNull File getLocalExportDir(@NotNull DynmapExport plugin,
 	                                              @NotNull ExportConfig config,
 	                                              @NotNull Instant instant) {
-		return new File(getLocalMapDir(plugin, config), getInstantFormat().format(instant));
+		return getLocalExportDir(plugin.getDataFolder(), config, instant);
+	}
+	
+	/**
+	 * @param dataFolder the data folder of the plugin
+	 * @param config     the export configuration
+	 * @param instant    the time of the export
+	 * @return the local export directory, see {@link #getLocalExportDir(DynmapExport, ExportConfig, Instant)}
+	 */
+	public static @NotNull File getLocalExportDir(@NotNull File dataFolder,
+	                                              @NotNull ExportConfig config,
+	                                              @NotNull Instant instant) {
+		return new File(getLocalMapDir(dataFolder, config), getInstantFormat().format(instant));
 	}
 	
 	/**
@@ -86,8 +107,130 @@ public class Paths {
 	                                             @NotNull ExportConfig config,
 	                                             @NotNull Instant instant,
 	                                             @NotNull TileCoords tile) {
-		return new File(getLocalExportDir(plugin, config, instant),
-				String.format("%s%d_%d.png", getZoomString(config.zoom), tile.x, tile.y));
+		return getLocalTileFile(plugin, config, instant, tile, config.zoom);
+	}
+	
+	/**
+	 * Get the local file for the image in a single export at the given location
+	 * and zoom level, which may differ from the zoom level of the export
+	 * configuration for the locally generated zoom levels.
+	 *
+	 * @param plugin  the DynmapExport plugin
+	 * @param config  the export configuration
+	 * @param instant the time of the export
+	 * @param tile    the Dynmap tile coordinates
+	 * @param zoom    the zoom-out level of the tile
+	 * @return the local file of the tile at location
+	 * <code>plugins/DynmapExport/exports/{world}/{map}/{instant}/{zoom}_{tileX}_{tileY}.png</code>
+	 */
+	public static @NotNull File getLocalTileFile(@NotNull DynmapExport plugin,
+	                                             @NotNull ExportConfig config,
+	                                             @NotNull Instant instant,
+	                                             @NotNull TileCoords tile,
+	                                             int zoom) {
+		return getLocalTileFile(plugin.getDataFolder(), config, instant, tile, zoom);
+	}
+	
+	/**
+	 * @param dataFolder the data folder of the plugin
+	 * @param config     the export configuration
+	 * @param instant    the time of the export
+	 * @param tile       the Dynmap tile coordinates
+	 * @param zoom       the zoom-out level of the tile
+	 * @return the local file of the tile, see
+	 * {@link #getLocalTileFile(DynmapExport, ExportConfig, Instant, TileCoords, int)}
+	 */
+	public static @NotNull File getLocalTileFile(@NotNull File dataFolder,
+	                                             @NotNull ExportConfig config,
+	                                             @NotNull Instant instant,
+	                                             @NotNull TileCoords tile,
+	                                             int zoom) {
+		return new File(getLocalExportDir(dataFolder, config, instant), getLocalTileName(tile, zoom));
+	}
+	
+	/**
+	 * @param tile the Dynmap tile coordinates
+	 * @param zoom the zoom-out level of the tile
+	 * @return the file name of the tile in an export directory,
+	 * <code>{zoom}_{tileX}_{tileY}.png</code>
+	 */
+	public static @NotNull String getLocalTileName(@NotNull TileCoords tile, int zoom) {
+		return String.format("%s%d_%d.png", getZoomString(zoom), tile.x, tile.y);
+	}
+	
+	/**
+	 * Get the local archive file of a single export, which contains the tiles
+	 * of the export once it is packed, see {@link ExportArchive}.
+	 *
+	 * @param plugin  the DynmapExport plugin
+	 * @param config  the export configuration
+	 * @param instant the time of the export
+	 * @return the archive file at location
+	 * <code>plugins/DynmapExport/exports/{world}/{map}/{instant}.tiles</code>
+	 */
+	public static @NotNull File getLocalArchiveFile(@NotNull DynmapExport plugin,
+	                                               @NotNull ExportConfig config,
+	                                               @NotNull Instant instant) {
+		return getLocalArchiveFile(plugin.getDataFolder(), config, instant);
+	}
+	
+	/**
+	 * @param dataFolder the data folder of the plugin
+	 * @param config     the export configuration
+	 * @param instant    the time of the export
+	 * @return the archive file, see {@link #getLocalArchiveFile(DynmapExport, ExportConfig, Instant)}
+	 */
+	public static @NotNull File getLocalArchiveFile(@NotNull File dataFolder,
+	                                               @NotNull ExportConfig config,
+	                                               @NotNull Instant instant) {
+		return new File(getLocalMapDir(dataFolder, config), getInstantFormat().format(instant) + ".tiles");
+	}
+	
+	/**
+	 * Get the export manifest of a map.
+	 *
+	 * @param plugin the DynmapExport plugin
+	 * @param config the export configuration
+	 * @return the manifest file at <code>plugins/DynmapExport/exports/{world}/{map}/manifest.txt</code>
+	 */
+	public static @NotNull File getManifestFile(@NotNull DynmapExport plugin, @NotNull ExportConfig config) {
+		return getManifestFile(plugin.getDataFolder(), config);
+	}
+	
+	/**
+	 * @param dataFolder the data folder of the plugin
+	 * @param config     the export configuration
+	 * @return the manifest file, see {@link #getManifestFile(DynmapExport, ExportConfig)}
+	 */
+	public static @NotNull File getManifestFile(@NotNull File dataFolder, @NotNull ExportConfig config) {
+		return new File(getLocalMapDir(dataFolder, config), "manifest.txt");
+	}
+	
+	/**
+	 * Get the file with the adapted export intervals of the configurations of
+	 * a map, see {@link AdaptiveInterval}.
+	 *
+	 * @param plugin the DynmapExport plugin
+	 * @param config the export configuration
+	 * @return the interval file at <code>plugins/DynmapExport/exports/{world}/{map}/intervals.txt</code>
+	 */
+	public static @NotNull File getAdaptiveIntervalFile(@NotNull DynmapExport plugin, @NotNull ExportConfig config) {
+		return new File(getLocalMapDir(plugin, config), "intervals.txt");
+	}
+	
+	/**
+	 * Get the local file of the tile fingerprint index of a single export.
+	 *
+	 * @param plugin  the DynmapExport plugin
+	 * @param config  the export configuration
+	 * @param instant the time of the export
+	 * @return the fingerprint index file at location
+	 * <code>plugins/DynmapExport/exports/{world}/{map}/{instant}/fingerprints.dat</code>
+	 */
+	public static @NotNull File getFingerprintIndexFile(@NotNull DynmapExport plugin,
+	                                                    @NotNull ExportConfig config,
+	                                                    @NotNull Instant instant) {
+		return new File(getLocalExportDir(plugin, config, instant), "fingerprints.dat");
 	}
 	
 	/**
@@ -102,7 +245,80 @@ public class Paths {
 	public static @NotNull File getLocalCombinedFile(@NotNull DynmapExport plugin,
 	                                                 @NotNull ExportConfig config,
 	                                                 @NotNull Instant instant) {
-		return new File(getLocalMapDir(plugin, config), getInstantFormat().format(instant) + ".png");
+		return getLocalCombinedFile(plugin.getDataFolder(), config, instant);
+	}
+	
+	/**
+	 * @param dataFolder the data folder of the plugin
+	 * @param config     the export configuration
+	 * @param instant    the time of the export
+	 * @return the combined image file, see {@link #getLocalCombinedFile(DynmapExport, ExportConfig, Instant)}
+	 */
+	public static @NotNull File getLocalCombinedFile(@NotNull File dataFolder,
+	                                                 @NotNull ExportConfig config,
+	                                                 @NotNull Instant instant) {
+		return new File(getLocalMapDir(dataFolder, config), getInstantFormat().format(instant) + ".png");
+	}
+	
+	/**
+	 * Get the local file for the time-lapse of all combined images of a map.
+	 *
+	 * @param plugin the DynmapExport plugin
+	 * @param config the export configuration
+	 * @return the local time-lapse file at location
+	 * <code>plugins/DynmapExport/exports/{world}/{map}/timelapse.png</code>
+	 */
+	public static @NotNull File getLocalTimeLapseFile(@NotNull DynmapExport plugin, @NotNull ExportConfig config) {
+		return new File(getLocalMapDir(plugin, config), "timelapse.png");
+	}
+	
+	/**
+	 * Get the directory of the content-addressed tile store.
+	 *
+	 * @param plugin the DynmapExport plugin
+	 * @return the tile store directory at <code>plugins/DynmapExport/tile-store/</code>
+	 */
+	public static @NotNull File getTileStoreDir(@NotNull DynmapExport plugin) {
+		return getTileStoreDir(plugin.getDataFolder());
+	}
+	
+	/**
+	 * @param dataFolder the data folder of the plugin
+	 * @return the tile store directory, see {@link #getTileStoreDir(DynmapExport)}
+	 */
+	public static @NotNull File getTileStoreDir(@NotNull File dataFolder) {
+		return new File(dataFolder, "tile-store");
+	}
+	
+	/**
+	 * Get the file of a tile in the content-addressed tile store.
+	 *
+	 * @param plugin the DynmapExport plugin
+	 * @param hash   the hex-encoded hash of the tile file
+	 * @return the stored tile file at <code>plugins/DynmapExport/tile-store/{hash[0..1]}/{hash}.png</code>
+	 */
+	public static @NotNull File getTileStoreFile(@NotNull DynmapExport plugin, @NotNull String hash) {
+		return getTileStoreFile(plugin.getDataFolder(), hash);
+	}
+	
+	/**
+	 * @param dataFolder the data folder of the plugin
+	 * @param hash       the hex-encoded hash of the tile file
+	 * @return the stored tile file, see {@link #getTileStoreFile(DynmapExport, String)}
+	 */
+	public static @NotNull File getTileStoreFile(@NotNull File dataFolder, @NotNull String hash) {
+		return new File(getTileStoreDir(dataFolder), String.format("%s/%s.png", hash.substring(0, 2), hash));
+	}
+	
+	/**
+	 * Get the directory of the tiles fetched during export runs, which has a
+	 * subdirectory for every run in progress.
+	 *
+	 * @param plugin the DynmapExport plugin
+	 * @return the run tile cache directory at <code>plugins/DynmapExport/run-cache/</code>
+	 */
+	public static @NotNull File getRunTileCacheDir(@NotNull DynmapExport plugin) {
+		return new File(plugin.getDataFolder(), "run-cache");
 	}
 	
 	public static @NotNull String getZoomString(int zoom) {
@@ -114,4 +330,18 @@ public class Paths {
 				Files.getNameWithoutExtension(file.getName())));
 	}
 	
+	/**
+	 * @param file the file to check
+	 * @return whether the file is an export directory or combined image, i.e.
+	 * whether its name is an instant
+	 */
+	public static boolean isInstantFile(File file) {
+		try {
+			getInstantFromFile(file);
+			return true;
+		} catch (DateTimeParseException e) {
+			return false;
+		}
+	}
+	
 }
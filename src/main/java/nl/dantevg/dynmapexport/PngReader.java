@@ -0,0 +1,182 @@
+package nl.dantevg.dynmapexport;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Incremental PNG decoder for 8-bit RGB images without interlacing, like the
+ * combined images written by {@link PngWriter} and by ImageIO. Rows are
+ * decompressed and unfiltered as they are read, so the whole image never needs
+ * to be in memory at once.
+ */
+public class PngReader implements Closeable {
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+	private static final int BYTES_PER_PIXEL = 3;
+	private static final int COLOR_TYPE_RGB = 2;
+	
+	private final DataInputStream in;
+	private final int width;
+	private final int height;
+	private final DataInputStream data;
+	
+	private byte[] previousRow;
+	private byte[] currentRow;
+	private int nRowsRead = 0;
+	
+	/**
+	 * Create a PNG reader and read the PNG header from <code>in</code>.
+	 *
+	 * @param in the stream to read the PNG from
+	 * @throws IOException when the header could not be read, or the image is
+	 *                     not an 8-bit RGB image without interlacing
+	 */
+	public PngReader(@NotNull InputStream in) throws IOException {
+		this.in = new DataInputStream(in);
+		byte[] signature = new byte[SIGNATURE.length];
+		this.in.readFully(signature);
+		if (!Arrays.equals(signature, SIGNATURE)) throw new IOException("not a PNG file");
+		
+		int length = this.in.readInt();
+		if (length != 13 || readChunkType() != 0x49484452) throw new IOException("missing PNG header"); // IHDR
+		width = this.in.readInt();
+		height = this.in.readInt();
+		int bitDepth = this.in.readUnsignedByte();
+		int colorType = this.in.readUnsignedByte();
+		this.in.skipBytes(2); // compression and filter method, only one of each exists
+		int interlace = this.in.readUnsignedByte();
+		this.in.skipBytes(4); // CRC
+		if (bitDepth != 8 || colorType != COLOR_TYPE_RGB || interlace != 0) {
+			throw new IOException(String.format("unsupported PNG format (bit depth %d, color type %d, interlace %d)",
+					bitDepth, colorType, interlace));
+		}
+		
+		int rowSize = width * BYTES_PER_PIXEL;
+		previousRow = new byte[rowSize];
+		currentRow = new byte[rowSize];
+		data = new DataInputStream(new InflaterInputStream(new ImageDataInputStream()));
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	public int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * Read the next row of the image.
+	 *
+	 * @param pixels the array to store the pixels in, in <code>0xRRGGBB</code> format
+	 * @param offset the index to store the first pixel of the row at
+	 * @throws IOException when the row could not be read
+	 */
+	public void readRow(int @NotNull [] pixels, int offset) throws IOException {
+		if (nRowsRead >= height) throw new IllegalStateException("all rows have been read already");
+		int filterType = data.readUnsignedByte();
+		data.readFully(currentRow);
+		unfilter(filterType, previousRow, currentRow, nRowsRead == 0);
+		for (int x = 0, i = 0; x < width; x++) {
+			pixels[offset + x] = (currentRow[i++] & 0xFF) << 16
+					| (currentRow[i++] & 0xFF) << 8
+					| (currentRow[i++] & 0xFF);
+		}
+		
+		byte[] temp = previousRow;
+		previousRow = currentRow;
+		currentRow = temp;
+		nRowsRead++;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+	
+	private static void unfilter(int filterType, byte @NotNull [] previous, byte @NotNull [] current, boolean isFirst)
+			throws IOException {
+		for (int i = 0; i < current.length; i++) {
+			int left = (i >= BYTES_PER_PIXEL) ? current[i - BYTES_PER_PIXEL] & 0xFF : 0;
+			int up = isFirst ? 0 : previous[i] & 0xFF;
+			int upLeft = (!isFirst && i >= BYTES_PER_PIXEL) ? previous[i - BYTES_PER_PIXEL] & 0xFF : 0;
+			int predictor;
+			switch (filterType) {
+				case 0:
+					predictor = 0;
+					break;
+				case 1:
+					predictor = left;
+					break;
+				case 2:
+					predictor = up;
+					break;
+				case 3:
+					predictor = (left + up) >> 1;
+					break;
+				case 4:
+					predictor = PngWriter.paeth(left, up, upLeft);
+					break;
+				default:
+					throw new IOException("invalid PNG filter type " + filterType);
+			}
+			current[i] = (byte) (current[i] + predictor);
+		}
+	}
+	
+	private int readChunkType() throws IOException {
+		return in.readInt();
+	}
+	
+	/**
+	 * The contents of all consecutive IDAT chunks, as a single stream.
+	 */
+	private class ImageDataInputStream extends InputStream {
+		private int remaining = 0;
+		private boolean isStarted = false;
+		private boolean isEnded = false;
+		
+		@Override
+		public int read() throws IOException {
+			if (!nextChunk()) return -1;
+			remaining--;
+			return in.readUnsignedByte();
+		}
+		
+		@Override
+		public int read(byte @NotNull [] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			if (!nextChunk()) return -1;
+			int n = in.read(b, off, Math.min(len, remaining));
+			if (n < 0) throw new EOFException("unexpected end of PNG file");
+			remaining -= n;
+			return n;
+		}
+		
+		/**
+		 * Move to the next IDAT chunk if the current one has been read
+		 * completely, skipping any chunks before the first IDAT chunk.
+		 *
+		 * @return whether there is image data left
+		 */
+		private boolean nextChunk() throws IOException {
+			while (remaining == 0 && !isEnded) {
+				if (isStarted) in.skipBytes(4); // CRC of the previous IDAT chunk
+				int length = in.readInt();
+				int type = readChunkType();
+				if (type == 0x49444154) { // IDAT
+					isStarted = true;
+					remaining = length;
+				} else if (isStarted || type == 0x49454E44) { // IEND
+					isEnded = true;
+				} else {
+					in.skipBytes(length + 4); // chunk before the image data, and its CRC
+				}
+			}
+			return remaining > 0;
+		}
+	}
+	
+}
@@ -0,0 +1,476 @@
+package nl.dantevg.dynmapexport;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Incremental PNG encoder for 8-bit RGB images. Rows are filtered and
+ * compressed as they are written, so the whole image never needs to be in
+ * memory at once.
+ * <p>
+ * When given an executor, chunks of rows are filtered and compressed in
+ * parallel. Every chunk is compressed as a separate raw deflate block sequence
+ * that ends on a byte boundary (like <a href="https://zlib.net/pigz/">pigz</a>
+ * does), using the end of the previous chunk as dictionary so that the
+ * compression ratio stays close to compressing the whole image at once. The
+ * chunks are concatenated into a single zlib stream, with the Adler-32
+ * checksum combined from the checksums of the chunks.
+ * <p>
+ * The writer can also encode a single frame of an animated PNG, see
+ * {@link ApngWriter}.
+ */
+public class PngWriter implements Closeable {
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+	private static final int BYTES_PER_PIXEL = 3;
+	private static final int COLOR_TYPE_RGB = 2;
+	private static final int MAX_IDAT_SIZE = 1 << 16;
+	
+	private static final int CHUNK_SIZE = 1 << 18; // uncompressed bytes per parallel chunk
+	private static final int DICTIONARY_SIZE = 1 << 15; // deflate window size
+	private static final int MAX_PENDING_CHUNKS = 16;
+	private static final int ADLER_BASE = 65521;
+	
+	private static final int FILTER_NONE = 0;
+	private static final int FILTER_SUB = 1;
+	private static final int FILTER_UP = 2;
+	private static final int FILTER_AVERAGE = 3;
+	private static final int FILTER_PAETH = 4;
+	
+	private final DataOutputStream out;
+	private final @Nullable ApngWriter animation;
+	private final int width;
+	private final int height;
+	private final int compressionLevel;
+	private final int rowSize;
+	private int nRowsWritten = 0;
+	
+	// Sequential encoding
+	private final Deflater deflater;
+	private final byte[] idat = new byte[MAX_IDAT_SIZE];
+	private int idatSize = 0;
+	private byte[] previousRow;
+	private byte[] currentRow;
+	private final byte[][] filteredRows = new byte[5][];
+	
+	// Parallel encoding
+	private final @Nullable ExecutorService executor;
+	private final int rowsPerChunk;
+	private final int dictionaryRows;
+	private List<byte[]> chunkRows = new ArrayList<>();
+	private final Deque<byte[]> contextRows = new ArrayDeque<>();
+	private final Deque<Future<Chunk>> pendingChunks = new ArrayDeque<>();
+	private long adler = 1;
+	private boolean isFirstChunk = true;
+	
+	/**
+	 * Create a PNG writer and write the PNG header to <code>out</code>.
+	 *
+	 * @param out              the stream to write the PNG to
+	 * @param width            the width of the image in pixels
+	 * @param height           the height of the image in pixels
+	 * @param compressionLevel the deflate compression level, 0-9
+	 *                         (or {@link Deflater#DEFAULT_COMPRESSION})
+	 * @param executor         the executor to filter and compress chunks of
+	 *                         rows on, or null to encode on the calling thread
+	 * @throws IOException when the header could not be written
+	 */
+	public PngWriter(@NotNull OutputStream out, int width, int height, int compressionLevel,
+	                 @Nullable ExecutorService executor) throws IOException {
+		this(out, width, height, compressionLevel, executor, null);
+	}
+	
+	/**
+	 * Create a PNG writer for a frame of an animated PNG. The frame is written
+	 * without PNG header and end, and its image data goes through
+	 * <code>animation</code>.
+	 *
+	 * @param animation the animated PNG writer to write the image data with,
+	 *                  or null to write a normal PNG
+	 */
+	PngWriter(@NotNull OutputStream out, int width, int height, int compressionLevel,
+	          @Nullable ExecutorService executor, @Nullable ApngWriter animation) throws IOException {
+		if (width <= 0 || height <= 0) throw new IllegalArgumentException("image size must be positive");
+		this.out = new DataOutputStream(out);
+		this.animation = animation;
+		this.width = width;
+		this.height = height;
+		this.compressionLevel = compressionLevel;
+		this.rowSize = width * BYTES_PER_PIXEL;
+		this.executor = executor;
+		this.rowsPerChunk = Math.max(1, CHUNK_SIZE / (rowSize + 1));
+		this.dictionaryRows = (DICTIONARY_SIZE + rowSize) / (rowSize + 1); // ceil
+		
+		if (executor == null) {
+			deflater = new Deflater(compressionLevel);
+			previousRow = new byte[rowSize];
+			currentRow = new byte[rowSize];
+			for (int i = 0; i < filteredRows.length; i++) filteredRows[i] = new byte[rowSize + 1];
+		} else {
+			deflater = null;
+		}
+		
+		if (animation == null) writeHeader(this.out, width, height);
+	}
+	
+	public PngWriter(@NotNull OutputStream out, int width, int height, int compressionLevel) throws IOException {
+		this(out, width, height, compressionLevel, null);
+	}
+	
+	public PngWriter(@NotNull OutputStream out, int width, int height) throws IOException {
+		this(out, width, height, Deflater.DEFAULT_COMPRESSION);
+	}
+	
+	/**
+	 * Write the next row of the image.
+	 *
+	 * @param pixels the pixels in <code>0xRRGGBB</code> format (the upper 8 bits are ignored)
+	 * @param offset the index of the first pixel of the row in <code>pixels</code>
+	 * @throws IOException when the row could not be written
+	 */
+	public void writeRow(int @NotNull [] pixels, int offset) throws IOException {
+		if (nRowsWritten >= height) throw new IllegalStateException("all rows have been written already");
+		if (executor != null) {
+			// Rows are kept until their chunk is compressed, so cannot be reused
+			byte[] row = new byte[rowSize];
+			toRGB(pixels, offset, row);
+			chunkRows.add(row);
+			nRowsWritten++;
+			if (chunkRows.size() == rowsPerChunk || nRowsWritten == height) submitChunk();
+			return;
+		}
+		
+		toRGB(pixels, offset, currentRow);
+		byte[] filtered = filterRow(previousRow, currentRow, nRowsWritten == 0, BYTES_PER_PIXEL, filteredRows);
+		deflater.setInput(filtered);
+		while (!deflater.needsInput()) deflate();
+		
+		byte[] temp = previousRow;
+		previousRow = currentRow;
+		currentRow = temp;
+		nRowsWritten++;
+	}
+	
+	/**
+	 * Write the remaining compressed data and the end of the PNG (unless this
+	 * is a frame of an animated PNG). All rows of the image must have been
+	 * written.
+	 *
+	 * @throws IOException when the data could not be written
+	 */
+	public void finish() throws IOException {
+		if (nRowsWritten < height) {
+			throw new IllegalStateException(String.format("only %d of %d rows have been written", nRowsWritten, height));
+		}
+		if (executor != null) {
+			while (!pendingChunks.isEmpty()) writeNextChunk();
+		} else {
+			deflater.finish();
+			while (!deflater.finished()) deflate();
+			if (idatSize > 0) flushIdat();
+		}
+		if (animation == null) writeChunk(out, "IEND", new byte[0], 0);
+		out.flush();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (deflater != null) deflater.end();
+		for (Future<Chunk> chunk : pendingChunks) chunk.cancel(true);
+		// The stream of a frame belongs to the animated PNG writer
+		if (animation == null) out.close();
+	}
+	
+	private void toRGB(int @NotNull [] pixels, int offset, byte @NotNull [] row) {
+		for (int x = 0, i = 0; x < width; x++) {
+			int pixel = pixels[offset + x];
+			row[i++] = (byte) (pixel >> 16);
+			row[i++] = (byte) (pixel >> 8);
+			row[i++] = (byte) pixel;
+		}
+	}
+	
+	/**
+	 * Hand the current chunk of rows to the executor, together with the rows
+	 * before it that are needed for filtering and as deflate dictionary.
+	 */
+	private void submitChunk() throws IOException {
+		List<byte[]> rows = chunkRows;
+		List<byte[]> context = new ArrayList<>(contextRows);
+		boolean isContextFromStart = nRowsWritten - rows.size() - context.size() == 0;
+		boolean isLast = nRowsWritten == height;
+		pendingChunks.add(executor.submit(() -> compressChunk(context, isContextFromStart, rows, isLast)));
+		
+		// Keep the rows needed by the next chunk: the dictionary rows, and the
+		// row before them to filter the first dictionary row with
+		for (byte[] row : rows) {
+			contextRows.addLast(row);
+			if (contextRows.size() > dictionaryRows + 1) contextRows.removeFirst();
+		}
+		chunkRows = new ArrayList<>(rowsPerChunk);
+		
+		while (pendingChunks.size() > MAX_PENDING_CHUNKS) writeNextChunk();
+	}
+	
+	/**
+	 * Filter and compress a chunk of rows. Runs on the executor.
+	 *
+	 * @param context            the rows before the chunk
+	 * @param isContextFromStart whether the context starts at the first row of the image
+	 * @param rows               the rows of the chunk
+	 * @param isLast             whether this is the last chunk of the image
+	 * @return the compressed chunk
+	 */
+	private @NotNull Chunk compressChunk(@NotNull List<byte[]> context, boolean isContextFromStart,
+	                                     @NotNull List<byte[]> rows, boolean isLast) {
+		byte[][] buffers = new byte[5][rowSize + 1];
+		
+		// Filter the end of the previous chunk again, to use as dictionary
+		ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+		byte[] previous = null;
+		for (int i = 0; i < context.size(); i++) {
+			byte[] row = context.get(i);
+			if (i > 0 || isContextFromStart) {
+				dictionary.write(filterRow(previous, row, previous == null, BYTES_PER_PIXEL, buffers), 0, rowSize + 1);
+			}
+			previous = row;
+		}
+		
+		byte[] filtered = new byte[rows.size() * (rowSize + 1)];
+		for (int i = 0; i < rows.size(); i++) {
+			byte[] row = rows.get(i);
+			System.arraycopy(filterRow(previous, row, previous == null, BYTES_PER_PIXEL, buffers),
+					0, filtered, i * (rowSize + 1), rowSize + 1);
+			previous = row;
+		}
+		Adler32 checksum = new Adler32();
+		checksum.update(filtered, 0, filtered.length);
+		
+		Deflater chunkDeflater = new Deflater(compressionLevel, true);
+		try {
+			if (dictionary.size() > 0) {
+				byte[] dictionaryBytes = dictionary.toByteArray();
+				int length = Math.min(DICTIONARY_SIZE, dictionaryBytes.length);
+				chunkDeflater.setDictionary(dictionaryBytes, dictionaryBytes.length - length, length);
+			}
+			chunkDeflater.setInput(filtered);
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(filtered.length / 2);
+			byte[] buffer = new byte[MAX_IDAT_SIZE];
+			if (isLast) {
+				chunkDeflater.finish();
+				while (!chunkDeflater.finished()) {
+					compressed.write(buffer, 0, chunkDeflater.deflate(buffer));
+				}
+			} else {
+				// Sync flush so that the chunk ends on a byte boundary
+				int n;
+				do {
+					n = chunkDeflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					compressed.write(buffer, 0, n);
+				} while (n == buffer.length || !chunkDeflater.needsInput());
+			}
+			return new Chunk(compressed.toByteArray(), checksum.getValue(), filtered.length, isLast);
+		} finally {
+			chunkDeflater.end();
+		}
+	}
+	
+	/**
+	 * Wait for the oldest pending chunk and write it as an IDAT chunk, adding
+	 * the zlib header before the first chunk and the checksum after the last.
+	 */
+	private void writeNextChunk() throws IOException {
+		Chunk chunk;
+		try {
+			chunk = pendingChunks.removeFirst().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while compressing PNG");
+		} catch (ExecutionException e) {
+			throw new IOException("could not compress PNG", e.getCause());
+		}
+		adler = combineAdler32(adler, chunk.adler, chunk.length);
+		
+		ByteArrayOutputStream data = new ByteArrayOutputStream(chunk.data.length + 6);
+		if (isFirstChunk) {
+			data.write(getZlibHeader(compressionLevel));
+			isFirstChunk = false;
+		}
+		data.write(chunk.data);
+		if (chunk.isLast) new DataOutputStream(data).writeInt((int) adler);
+		writeImageData(data.toByteArray(), data.size());
+	}
+	
+	/**
+	 * @return the two-byte zlib header for a stream with a 32K window
+	 */
+	private static byte @NotNull [] getZlibHeader(int compressionLevel) {
+		int cmf = 0x78; // deflate, 32K window
+		int level;
+		if (compressionLevel < 0 || compressionLevel == 6) level = 2;
+		else if (compressionLevel <= 1) level = 0;
+		else if (compressionLevel <= 5) level = 1;
+		else level = 3;
+		int flg = level << 6;
+		flg += 31 - (cmf * 256 + flg) % 31;
+		return new byte[] {(byte) cmf, (byte) flg};
+	}
+	
+	/**
+	 * Combine the Adler-32 checksums of two consecutive pieces of data, like
+	 * zlib's <code>adler32_combine</code>.
+	 *
+	 * @param adler1  the checksum of the first piece
+	 * @param adler2  the checksum of the second piece
+	 * @param length2 the length of the second piece
+	 * @return the checksum of both pieces together
+	 */
+	static long combineAdler32(long adler1, long adler2, long length2) {
+		long remainder = length2 % ADLER_BASE;
+		long sum1 = adler1 & 0xFFFF;
+		long sum2 = (remainder * sum1) % ADLER_BASE;
+		sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+		sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + ADLER_BASE - remainder;
+		if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+		if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+		if (sum2 >= (ADLER_BASE << 1)) sum2 -= (ADLER_BASE << 1);
+		if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+		return (sum2 << 16) | sum1;
+	}
+	
+	/**
+	 * Filter a single row with every PNG filter type, and pick the filter with
+	 * the lowest sum of absolute differences (the heuristic recommended by the
+	 * PNG specification).
+	 *
+	 * @param previous      the previous unfiltered row
+	 * @param current       the current unfiltered row
+	 * @param isFirst       whether this is the first row (then <code>previous</code> is ignored, and may be null)
+	 * @param bytesPerPixel the number of bytes per pixel
+	 * @param filtered      five buffers of one byte longer than a row, to filter into
+	 * @return the buffer with the chosen filtered row, starting with the filter type
+	 */
+	static byte @NotNull [] filterRow(byte @Nullable [] previous, byte @NotNull [] current, boolean isFirst,
+	                                  int bytesPerPixel, byte @NotNull [] @NotNull [] filtered) {
+		int[] sums = new int[5];
+		for (int type = 0; type < 5; type++) filtered[type][0] = (byte) type;
+		for (int i = 0; i < current.length; i++) {
+			int raw = current[i] & 0xFF;
+			int left = (i >= bytesPerPixel) ? current[i - bytesPerPixel] & 0xFF : 0;
+			int up = isFirst ? 0 : previous[i] & 0xFF;
+			int upLeft = (!isFirst && i >= bytesPerPixel) ? previous[i - bytesPerPixel] & 0xFF : 0;
+			
+			sums[FILTER_NONE] += store(filtered[FILTER_NONE], i, raw);
+			sums[FILTER_SUB] += store(filtered[FILTER_SUB], i, raw - left);
+			sums[FILTER_UP] += store(filtered[FILTER_UP], i, raw - up);
+			sums[FILTER_AVERAGE] += store(filtered[FILTER_AVERAGE], i, raw - ((left + up) >> 1));
+			sums[FILTER_PAETH] += store(filtered[FILTER_PAETH], i, raw - paeth(left, up, upLeft));
+		}
+		
+		int best = FILTER_NONE;
+		for (int type = 1; type < 5; type++) {
+			if (sums[type] < sums[best]) best = type;
+		}
+		return filtered[best];
+	}
+	
+	/**
+	 * Store a filtered byte at position <code>i</code> of a row (after the
+	 * filter type byte).
+	 *
+	 * @return the absolute value of the byte as a signed value
+	 */
+	private static int store(byte @NotNull [] row, int i, int value) {
+		byte b = (byte) value;
+		row[i + 1] = b;
+		return Math.abs(b);
+	}
+	
+	static int paeth(int left, int up, int upLeft) {
+		int estimate = left + up - upLeft;
+		int dLeft = Math.abs(estimate - left);
+		int dUp = Math.abs(estimate - up);
+		int dUpLeft = Math.abs(estimate - upLeft);
+		if (dLeft <= dUp && dLeft <= dUpLeft) return left;
+		else if (dUp <= dUpLeft) return up;
+		else return upLeft;
+	}
+	
+	/**
+	 * Compress the pending input into the IDAT buffer, writing a chunk when
+	 * the buffer is full.
+	 */
+	private void deflate() throws IOException {
+		idatSize += deflater.deflate(idat, idatSize, idat.length - idatSize);
+		if (idatSize == idat.length) flushIdat();
+	}
+	
+	private void flushIdat() throws IOException {
+		writeImageData(idat, idatSize);
+		idatSize = 0;
+	}
+	
+	private void writeImageData(byte @NotNull [] data, int length) throws IOException {
+		if (animation != null) animation.writeImageData(data, length);
+		else writeChunk(out, "IDAT", data, length);
+	}
+	
+	/**
+	 * Write the PNG signature and header of an 8-bit RGB image.
+	 */
+	static void writeHeader(@NotNull DataOutputStream out, int width, int height) throws IOException {
+		out.write(SIGNATURE);
+		ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+		DataOutputStream headerOut = new DataOutputStream(header);
+		headerOut.writeInt(width);
+		headerOut.writeInt(height);
+		headerOut.writeByte(8); // bit depth
+		headerOut.writeByte(COLOR_TYPE_RGB);
+		headerOut.writeByte(0); // compression method: deflate
+		headerOut.writeByte(0); // filter method: adaptive
+		headerOut.writeByte(0); // interlace method: none
+		writeChunk(out, "IHDR", header.toByteArray(), header.size());
+	}
+	
+	static void writeChunk(@NotNull DataOutputStream out, @NotNull String type, byte @NotNull [] data, int length)
+			throws IOException {
+		byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, 0, length);
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(data, 0, length);
+		out.writeInt((int) crc.getValue());
+	}
+	
+	/**
+	 * A compressed chunk of rows.
+	 */
+	private static class Chunk {
+		final byte[] data;
+		final long adler;
+		final int length;
+		final boolean isLast;
+		
+		Chunk(byte[] data, long adler, int length, boolean isLast) {
+			this.data = data;
+			this.adler = adler;
+			this.length = length;
+			this.isLast = isLast;
+		}
+	}
+	
+}
@@ -0,0 +1,219 @@
+package nl.dantevg.dynmapexport;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.image.*;
+import java.util.Arrays;
+
+/**
+ * Counts the pixels that differ between two images. When both images have the
+ * same pixel layout (which is the case for tiles read from Dynmap), the
+ * underlying data arrays are compared directly, in row-major order. Otherwise,
+ * both images are normalised to ARGB one row at a time.
+ */
+public final class RasterDiff {
+	private RasterDiff() {
+	}
+	
+	/**
+	 * Count the number of pixels that differ between two images.
+	 *
+	 * @param from the first image
+	 * @param to   the second image
+	 * @return the number of changed pixels
+	 */
+	public static int countChangedPixels(@NotNull BufferedImage from, @NotNull BufferedImage to) {
+		return countChangedPixels(from, to, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Count the number of pixels that differ between two images, stopping as
+	 * soon as it is known whether at least <code>limit</code> pixels differ.
+	 * Images of different sizes are considered to be completely changed.
+	 *
+	 * @param from  the first image
+	 * @param to    the second image
+	 * @param limit the number of changed pixels to look for
+	 * @return a number that is at least <code>limit</code> if and only if at
+	 * least <code>limit</code> pixels changed. Only exact when it is lower than
+	 * <code>limit</code> and all pixels were compared, so use
+	 * {@link #countChangedPixels(BufferedImage, BufferedImage)} for an exact count.
+	 */
+	public static int countChangedPixels(@NotNull BufferedImage from, @NotNull BufferedImage to, int limit) {
+		int width = to.getWidth();
+		int height = to.getHeight();
+		if (from.getWidth() != width || from.getHeight() != height) return width * height;
+		
+		Raster fromRaster = from.getRaster();
+		Raster toRaster = to.getRaster();
+		if (isPackedInt(from) && isPackedInt(to) && haveSameLayout(from, to)) {
+			return countChangedInts(fromRaster, toRaster, getPixelMask((DirectColorModel) from.getColorModel()), limit);
+		} else if (isInterleavedByte(from) && isInterleavedByte(to) && haveSameLayout(from, to)) {
+			return countChangedBytes(fromRaster, toRaster, limit);
+		} else {
+			return countChangedRGB(from, to, limit);
+		}
+	}
+	
+	private static int countChangedInts(@NotNull Raster from, @NotNull Raster to, int mask, int limit) {
+		int width = to.getWidth();
+		int height = to.getHeight();
+		SinglePixelPackedSampleModel fromModel = (SinglePixelPackedSampleModel) from.getSampleModel();
+		SinglePixelPackedSampleModel toModel = (SinglePixelPackedSampleModel) to.getSampleModel();
+		int[] fromData = ((DataBufferInt) from.getDataBuffer()).getData();
+		int[] toData = ((DataBufferInt) to.getDataBuffer()).getData();
+		int fromOffset = from.getDataBuffer().getOffset();
+		int toOffset = to.getDataBuffer().getOffset();
+		int fromStride = fromModel.getScanlineStride();
+		int toStride = toModel.getScanlineStride();
+		
+		int changed = 0;
+		for (int y = 0; y < height; y++) {
+			int i = fromOffset + y * fromStride;
+			int j = toOffset + y * toStride;
+			for (int x = 0; x < width; x++) {
+				if (((fromData[i++] ^ toData[j++]) & mask) != 0) changed++;
+			}
+			if (isDecided(changed, limit, width, height, y)) break;
+		}
+		return changed;
+	}
+	
+	private static int countChangedBytes(@NotNull Raster from, @NotNull Raster to, int limit) {
+		int width = to.getWidth();
+		int height = to.getHeight();
+		PixelInterleavedSampleModel fromModel = (PixelInterleavedSampleModel) from.getSampleModel();
+		PixelInterleavedSampleModel toModel = (PixelInterleavedSampleModel) to.getSampleModel();
+		int pixelStride = toModel.getPixelStride();
+		byte[] fromData = ((DataBufferByte) from.getDataBuffer()).getData();
+		byte[] toData = ((DataBufferByte) to.getDataBuffer()).getData();
+		int fromOffset = from.getDataBuffer().getOffset() + getMin(fromModel.getBandOffsets());
+		int toOffset = to.getDataBuffer().getOffset() + getMin(toModel.getBandOffsets());
+		int fromStride = fromModel.getScanlineStride();
+		int toStride = toModel.getScanlineStride();
+		
+		int changed = 0;
+		for (int y = 0; y < height; y++) {
+			int i = fromOffset + y * fromStride;
+			int j = toOffset + y * toStride;
+			if (pixelStride == 4) {
+				// Most common case (RGBA), unrolled
+				for (int x = 0; x < width; x++, i += 4, j += 4) {
+					if ((fromData[i] ^ toData[j] | fromData[i + 1] ^ toData[j + 1]
+							| fromData[i + 2] ^ toData[j + 2] | fromData[i + 3] ^ toData[j + 3]) != 0) changed++;
+				}
+			} else {
+				for (int x = 0; x < width; x++, i += pixelStride, j += pixelStride) {
+					int difference = 0;
+					for (int k = 0; k < pixelStride; k++) difference |= fromData[i + k] ^ toData[j + k];
+					if (difference != 0) changed++;
+				}
+			}
+			if (isDecided(changed, limit, width, height, y)) break;
+		}
+		return changed;
+	}
+	
+	/**
+	 * Compare two images with different pixel layouts by converting each row
+	 * to ARGB.
+	 */
+	private static int countChangedRGB(@NotNull BufferedImage from, @NotNull BufferedImage to, int limit) {
+		int width = to.getWidth();
+		int height = to.getHeight();
+		int[] fromRow = new int[width];
+		int[] toRow = new int[width];
+		
+		int changed = 0;
+		for (int y = 0; y < height; y++) {
+			from.getRGB(0, y, width, 1, fromRow, 0, width);
+			to.getRGB(0, y, width, 1, toRow, 0, width);
+			for (int x = 0; x < width; x++) {
+				if (fromRow[x] != toRow[x]) changed++;
+			}
+			if (isDecided(changed, limit, width, height, y)) break;
+		}
+		return changed;
+	}
+	
+	/**
+	 * Whether it is known, after comparing rows up to and including
+	 * <code>y</code>, if at least <code>limit</code> pixels changed: either
+	 * because enough pixels changed already, or because the remaining rows do
+	 * not have enough pixels left to reach the limit.
+	 */
+	private static boolean isDecided(int changed, int limit, int width, int height, int y) {
+		if (changed >= limit) return true;
+		if (limit > width * height) return false; // Limit can never be reached, count all pixels
+		long remaining = (long) (height - y - 1) * width;
+		return changed + remaining < limit;
+	}
+	
+	private static boolean isPackedInt(@NotNull BufferedImage image) {
+		Raster raster = image.getRaster();
+		return image.getColorModel() instanceof DirectColorModel
+				&& raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+				&& raster.getDataBuffer() instanceof DataBufferInt
+				&& raster.getDataBuffer().getNumBanks() == 1
+				&& isUntranslated(raster);
+	}
+	
+	private static boolean isInterleavedByte(@NotNull BufferedImage image) {
+		Raster raster = image.getRaster();
+		if (!(image.getColorModel() instanceof ComponentColorModel)
+				|| !(raster.getSampleModel() instanceof PixelInterleavedSampleModel)
+				|| !(raster.getDataBuffer() instanceof DataBufferByte)
+				|| raster.getDataBuffer().getNumBanks() != 1
+				|| !isUntranslated(raster)) {
+			return false;
+		}
+		// Only compare pixels without padding bytes, which may contain anything
+		PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) raster.getSampleModel();
+		int[] bandOffsets = sampleModel.getBandOffsets().clone();
+		Arrays.sort(bandOffsets);
+		for (int i = 0; i < bandOffsets.length; i++) {
+			if (bandOffsets[i] != bandOffsets[0] + i) return false;
+		}
+		return sampleModel.getPixelStride() == bandOffsets.length;
+	}
+	
+	/**
+	 * Whether both images store their pixels in the same way, so that equal
+	 * pixels have equal raw data.
+	 */
+	private static boolean haveSameLayout(@NotNull BufferedImage from, @NotNull BufferedImage to) {
+		SampleModel fromModel = from.getRaster().getSampleModel();
+		SampleModel toModel = to.getRaster().getSampleModel();
+		if (from.getColorModel() instanceof DirectColorModel) {
+			return from.getColorModel().equals(to.getColorModel())
+					&& Arrays.equals(((SinglePixelPackedSampleModel) fromModel).getBitMasks(),
+					((SinglePixelPackedSampleModel) toModel).getBitMasks());
+		} else {
+			ComponentColorModel fromColorModel = (ComponentColorModel) from.getColorModel();
+			ComponentColorModel toColorModel = (ComponentColorModel) to.getColorModel();
+			return fromColorModel.getColorSpace().equals(toColorModel.getColorSpace())
+					&& fromColorModel.hasAlpha() == toColorModel.hasAlpha()
+					&& fromColorModel.isAlphaPremultiplied() == toColorModel.isAlphaPremultiplied()
+					&& Arrays.equals(fromColorModel.getComponentSize(), toColorModel.getComponentSize())
+					&& Arrays.equals(((PixelInterleavedSampleModel) fromModel).getBandOffsets(),
+					((PixelInterleavedSampleModel) toModel).getBandOffsets());
+		}
+	}
+	
+	private static boolean isUntranslated(@NotNull Raster raster) {
+		return raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+				&& raster.getMinX() == 0 && raster.getMinY() == 0;
+	}
+	
+	private static int getPixelMask(@NotNull DirectColorModel colorModel) {
+		return colorModel.getRedMask() | colorModel.getGreenMask() | colorModel.getBlueMask()
+				| colorModel.getAlphaMask();
+	}
+	
+	private static int getMin(int @NotNull [] values) {
+		int min = Integer.MAX_VALUE;
+		for (int value : values) min = Math.min(min, value);
+		return min;
+	}
+	
+}
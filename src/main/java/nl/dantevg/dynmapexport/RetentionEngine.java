@@ -0,0 +1,296 @@
+package nl.dantevg.dynmapexport;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Removes old exports in the background, according to the
+ * <code>retention</code> configuration:
+ * <ul>
+ *     <li>whole exports (tile directory or archive, and combined image) that are not kept
+ *     by the {@link RetentionPolicy}, or that are the oldest while the map
+ *     uses more than <code>max-disk-usage</code></li>
+ *     <li>the tile directories of combined exports, except the newest
+ *     <code>keep-tiles</code> ones. The latest export always keeps its tiles,
+ *     because the next export is compared to it. All exports keep their tiles
+ *     when the {@link ExportHistory} keeps them in reduced form.</li>
+ * </ul>
+ * Which exports to remove is decided and recorded in the manifest with the
+ * history lock of the map held, so that it never overlaps with an export of
+ * the map. A map that is being exported is skipped instead of waited for, so
+ * that the other maps do not wait behind it, and retried when its export is
+ * done. The files are deleted afterwards on a low-priority thread, in
+ * batches of <code>batch-size</code> files with <code>batch-pause</code> in
+ * between, so that large cleanups do not hog the disk.
+ */
+public class RetentionEngine {
+	private static final int DEFAULT_KEEP_TILES = 1;
+	private static final int DEFAULT_BATCH_SIZE = 100;
+	private static final Duration DEFAULT_BATCH_PAUSE = Duration.ofMillis(100);
+	private static final long BYTES_PER_MB = 1024 * 1024;
+	
+	private final Logger logger;
+	private final File dataFolder;
+	private final Function<ExportConfig, ExportManifest> manifests;
+	private final ExportHistory exportHistory;
+	private final TileStore tileStore;
+	private final RetentionPolicy policy;
+	private final long maxDiskUsage;
+	private final int keepTiles;
+	private final int batchSize;
+	private final Duration batchPause;
+	private final ExecutorService executor;
+	/**
+	 * The map directories that are waiting for a retention run
+	 */
+	private final Set<File> pending = ConcurrentHashMap.newKeySet();
+	/**
+	 * The map directories that were skipped because they were being exported
+	 */
+	private final Set<File> deferred = ConcurrentHashMap.newKeySet();
+	private int nDeletedInBatch = 0;
+	
+	public RetentionEngine(DynmapExport plugin) {
+		this(plugin.logger, plugin.getDataFolder(), plugin::getManifest, plugin.exportHistory, plugin.tileStore,
+				new RetentionPolicy(
+						plugin.config.getInt("retention.keep-last", RetentionPolicy.UNSET),
+						plugin.config.getInt("retention.keep-hourly", RetentionPolicy.UNSET),
+						plugin.config.getInt("retention.keep-daily", RetentionPolicy.UNSET),
+						ZoneId.systemDefault()),
+				plugin.config.getLong("retention.max-disk-usage", 0) * BYTES_PER_MB,
+				plugin.exportHistory.keepsTiles()
+						? -1 : plugin.config.getInt("retention.keep-tiles", DEFAULT_KEEP_TILES),
+				plugin.config.getInt("retention.batch-size", DEFAULT_BATCH_SIZE),
+				plugin.getConfigDuration("retention.batch-pause", DEFAULT_BATCH_PAUSE),
+				Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+						.setNameFormat("DynmapExport retention")
+						.setPriority(Thread.MIN_PRIORITY)
+						.setDaemon(true)
+						.build()));
+	}
+	
+	/**
+	 * @param logger        the logger to log errors to
+	 * @param dataFolder    the data folder of the plugin
+	 * @param manifests     the manifest of the map of an export configuration
+	 * @param exportHistory the history to prepare removing tiles with
+	 * @param tileStore     the tile store to remove unused tiles from
+	 * @param policy        which exports to keep
+	 * @param maxDiskUsage  the maximum size of the exports of a map in bytes, or 0
+	 * @param keepTiles     the number of newest exports that keep their tiles
+	 *                      once combined, or -1 to keep all. At least 1,
+	 *                      because the latest export is compared to.
+	 * @param batchSize     the number of files to delete at a time
+	 * @param batchPause    the pause between batches
+	 * @param executor      the executor to remove exports on
+	 */
+	RetentionEngine(@NotNull Logger logger, @NotNull File dataFolder,
+	                @NotNull Function<ExportConfig, ExportManifest> manifests, @NotNull ExportHistory exportHistory,
+	                @NotNull TileStore tileStore, @NotNull RetentionPolicy policy, long maxDiskUsage, int keepTiles,
+	                int batchSize, @NotNull Duration batchPause, @NotNull ExecutorService executor) {
+		this.logger = logger;
+		this.dataFolder = dataFolder;
+		this.manifests = manifests;
+		this.exportHistory = exportHistory;
+		this.tileStore = tileStore;
+		this.policy = policy;
+		this.maxDiskUsage = maxDiskUsage;
+		this.keepTiles = (keepTiles < 0) ? -1 : Math.max(1, keepTiles);
+		this.batchSize = Math.max(1, batchSize);
+		this.batchPause = batchPause;
+		this.executor = executor;
+	}
+	
+	/**
+	 * Apply the retention policies to the map of an export configuration in
+	 * the background. Does nothing if the map is already waiting for it.
+	 *
+	 * @param config the export configuration
+	 */
+	public void schedule(@NotNull ExportConfig config) {
+		deferred.remove(Paths.getLocalMapDir(dataFolder, config));
+		if (!pending.add(Paths.getLocalMapDir(dataFolder, config))) return;
+		executor.execute(() -> {
+			pending.remove(Paths.getLocalMapDir(dataFolder, config));
+			try {
+				apply(config);
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, String.format("Could not remove old exports of map %s:%s",
+						config.world.name, config.map.name), e);
+			}
+		});
+	}
+	
+	/**
+	 * Apply the retention policies to the map of an export configuration in
+	 * the background, if they were skipped before because the map was being
+	 * exported. Called when an export of the map is done.
+	 *
+	 * @param config the export configuration
+	 */
+	public void retryDeferred(@NotNull ExportConfig config) {
+		if (deferred.remove(Paths.getLocalMapDir(dataFolder, config))) schedule(config);
+	}
+	
+	/**
+	 * Stop removing old exports. Exports that were recorded as removed but
+	 * not deleted yet stay on disk.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+	
+	void apply(@NotNull ExportConfig config) {
+		List<File> files = new ArrayList<>();
+		int nExports, nTileDirs;
+		ExportManifest manifest = manifests.apply(config);
+		File mapDir = Paths.getLocalMapDir(dataFolder, config);
+		if (!manifest.getHistoryLock().tryLock()) {
+			deferred.add(mapDir);
+			// The export may have finished before the map was deferred
+			if (!manifest.getHistoryLock().tryLock()) {
+				logger.log(Level.FINE, String.format("Map %s:%s is being exported, removing old exports later",
+						config.world.name, config.map.name));
+				return;
+			}
+			deferred.remove(mapDir);
+		}
+		try {
+			List<Instant> exports = selectExports(config);
+			for (Instant instant : exports) {
+				if (!removeExport(config, instant, files)) break;
+			}
+			nExports = exports.size();
+			
+			List<Instant> tileDirs = selectTileDirs(config);
+			for (Instant instant : tileDirs) {
+				if (!exportHistory.prepareRemoval(config, instant)) break;
+				manifest.setRemoved(instant);
+				files.add(Paths.getLocalExportDir(dataFolder, config, instant));
+				files.add(Paths.getLocalArchiveFile(dataFolder, config, instant));
+			}
+			nTileDirs = tileDirs.size();
+		} finally {
+			manifest.getHistoryLock().unlock();
+		}
+		if (files.isEmpty()) return;
+		
+		logger.log(Level.CONFIG, String.format("Removing %d old exports and %d tile directories of map %s:%s",
+				nExports, nTileDirs, config.world.name, config.map.name));
+		Set<File> blobs = new HashSet<>();
+		for (File file : files) blobs.addAll(tileStore.getStoredTiles(file));
+		for (File file : files) {
+			if (!delete(file)) return;
+		}
+		tileStore.removeUnreferenced(blobs);
+	}
+	
+	/**
+	 * @return the exports to remove completely, oldest first
+	 */
+	private @NotNull List<Instant> selectExports(@NotNull ExportConfig config) {
+		if (policy.keepsAll() && maxDiskUsage <= 0) return Collections.emptyList();
+		
+		SortedMap<Instant, Long> sizes = new TreeMap<>();
+		for (ExportManifest.Entry entry : manifests.apply(config).getEntries()) {
+			if (entry.hasTiles || entry.combined) sizes.put(entry.instant, 0L);
+		}
+		Set<Instant> keep = policy.select(sizes.keySet());
+		List<Instant> remove = new ArrayList<>();
+		for (Instant instant : sizes.keySet()) {
+			if (!keep.contains(instant)) remove.add(instant);
+		}
+		sizes.keySet().removeAll(remove);
+		if (maxDiskUsage > 0) {
+			sizes.replaceAll((instant, size) -> getSize(config, instant));
+			remove.addAll(RetentionPolicy.selectOverSize(sizes, maxDiskUsage));
+		}
+		remove.sort(Comparator.naturalOrder());
+		return remove;
+	}
+	
+	/**
+	 * @return the exports to remove the tile directory of, oldest first
+	 */
+	@NotNull List<Instant> selectTileDirs(@NotNull ExportConfig config) {
+		if (keepTiles < 0) return Collections.emptyList();
+		
+		List<ExportManifest.Entry> entries = manifests.apply(config).getEntries();
+		entries.removeIf(entry -> !entry.hasTiles);
+		List<Instant> remove = new ArrayList<>();
+		// Only combined exports can do without their tiles
+		for (ExportManifest.Entry entry : entries.subList(0, Math.max(0, entries.size() - keepTiles))) {
+			if (entry.combined) remove.add(entry.instant);
+		}
+		return remove;
+	}
+	
+	/**
+	 * Record that an export is removed completely, and add its files to
+	 * <code>files</code>.
+	 *
+	 * @return whether the export could be removed
+	 */
+	private boolean removeExport(@NotNull ExportConfig config, @NotNull Instant instant, @NotNull List<File> files) {
+		if (!exportHistory.prepareRemoval(config, instant)) return false;
+		manifests.apply(config).setDeleted(instant);
+		files.add(Paths.getLocalExportDir(dataFolder, config, instant));
+		files.add(Paths.getLocalArchiveFile(dataFolder, config, instant));
+		files.add(Paths.getLocalCombinedFile(dataFolder, config, instant));
+		return true;
+	}
+	
+	private long getSize(@NotNull ExportConfig config, @NotNull Instant instant) {
+		long size = Paths.getLocalCombinedFile(dataFolder, config, instant).length()
+				+ Paths.getLocalArchiveFile(dataFolder, config, instant).length();
+		File[] tiles = Paths.getLocalExportDir(dataFolder, config, instant).listFiles();
+		if (tiles != null) {
+			for (File tile : tiles) size += tile.length();
+		}
+		return size;
+	}
+	
+	/**
+	 * Delete a file or a directory with its files, pausing after every batch.
+	 *
+	 * @return false when interrupted
+	 */
+	private boolean delete(@NotNull File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				if (!delete(child)) return false;
+			}
+		}
+		try {
+			Files.deleteIfExists(file.toPath());
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not delete " + file, e);
+		}
+		
+		if (++nDeletedInBatch < batchSize) return true;
+		nDeletedInBatch = 0;
+		try {
+			Thread.sleep(batchPause.toMillis());
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+}
@@ -0,0 +1,106 @@
+package nl.dantevg.dynmapexport;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+
+/**
+ * Decides which exports of a map to keep. An export is kept when any of the
+ * rules keeps it:
+ * <ul>
+ *     <li><code>keep-last</code>: the newest n exports</li>
+ *     <li><code>keep-hourly</code>: the newest export of each of the newest n
+ *     hours that have exports</li>
+ *     <li><code>keep-daily</code>: the newest export of each of the newest n
+ *     days that have exports</li>
+ * </ul>
+ * Without any rules, all exports are kept. The newest export is always kept.
+ */
+public class RetentionPolicy {
+	/**
+	 * Rule value for a rule that is not set
+	 */
+	public static final int UNSET = -1;
+	
+	private final int keepLast;
+	private final int keepHourly;
+	private final int keepDaily;
+	private final @NotNull ZoneId zone;
+	
+	/**
+	 * @param keepLast   the number of newest exports to keep, or {@link #UNSET}
+	 * @param keepHourly the number of hours to keep an export of, or {@link #UNSET}
+	 * @param keepDaily  the number of days to keep an export of, or {@link #UNSET}
+	 * @param zone       the time zone that days start in
+	 */
+	public RetentionPolicy(int keepLast, int keepHourly, int keepDaily, @NotNull ZoneId zone) {
+		this.keepLast = keepLast;
+		this.keepHourly = keepHourly;
+		this.keepDaily = keepDaily;
+		this.zone = zone;
+	}
+	
+	/**
+	 * @return whether this policy keeps all exports
+	 */
+	public boolean keepsAll() {
+		return keepLast < 0 && keepHourly < 0 && keepDaily < 0;
+	}
+	
+	/**
+	 * @param exports the times of the exports
+	 * @return the times of the exports to keep
+	 */
+	public @NotNull Set<Instant> select(@NotNull Collection<Instant> exports) {
+		if (keepsAll()) return new HashSet<>(exports);
+		List<Instant> newestFirst = new ArrayList<>(exports);
+		newestFirst.sort(Comparator.reverseOrder());
+		
+		Set<Instant> keep = new HashSet<>();
+		if (!newestFirst.isEmpty()) keep.add(newestFirst.get(0));
+		for (int i = 0; i < keepLast && i < newestFirst.size(); i++) keep.add(newestFirst.get(i));
+		keepNewestPer(newestFirst, ChronoUnit.HOURS, keepHourly, keep);
+		keepNewestPer(newestFirst, ChronoUnit.DAYS, keepDaily, keep);
+		return keep;
+	}
+	
+	/**
+	 * Keep the newest export of each of the newest <code>n</code> periods.
+	 */
+	private void keepNewestPer(@NotNull List<Instant> newestFirst, @NotNull ChronoUnit period, int n,
+	                           @NotNull Set<Instant> keep) {
+		Instant lastPeriod = null;
+		int nPeriods = 0;
+		for (Instant instant : newestFirst) {
+			if (nPeriods >= n) return;
+			Instant start = instant.atZone(zone).truncatedTo(period).toInstant();
+			if (start.equals(lastPeriod)) continue;
+			keep.add(instant);
+			lastPeriod = start;
+			nPeriods++;
+		}
+	}
+	
+	/**
+	 * Select the oldest exports to remove to get the total size of all
+	 * exports under a maximum. The newest export is never selected.
+	 *
+	 * @param sizes   the size of every export in bytes
+	 * @param maxSize the maximum total size in bytes
+	 * @return the times of the exports to remove, oldest first
+	 */
+	public static @NotNull List<Instant> selectOverSize(@NotNull SortedMap<Instant, Long> sizes, long maxSize) {
+		long total = sizes.values().stream().mapToLong(Long::longValue).sum();
+		List<Instant> remove = new ArrayList<>();
+		for (Map.Entry<Instant, Long> export : sizes.entrySet()) {
+			if (total <= maxSize || export.getKey().equals(sizes.lastKey())) break;
+			remove.add(export.getKey());
+			total -= export.getValue();
+		}
+		return remove;
+	}
+	
+}
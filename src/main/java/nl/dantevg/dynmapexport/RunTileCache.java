@@ -0,0 +1,161 @@
+package nl.dantevg.dynmapexport;
+
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+
+/**
+ * The tiles fetched from Dynmap during a single export run, so that export
+ * configurations that overlap (same world, map and zoom level) fetch every
+ * tile only once. Fetched tiles are hardlinked (or copied) into a temporary
+ * directory, so that they stay available when the export that fetched them
+ * is discarded. Every run has its own directory, so that runs that overlap
+ * (a scheduled run and <code>/dynmapexport now</code>, for example) do not
+ * remove each other's tiles. The directory is removed when the run ends.
+ */
+public class RunTileCache implements AutoCloseable {
+	private static final AtomicInteger nextRunId = new AtomicInteger();
+	/**
+	 * The directories of the runs in progress
+	 */
+	private static final Set<File> activeDirs = new HashSet<>();
+	
+	private final DynmapExport plugin;
+	private final File dir;
+	/**
+	 * The tiles by their Dynmap path, which identifies the world, map prefix,
+	 * zoom level and tile coordinates
+	 */
+	private final Map<String, CompletableFuture<Entry>> tiles = new ConcurrentHashMap<>();
+	
+	public RunTileCache(@NotNull DynmapExport plugin) {
+		this.plugin = plugin;
+		File parent = Paths.getRunTileCacheDir(plugin);
+		this.dir = new File(parent, "run-" + nextRunId.incrementAndGet());
+		synchronized (activeDirs) {
+			activeDirs.add(dir);
+			// Left behind if the server stopped during a run
+			File[] dirs = parent.listFiles();
+			if (dirs != null) {
+				for (File runDir : dirs) {
+					if (!activeDirs.contains(runDir)) removeDir(runDir);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Claim a tile for fetching. The first caller for a tile gets null and
+	 * must fetch it and then call {@link #put} (also when fetching failed).
+	 * Later callers get a future that completes with the fetched tile.
+	 *
+	 * @param config the export configuration
+	 * @param tile   the tile coordinates
+	 * @return null if the caller needs to fetch the tile, otherwise a future of
+	 * the fetched tile, which completes with null if fetching failed
+	 */
+	public @Nullable CompletableFuture<Entry> claim(@NotNull ExportConfig config, @NotNull TileCoords tile) {
+		return tiles.putIfAbsent(Paths.getDynmapTilePath(config, tile), new CompletableFuture<>());
+	}
+	
+	/**
+	 * Store a fetched tile for the other export configurations of this run.
+	 *
+	 * @param config     the export configuration that fetched the tile
+	 * @param tile       the tile coordinates
+	 * @param file       the fetched tile file, or null if fetching failed
+	 * @param validators the HTTP validators of the tile
+	 */
+	public void put(@NotNull ExportConfig config, @NotNull TileCoords tile, @Nullable File file,
+	                @Nullable DynmapHttpClient.Validators validators) {
+		String path = Paths.getDynmapTilePath(config, tile);
+		CompletableFuture<Entry> future = tiles.get(path);
+		if (future == null) return;
+		if (file == null) {
+			future.complete(null);
+			return;
+		}
+		
+		File cached = new File(dir, path);
+		try {
+			cached.getParentFile().mkdirs();
+			linkOrCopy(file, cached);
+			future.complete(new Entry(cached, validators));
+		} catch (IOException e) {
+			plugin.logger.log(Level.WARNING, "Could not cache tile " + path + " for this run", e);
+			future.complete(null);
+		}
+	}
+	
+	/**
+	 * Remove the cached tiles.
+	 */
+	@Override
+	public void close() {
+		tiles.values().forEach(future -> future.complete(null));
+		synchronized (activeDirs) {
+			activeDirs.remove(dir);
+		}
+		removeDir(dir);
+	}
+	
+	private void removeDir(@NotNull File dir) {
+		if (!dir.exists()) return;
+		try (Stream<Path> files = Files.walk(dir.toPath())) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		} catch (IOException e) {
+			plugin.logger.log(Level.WARNING, "Could not remove the tile cache directory " + dir, e);
+		}
+	}
+	
+	/**
+	 * Hardlink <code>dest</code> to <code>source</code>, or copy it if the
+	 * file system does not support hardlinks.
+	 */
+	static void linkOrCopy(@NotNull File source, @NotNull File dest) throws IOException {
+		Files.deleteIfExists(dest.toPath());
+		try {
+			Files.createLink(dest.toPath(), source.toPath());
+		} catch (UnsupportedOperationException | FileSystemException e) {
+			if (e instanceof NoSuchFileException) throw (NoSuchFileException) e;
+			Files.copy(source.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	/**
+	 * A tile that was fetched during this run.
+	 */
+	public static class Entry {
+		public final @NotNull File file;
+		public final @Nullable DynmapHttpClient.Validators validators;
+		
+		public Entry(@NotNull File file, @Nullable DynmapHttpClient.Validators validators) {
+			this.file = file;
+			this.validators = validators;
+		}
+		
+		/**
+		 * Hardlink (or copy) the fetched tile to the tile file of an export.
+		 *
+		 * @param dest the tile file of the export
+		 * @throws IOException when the tile could not be linked or copied
+		 */
+		public void copyTo(@NotNull File dest) throws IOException {
+			linkOrCopy(file, dest);
+		}
+	}
+	
+}
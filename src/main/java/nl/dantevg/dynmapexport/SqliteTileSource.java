@@ -0,0 +1,207 @@
+package nl.dantevg.dynmapexport;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads tiles straight from the database of Dynmap's SQLite storage, for when
+ * Dynmap runs on the same server. The database is opened read-only.
+ * <p>
+ * For every export, the hash code and update time of all tiles in the export
+ * rectangle are read with a single range query. These are the validators of
+ * the tiles, so the images of unmodified tiles are never read from the
+ * database. The image of a modified tile is streamed from the database by its
+ * primary key.
+ * <p>
+ * Uses the SQLite JDBC driver that comes with the server.
+ */
+public class SqliteTileSource implements TileSource {
+	/**
+	 * Dynmap stores day and night tiles of a map as separate variants
+	 */
+	private static final String VARIANT = "STANDARD";
+	private static final int MAX_CACHED_EXPORTS = 16;
+	private static final int SQLITE_OPEN_READONLY = 1;
+	
+	private final @NotNull File database;
+	private final @NotNull Logger logger;
+	private final ThreadLocal<Connection> connection = new ThreadLocal<>();
+	private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+	private final Map<String, Integer> mapIds = new ConcurrentHashMap<>();
+	/**
+	 * The validators of the tiles of recent exports, by export configuration
+	 * and export directory
+	 */
+	private final Cache<String, Map<TileCoords, DynmapHttpClient.Validators>> exportTiles =
+			CacheBuilder.newBuilder().maximumSize(MAX_CACHED_EXPORTS).build();
+	private volatile @Nullable String imageQuery;
+	
+	public SqliteTileSource(@NotNull File database, @NotNull Logger logger) {
+		this.database = database;
+		this.logger = logger;
+	}
+	
+	@Override
+	public @NotNull DynmapHttpClient.Download fetch(@NotNull ExportConfig config, @NotNull TileCoords tile,
+	                                                @NotNull File dest,
+	                                                @Nullable DynmapHttpClient.Validators validators)
+			throws IOException {
+		DynmapHttpClient.Validators current = getTiles(config, dest.getParentFile()).get(tile);
+		if (current == null) throw new FileNotFoundException("Dynmap has no tile " + tile + " of map " + config.map.name);
+		if (current.equals(validators)) return new DynmapHttpClient.Download(0, validators, true);
+		
+		try (PreparedStatement statement = getConnection().prepareStatement(getImageQuery())) {
+			statement.setInt(1, getMapId(config));
+			statement.setInt(2, tile.x);
+			statement.setInt(3, tile.y);
+			statement.setInt(4, config.zoom);
+			try (ResultSet result = statement.executeQuery()) {
+				InputStream image = result.next() ? result.getBinaryStream(1) : null;
+				if (image == null) throw new FileNotFoundException("Dynmap has no image for tile " + tile);
+				try (InputStream in = image) {
+					long bytes = Files.copy(in, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					return new DynmapHttpClient.Download(bytes, current, false);
+				}
+			}
+		} catch (SQLException e) {
+			throw new IOException("Could not read tile " + tile + " from " + database, e);
+		}
+	}
+	
+	@Override
+	public void close() {
+		for (Connection connection : connections) {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				logger.log(Level.WARNING, "Could not close Dynmap database connection", e);
+			}
+		}
+		connections.clear();
+	}
+	
+	/**
+	 * Get the validators of all tiles of an export, with one range query over
+	 * the export rectangle.
+	 *
+	 * @param config    the export configuration
+	 * @param exportDir the directory of the export, so that every export reads
+	 *                  the current validators
+	 * @return the validators of all tiles that Dynmap has in the rectangle
+	 */
+	private @NotNull Map<TileCoords, DynmapHttpClient.Validators> getTiles(@NotNull ExportConfig config,
+	                                                                       @NotNull File exportDir)
+			throws IOException {
+		try {
+			return exportTiles.get(config.getId() + " " + exportDir.getPath(), () -> readTiles(config));
+		} catch (ExecutionException e) {
+			throw (e.getCause() instanceof IOException)
+					? (IOException) e.getCause()
+					: new IOException(e.getCause());
+		}
+	}
+	
+	private @NotNull Map<TileCoords, DynmapHttpClient.Validators> readTiles(@NotNull ExportConfig config)
+			throws IOException {
+		Map<TileCoords, DynmapHttpClient.Validators> tiles = new HashMap<>();
+		try (PreparedStatement statement = getConnection().prepareStatement(
+				"SELECT x, y, HashCode, LastUpdate FROM Tiles "
+						+ "WHERE MapID = ? AND zoom = ? AND x BETWEEN ? AND ? AND y BETWEEN ? AND ?")) {
+			statement.setInt(1, getMapId(config));
+			statement.setInt(2, config.zoom);
+			statement.setInt(3, config.from.x);
+			statement.setInt(4, config.to.x);
+			statement.setInt(5, config.from.y);
+			statement.setInt(6, config.to.y);
+			try (ResultSet result = statement.executeQuery()) {
+				while (result.next()) {
+					tiles.put(new TileCoords(result.getInt(1), result.getInt(2)),
+							new DynmapHttpClient.Validators(
+									Long.toString(result.getLong(4)),
+									Long.toString(result.getLong(3))));
+				}
+			}
+		} catch (SQLException e) {
+			throw new IOException("Could not read tiles of map " + config.map.name + " from " + database, e);
+		}
+		return tiles;
+	}
+	
+	/**
+	 * @return the ID of the map of <code>config</code> in the database
+	 */
+	private int getMapId(@NotNull ExportConfig config) throws IOException, SQLException {
+		String key = config.world.name + ":" + config.map.prefix;
+		Integer id = mapIds.get(key);
+		if (id != null) return id;
+		
+		try (PreparedStatement statement = getConnection().prepareStatement(
+				"SELECT ID FROM Maps WHERE WorldID = ? AND MapID = ? AND Variant = ?")) {
+			statement.setString(1, config.world.name);
+			statement.setString(2, config.map.prefix);
+			statement.setString(3, VARIANT);
+			try (ResultSet result = statement.executeQuery()) {
+				if (!result.next()) throw new FileNotFoundException("Dynmap database has no map " + key);
+				mapIds.put(key, result.getInt(1));
+				return result.getInt(1);
+			}
+		}
+	}
+	
+	/**
+	 * Newer versions of Dynmap store images in the <code>NewImage</code>
+	 * column, older versions in <code>Image</code>.
+	 *
+	 * @return the query for the image of a single tile
+	 */
+	private @NotNull String getImageQuery() throws IOException, SQLException {
+		String query = imageQuery;
+		if (query != null) return query;
+		
+		boolean hasNewImage = false;
+		try (Statement statement = getConnection().createStatement();
+		     ResultSet result = statement.executeQuery("PRAGMA table_info(Tiles)")) {
+			while (result.next()) {
+				if (result.getString("name").equalsIgnoreCase("NewImage")) hasNewImage = true;
+			}
+		}
+		query = "SELECT " + (hasNewImage ? "COALESCE(NewImage, Image)" : "Image")
+				+ " FROM Tiles WHERE MapID = ? AND x = ? AND y = ? AND zoom = ?";
+		imageQuery = query;
+		return query;
+	}
+	
+	/**
+	 * @return the read-only database connection of the current thread
+	 */
+	private @NotNull Connection getConnection() throws IOException, SQLException {
+		Connection current = connection.get();
+		if (current != null && !current.isClosed()) return current;
+		
+		// Opening a missing database read-only fails instead of creating it
+		if (!database.isFile()) throw new FileNotFoundException("Dynmap database " + database + " does not exist");
+		Properties properties = new Properties();
+		properties.setProperty("open_mode", Integer.toString(SQLITE_OPEN_READONLY));
+		current = DriverManager.getConnection("jdbc:sqlite:" + database.getPath(), properties);
+		connection.set(current);
+		connections.add(current);
+		return current;
+	}
+	
+}
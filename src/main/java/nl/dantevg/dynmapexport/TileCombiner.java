@@ -1,68 +1,367 @@
 package nl.dantevg.dynmapexport;
 
 import nl.dantevg.dynmapexport.location.TileCoords;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
+import java.awt.image.DataBufferInt;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 
 public class TileCombiner {
-	private static final int PIXELS_PER_TILE = 128;
+	static final int PIXELS_PER_TILE = 128;
+	private static final int DEFAULT_COMPRESSION_LEVEL = 4; // same as ImageIO
 	
 	private final DynmapExport plugin;
+	private final CombineMode mode;
+	private final int compressionLevel;
+	private final @Nullable ExecutorService encodeExecutor;
 	
 	public TileCombiner(DynmapExport plugin) {
 		this.plugin = plugin;
+		this.mode = getCombineMode(plugin);
+		this.compressionLevel = Math.max(0, Math.min(9,
+				plugin.config.getInt("png-compression-level", DEFAULT_COMPRESSION_LEVEL)));
+		int nThreads = plugin.config.getInt("encode-threads",
+				Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+		if (nThreads > 1) {
+			encodeExecutor = Executors.newFixedThreadPool(nThreads, new ThreadFactoryBuilder()
+					.setNameFormat("DynmapExport encode #%d")
+					.setDaemon(true)
+					.build());
+		} else {
+			encodeExecutor = null;
+		}
+	}
+	
+	/**
+	 * @return the executor for image encoding work, or null if it runs on the
+	 * calling thread
+	 */
+	@Nullable ExecutorService getEncodeExecutor() {
+		return encodeExecutor;
+	}
+	
+	/**
+	 * @return the deflate compression level for encoded images, 0-9
+	 */
+	int getCompressionLevel() {
+		return compressionLevel;
+	}
+	
+	/**
+	 * Stop the encode workers.
+	 */
+	public void shutdown() {
+		if (encodeExecutor != null) encodeExecutor.shutdownNow();
 	}
 	
 	public @Nullable BufferedImage combine(ExportConfig config, Instant instant) {
-		int width = tileCoordsToPixelX(config, config.to) + PIXELS_PER_TILE;
-		int height = tileCoordsToPixelY(config, config.from) + PIXELS_PER_TILE;
-		
 		plugin.logger.log(Level.CONFIG, String.format("Creating a %dx%d image from %s to %s",
-				width, height, config.from, config.to));
-		
-		BufferedImage output = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		Graphics2D graphics = output.createGraphics();
-		
-		for (TileCoords tile : Downloader.configToTileLocations(config)) {
-			if (!drawTile(config, instant, graphics, tile)) return null;
+				getWidth(config), getHeight(config), config.from, config.to));
+		try {
+			return combine(config, getTileReader(config, instant));
+		} catch (IOException e) {
+			plugin.logger.log(Level.SEVERE, "Cannot combine export " + Paths.getInstantFormat().format(instant), e);
+			return null;
 		}
-		
-		return output;
 	}
 	
 	public boolean combineAndSave(ExportConfig config, Instant instant) {
+		boolean saved = (mode == CombineMode.FULL)
+				? combineFull(config, instant)
+				: combineStreaming(config, instant);
+		if (saved) plugin.getManifest(config).setCombined(instant);
+		return saved;
+	}
+	
+	/**
+	 * Combine the tiles of a new export and save the combined image. In
+	 * incremental mode, only the tiles that changed since the previous export
+	 * are drawn over the previous combined image.
+	 *
+	 * @param result the downloaded tiles of the export
+	 * @return whether the combined image was saved
+	 */
+	public boolean combineAndSave(@NotNull ExportResult result) {
+		if (mode != CombineMode.INCREMENTAL || result.previous == null) {
+			return combineAndSave(result.config, result.instant);
+		}
+		File previousFile = Paths.getLocalCombinedFile(plugin, result.config, result.previous);
+		if (!previousFile.isFile() || !combineIncremental(result, previousFile)) {
+			plugin.logger.log(Level.CONFIG, "Could not update the previous combined image, combining all tiles");
+			return combineAndSave(result.config, result.instant);
+		}
+		plugin.getManifest(result.config).setCombined(result.instant);
+		return true;
+	}
+	
+	private boolean combineFull(ExportConfig config, Instant instant) {
 		BufferedImage result = combine(config, instant);
 		if (result == null) return false;
+		return save(config, instant, result.getWidth(), result.getHeight(), writer -> writeImage(result, writer));
+	}
+	
+	/**
+	 * Combine the tiles one row of tiles at a time, and encode every row
+	 * directly into the PNG file. Only a single row of tiles is kept in
+	 * memory, instead of the whole image.
+	 *
+	 * @param config  the export configuration
+	 * @param instant the time of the export
+	 * @return whether the combined image was saved
+	 */
+	private boolean combineStreaming(ExportConfig config, Instant instant) {
+		int width = getWidth(config);
+		int height = getHeight(config);
+		
+		plugin.logger.log(Level.CONFIG, String.format("Creating a %dx%d image from %s to %s, one row of tiles at a time",
+				width, height, config.from, config.to));
+		
+		return save(config, instant, width, height, writer ->
+				writeRows(config, getTileReader(config, instant), writer));
+	}
+	
+	/**
+	 * Update the combined image of the previous export with the tiles that
+	 * changed since then. Only one row of tiles is kept in memory, like in
+	 * streaming mode, and unchanged tiles are not read.
+	 *
+	 * @param result       the downloaded tiles of the export
+	 * @param previousFile the combined image of the previous export
+	 * @return whether the combined image was saved
+	 */
+	private boolean combineIncremental(@NotNull ExportResult result, @NotNull File previousFile) {
+		ExportConfig config = result.config;
+		Set<TileCoords> changedTiles = result.changes.modified;
+		int width = getWidth(config);
+		int height = getHeight(config);
+		
+		try (PngReader reader = new PngReader(new BufferedInputStream(new FileInputStream(previousFile)))) {
+			if (reader.getWidth() != width || reader.getHeight() != height) return false;
+			
+			plugin.logger.log(Level.CONFIG, String.format("Updating %d of %d tiles in the %dx%d image from %s to %s",
+					changedTiles.size(), result.tiles.size(), width, height, config.from, config.to));
+			
+			return save(config, result.instant, width, height, writer ->
+					updateRows(config, getTileReader(config, result.instant), reader, changedTiles, writer));
+		} catch (IOException e) {
+			plugin.logger.log(Level.WARNING, "Cannot read previous combined image " + previousFile, e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Encode a combined image to a temporary file, and move it into place
+	 * once it is complete.
+	 *
+	 * @param config  the export configuration
+	 * @param instant the time of the export
+	 * @param width   the width of the combined image
+	 * @param height  the height of the combined image
+	 * @param rows    writes all rows of the image
+	 * @return whether the combined image was saved
+	 */
+	private boolean save(ExportConfig config, Instant instant, int width, int height, RowWriter rows) {
 		File file = Paths.getLocalCombinedFile(plugin, config, instant);
+		File tempFile = new File(file.getPath() + ".tmp");
+		boolean saved = false;
+		try (PngWriter writer = new PngWriter(new BufferedOutputStream(new FileOutputStream(tempFile)),
+				width, height, compressionLevel, encodeExecutor)) {
+			rows.writeTo(writer);
+			writer.finish();
+			saved = true;
+		} catch (IOException e) {
+			plugin.logger.log(Level.SEVERE, "Cannot save combined image to " + file, e);
+		} finally {
+			if (!saved) tempFile.delete();
+		}
+		if (!saved) return false;
+		
 		try {
-			ImageIO.write(result, "png", file);
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			plugin.exportMetrics.addBytesWritten(config, file.length());
 			return true;
 		} catch (IOException e) {
 			plugin.logger.log(Level.SEVERE, "Cannot save combined image to " + file, e);
+			tempFile.delete();
 			return false;
 		}
 	}
 	
-	private boolean drawTile(ExportConfig config, Instant instant, Graphics2D graphics, TileCoords tile) {
-		File tileFile = Paths.getLocalTileFile(plugin, config, instant, tile);
-		BufferedImage tileImage;
+	/**
+	 * Read the tiles of an export from its tile directory or archive, see
+	 * {@link ExportHistory#readTile(ExportConfig, Instant, TileCoords, int)}.
+	 */
+	private @NotNull TileReader getTileReader(ExportConfig config, Instant instant) {
+		return tile -> {
+			ByteBuffer tileData = plugin.exportHistory.readTile(config, instant, tile, config.zoom);
+			if (tileData == null) {
+				throw new FileNotFoundException("Export " + Paths.getInstantFormat().format(instant)
+						+ " has no tile " + tile);
+			}
+			return readImage(tileData);
+		};
+	}
+	
+	/**
+	 * Decode the image file of a tile.
+	 *
+	 * @param tileData the image file
+	 * @return the tile image
+	 * @throws IOException when the image could not be decoded
+	 */
+	public static @NotNull BufferedImage readImage(@NotNull ByteBuffer tileData) throws IOException {
+		BufferedImage image = ImageIO.read(ExportArchive.asInputStream(tileData));
+		if (image == null) throw new IOException("unknown image format");
+		return image;
+	}
+	
+	/**
+	 * Draw all tiles of an export into a single image, like the
+	 * <code>full</code> combine mode.
+	 *
+	 * @param config the export configuration
+	 * @param tiles  reads the tiles of the export
+	 * @return the combined image, of type <code>TYPE_INT_RGB</code>
+	 * @throws IOException when a tile could not be read
+	 */
+	public static @NotNull BufferedImage combine(@NotNull ExportConfig config, @NotNull TileReader tiles)
+			throws IOException {
+		BufferedImage output = new BufferedImage(getWidth(config), getHeight(config), BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = output.createGraphics();
 		try {
-			tileImage = ImageIO.read(tileFile);
-		} catch (IOException e) {
-			plugin.logger.log(Level.SEVERE, "Cannot read image from file " + tileFile, e);
-			return false;
+			for (TileCoords tile : Downloader.configToTileLocations(config)) {
+				graphics.drawImage(tiles.read(tile),
+						tileCoordsToPixelX(config, tile), tileCoordsToPixelY(config, tile), null);
+			}
+		} finally {
+			graphics.dispose();
+		}
+		return output;
+	}
+	
+	/**
+	 * Encode an image of type <code>TYPE_INT_RGB</code>.
+	 *
+	 * @param image  the image
+	 * @param writer the writer to write all rows of the image to
+	 * @throws IOException when the image could not be written
+	 */
+	public static void writeImage(@NotNull BufferedImage image, @NotNull PngWriter writer) throws IOException {
+		int width = image.getWidth();
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		for (int y = 0; y < image.getHeight(); y++) writer.writeRow(pixels, y * width);
+	}
+	
+	/**
+	 * Draw the tiles of an export one row of tiles at a time and encode every
+	 * row directly, like the <code>streaming</code> combine mode.
+	 *
+	 * @param config the export configuration
+	 * @param tiles  reads the tiles of the export
+	 * @param writer the writer to write all rows of the combined image to
+	 * @throws IOException when a tile could not be read or a row not written
+	 */
+	public static void writeRows(@NotNull ExportConfig config, @NotNull TileReader tiles,
+	                             @NotNull PngWriter writer) throws IOException {
+		updateRows(config, tiles, null, null, writer);
+	}
+	
+	/**
+	 * Draw the changed tiles of an export over the combined image of the
+	 * previous export, one row of tiles at a time, like the
+	 * <code>incremental</code> combine mode. The area of a changed tile is
+	 * cleared before it is drawn, so that its transparent pixels come out
+	 * like in a full combine instead of showing the previous tile.
+	 *
+	 * @param config   the export configuration
+	 * @param tiles    reads the tiles of the export
+	 * @param previous the combined image of the previous export, or null to
+	 *                 draw all tiles on an empty image
+	 * @param changed  the tiles that changed since the previous export, or
+	 *                 null for all tiles
+	 * @param writer   the writer to write all rows of the combined image to
+	 * @throws IOException when a tile could not be read or a row not written
+	 */
+	public static void updateRows(@NotNull ExportConfig config, @NotNull TileReader tiles,
+	                              @Nullable PngReader previous, @Nullable Set<TileCoords> changed,
+	                              @NotNull PngWriter writer) throws IOException {
+		int width = getWidth(config);
+		BufferedImage band = new BufferedImage(width, PIXELS_PER_TILE, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt) band.getRaster().getDataBuffer()).getData();
+		// Tile y-coordinates increase upwards, image rows downwards
+		for (int y = config.to.y; y >= config.from.y; y -= 1 << config.zoom) {
+			if (previous != null) {
+				for (int row = 0; row < PIXELS_PER_TILE; row++) previous.readRow(pixels, row * width);
+			} else {
+				Arrays.fill(pixels, 0);
+			}
+			Graphics2D graphics = band.createGraphics();
+			try {
+				for (int x = config.from.x; x <= config.to.x; x += 1 << config.zoom) {
+					TileCoords tile = new TileCoords(x, y);
+					if (changed != null && !changed.contains(tile)) continue;
+					int pixelX = tileCoordsToPixelX(config, tile);
+					if (previous != null) {
+						for (int row = 0; row < PIXELS_PER_TILE; row++) {
+							Arrays.fill(pixels, row * width + pixelX, row * width + pixelX + PIXELS_PER_TILE, 0);
+						}
+					}
+					graphics.drawImage(tiles.read(tile), pixelX, 0, null);
+				}
+			} finally {
+				graphics.dispose();
+			}
+			for (int row = 0; row < PIXELS_PER_TILE; row++) writer.writeRow(pixels, row * width);
 		}
-		int x = tileCoordsToPixelX(config, tile);
-		int y = tileCoordsToPixelY(config, tile);
-		graphics.drawImage(tileImage, x, y, null);
-		return true;
+	}
+	
+	/**
+	 * @param config the export configuration
+	 * @param tiles  the tiles to get the bounds of
+	 * @return the smallest area of the combined image that contains all
+	 * <code>tiles</code>, which is empty if there are no tiles
+	 */
+	static @NotNull Rectangle getPixelBounds(@NotNull ExportConfig config, @NotNull Collection<TileCoords> tiles) {
+		Rectangle bounds = new Rectangle();
+		for (TileCoords tile : tiles) {
+			Rectangle tileBounds = new Rectangle(tileCoordsToPixelX(config, tile), tileCoordsToPixelY(config, tile),
+					PIXELS_PER_TILE, PIXELS_PER_TILE);
+			if (bounds.isEmpty()) bounds = tileBounds;
+			else bounds.add(tileBounds);
+		}
+		return bounds;
+	}
+	
+	/**
+	 * @param config the export configuration
+	 * @return the width of the combined image in pixels
+	 */
+	public static int getWidth(@NotNull ExportConfig config) {
+		return tileCoordsToPixelX(config, config.to) + PIXELS_PER_TILE;
+	}
+	
+	/**
+	 * @param config the export configuration
+	 * @return the height of the combined image in pixels
+	 */
+	public static int getHeight(@NotNull ExportConfig config) {
+		return tileCoordsToPixelY(config, config.from) + PIXELS_PER_TILE;
 	}
 	
 	private static int tileCoordsToPixelX(ExportConfig config, TileCoords tile) {
@@ -73,4 +372,48 @@ public class TileCombiner {
 		return (config.to.y - tile.y) / (1 << config.zoom) * PIXELS_PER_TILE;
 	}
 	
+	private static CombineMode getCombineMode(DynmapExport plugin) {
+		String value = plugin.config.getString("combine-mode", "full");
+		try {
+			return CombineMode.valueOf(value.toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			plugin.logger.log(Level.WARNING, "Invalid combine-mode " + value + ", using full");
+			return CombineMode.FULL;
+		}
+	}
+	
+	@FunctionalInterface
+	private interface RowWriter {
+		void writeTo(PngWriter writer) throws IOException;
+	}
+	
+	/**
+	 * Reads the image of a single tile of an export.
+	 */
+	@FunctionalInterface
+	public interface TileReader {
+		/**
+		 * @param tile the tile coordinates
+		 * @return the tile image
+		 * @throws IOException when the tile could not be read
+		 */
+		@NotNull BufferedImage read(@NotNull TileCoords tile) throws IOException;
+	}
+	
+	public enum CombineMode {
+		/**
+		 * Draw all tiles into a single image in memory, and save it
+		 */
+		FULL,
+		/**
+		 * Draw one row of tiles at a time and encode it directly
+		 */
+		STREAMING,
+		/**
+		 * Draw the changed tiles over the combined image of the previous
+		 * export, one row of tiles at a time
+		 */
+		INCREMENTAL,
+	}
+	
 }
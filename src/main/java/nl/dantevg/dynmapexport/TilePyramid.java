@@ -0,0 +1,232 @@
+package nl.dantevg.dynmapexport;
+
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+
+/**
+ * Generates the coarser zoom levels of an export locally, by downsampling the
+ * downloaded tiles, instead of downloading every zoom level from Dynmap. The
+ * generated tiles are stored next to the downloaded tiles, with the same names
+ * that Dynmap uses (e.g. <code>zz_-4_8.png</code>).
+ */
+public class TilePyramid {
+	private static final int SIZE = TileCombiner.PIXELS_PER_TILE;
+	private static final int HALF = SIZE / 2;
+	
+	private final DynmapExport plugin;
+	private final @Nullable ExecutorService executor;
+	
+	/**
+	 * @param plugin   the DynmapExport plugin
+	 * @param executor the executor to downsample tiles on, or null to
+	 *                 downsample on the calling thread
+	 */
+	public TilePyramid(DynmapExport plugin, @Nullable ExecutorService executor) {
+		this.plugin = plugin;
+		this.executor = executor;
+	}
+	
+	/**
+	 * Generate the coarser zoom levels of an export. Zoomed-out tiles that
+	 * only contain tiles that did not change since the previous export are
+	 * copied from the previous export. A zoomed-out tile is skipped when one
+	 * of the tiles below it is missing or cannot be read, and so are the
+	 * zoomed-out tiles above it.
+	 *
+	 * @param result the downloaded tiles of the export
+	 * @return whether all zoomed-out tiles were generated
+	 */
+	public boolean build(@NotNull ExportResult result) {
+		ExportConfig config = result.config;
+		if (config.pyramidLevels <= 0) return true;
+		
+		boolean complete = true;
+		Set<TileCoords> tiles = new HashSet<>(Downloader.configToTileLocations(config));
+		Set<TileCoords> changed = (result.previous != null) ? result.changes.modified : tiles;
+		for (int zoom = config.zoom + 1; zoom <= config.zoom + config.pyramidLevels; zoom++) {
+			Set<TileCoords> children = tiles;
+			Set<TileCoords> parents = toZoom(tiles, zoom);
+			Set<TileCoords> changedParents = toZoom(changed, zoom);
+			int parentZoom = zoom;
+			List<Callable<Boolean>> tasks = parents.stream()
+					.map(parent -> (Callable<Boolean>) () ->
+							(!changedParents.contains(parent) && copyTile(config, result, parent, parentZoom))
+									|| generateTile(config, result.instant, children, parent, parentZoom))
+					.collect(Collectors.toList());
+			int nSkipped = runAll(tasks);
+			if (nSkipped < 0) return false;
+			if (nSkipped > 0) {
+				complete = false;
+				plugin.logger.log(Level.WARNING, String.format("Skipped %d of %d tiles of zoom level %d of map %s:%s",
+						nSkipped, parents.size(), zoom, config.world.name, config.map.name));
+			}
+			plugin.logger.log(Level.CONFIG, String.format("Generated %d and copied %d tiles of zoom level %d",
+					changedParents.size(), parents.size() - changedParents.size(), zoom));
+			tiles = parents;
+			changed = changedParents;
+		}
+		return complete;
+	}
+	
+	/**
+	 * Generate a single zoomed-out tile from the (up to) four tiles of the
+	 * zoom level below it.
+	 *
+	 * @param config   the export configuration
+	 * @param instant  the time of the export
+	 * @param children the tiles of the export at the zoom level below the tile
+	 * @param tile     the coordinates of the zoomed-out tile
+	 * @param zoom     the zoom level of the zoomed-out tile
+	 * @return whether the tile was saved, false when one of the tiles below it
+	 * is missing or cannot be read
+	 */
+	private boolean generateTile(@NotNull ExportConfig config, @NotNull Instant instant,
+	                             @NotNull Set<TileCoords> children, @NotNull TileCoords tile, int zoom) {
+		int step = 1 << (zoom - 1);
+		// Tile y-coordinates increase upwards, so the top quadrants have the highest y
+		TileCoords[] quadrants = {
+				new TileCoords(tile.x, tile.y), new TileCoords(tile.x + step, tile.y),
+				new TileCoords(tile.x, tile.y - step), new TileCoords(tile.x + step, tile.y - step),
+		};
+		
+		BufferedImage output = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+		int[] pixels = ((DataBufferInt) output.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < quadrants.length; i++) {
+			if (!children.contains(quadrants[i])) continue; // Outside the export area, leave transparent
+			File file = Paths.getLocalTileFile(plugin, config, instant, quadrants[i], zoom - 1);
+			if (!file.isFile()) {
+				plugin.logger.log(Level.WARNING, String.format("Not generating zoomed-out tile %s of zoom level %d, "
+						+ "tile %s is missing", tile, zoom, quadrants[i]));
+				return false;
+			}
+			try {
+				BufferedImage quadrant = ImageIO.read(file);
+				if (quadrant == null) throw new IOException("unknown image format");
+				if (quadrant.getWidth() != SIZE || quadrant.getHeight() != SIZE) {
+					throw new IOException(String.format("tile is %dx%d instead of %dx%d",
+							quadrant.getWidth(), quadrant.getHeight(), SIZE, SIZE));
+				}
+				downsample(quadrant, pixels, (i % 2) * HALF, (i / 2) * HALF);
+			} catch (IOException e) {
+				plugin.logger.log(Level.WARNING, String.format("Not generating zoomed-out tile %s of zoom level %d, "
+						+ "cannot read tile %s", tile, zoom, file), e);
+				return false;
+			}
+		}
+		
+		File file = Paths.getLocalTileFile(plugin, config, instant, tile, zoom);
+		try {
+			ImageIO.write(output, "png", file);
+			plugin.exportMetrics.addBytesWritten(config, file.length());
+			plugin.tileStore.add(file);
+			return true;
+		} catch (IOException e) {
+			plugin.logger.log(Level.SEVERE, "Cannot save zoomed-out tile to " + file, e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Copy an unchanged zoomed-out tile from the previous export.
+	 *
+	 * @return whether the tile was copied
+	 */
+	private boolean copyTile(@NotNull ExportConfig config, @NotNull ExportResult result,
+	                         @NotNull TileCoords tile, int zoom) {
+		if (result.previous == null) return false;
+		File previous = Paths.getLocalTileFile(plugin, config, result.previous, tile, zoom);
+		if (!previous.isFile()) return false;
+		try {
+			plugin.tileStore.copy(previous, Paths.getLocalTileFile(plugin, config, result.instant, tile, zoom));
+			return true;
+		} catch (IOException e) {
+			plugin.logger.log(Level.WARNING, "Cannot copy zoomed-out tile " + previous, e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Scale a tile down to half its size by averaging every 2x2 block of
+	 * pixels, and store it in a quadrant of <code>output</code>.
+	 *
+	 * @param tile    the tile to scale down
+	 * @param output  the ARGB pixels of the zoomed-out tile
+	 * @param offsetX the x-coordinate of the quadrant in the zoomed-out tile
+	 * @param offsetY the y-coordinate of the quadrant in the zoomed-out tile
+	 */
+	static void downsample(@NotNull BufferedImage tile, int @NotNull [] output, int offsetX, int offsetY) {
+		int[] input = tile.getRGB(0, 0, SIZE, SIZE, null, 0, SIZE);
+		for (int y = 0; y < HALF; y++) {
+			for (int x = 0; x < HALF; x++) {
+				int i = 2 * y * SIZE + 2 * x;
+				output[(offsetY + y) * SIZE + offsetX + x] =
+						average(input[i], input[i + 1], input[i + SIZE], input[i + SIZE + 1]);
+			}
+		}
+	}
+	
+	private static int average(int a, int b, int c, int d) {
+		int result = 0;
+		for (int shift = 0; shift < 32; shift += 8) {
+			int sum = (a >>> shift & 0xFF) + (b >>> shift & 0xFF) + (c >>> shift & 0xFF) + (d >>> shift & 0xFF);
+			result |= ((sum + 2) >> 2) << shift; // rounded
+		}
+		return result;
+	}
+	
+	private static @NotNull Set<TileCoords> toZoom(@NotNull Set<TileCoords> tiles, int zoom) {
+		return tiles.stream()
+				.map(tile -> tile.toZoom(zoom))
+				.collect(Collectors.toSet());
+	}
+	
+	/**
+	 * Run all tasks on the executor (or on this thread if there is none), and
+	 * wait for them to finish.
+	 *
+	 * @return the number of tasks that did not succeed, or -1 when
+	 * interrupted
+	 */
+	private int runAll(@NotNull List<Callable<Boolean>> tasks) {
+		List<Future<Boolean>> futures = new ArrayList<>();
+		try {
+			if (executor != null) futures = executor.invokeAll(tasks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return -1;
+		}
+		
+		int nFailed = 0;
+		for (int i = 0; i < tasks.size(); i++) {
+			try {
+				if (!((executor != null) ? futures.get(i).get() : tasks.get(i).call())) nFailed++;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return -1;
+			} catch (ExecutionException e) {
+				plugin.logger.log(Level.SEVERE, "Could not generate zoomed-out tile", e.getCause());
+				nFailed++;
+			} catch (Exception e) {
+				plugin.logger.log(Level.SEVERE, "Could not generate zoomed-out tile", e);
+				nFailed++;
+			}
+		}
+		return nFailed;
+	}
+	
+}
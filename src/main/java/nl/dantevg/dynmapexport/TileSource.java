@@ -0,0 +1,66 @@
+package nl.dantevg.dynmapexport;
+
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+
+/**
+ * Where the tiles of an export are fetched from.
+ */
+public interface TileSource extends Closeable {
+	/**
+	 * Fetch a single tile to <code>dest</code>, unless it was not modified
+	 * since a previous fetch.
+	 *
+	 * @param config     the export configuration
+	 * @param tile       the tile coordinates
+	 * @param dest       the destination file, which will be overwritten
+	 * @param validators the validators of the previous fetch of this tile, if
+	 *                   any. When the tile was not modified since then,
+	 *                   <code>dest</code> is left untouched.
+	 * @return the result of the fetch
+	 * @throws IOException when the tile could not be fetched
+	 */
+	@NotNull DynmapHttpClient.Download fetch(@NotNull ExportConfig config, @NotNull TileCoords tile,
+	                                         @NotNull File dest, @Nullable DynmapHttpClient.Validators validators)
+			throws IOException;
+	
+	/**
+	 * Release the resources of this tile source, like database connections.
+	 */
+	@Override
+	default void close() {
+	}
+	
+	/**
+	 * Create the tile source from the <code>tile-source</code> config option.
+	 *
+	 * @param plugin the DynmapExport plugin
+	 * @return the tile source, HTTP by default
+	 */
+	static @NotNull TileSource fromConfig(@NotNull DynmapExport plugin) {
+		String source = plugin.config.getString("tile-source", "http");
+		switch (source) {
+			case "http":
+				return new HttpTileSource(plugin.httpClient);
+			case "filetree":
+				return FileTreeTileSource.fromConfig(plugin);
+			case "sqlite":
+				File database = new File(plugin.config.getString("dynmap-database", "plugins/dynmap/dynmap.db"));
+				if (!database.isFile()) {
+					plugin.logger.log(Level.WARNING, "Dynmap database " + database.getAbsolutePath()
+							+ " does not exist, is Dynmap using SQLite storage?");
+				}
+				return new SqliteTileSource(database, plugin.logger);
+			default:
+				plugin.logger.log(Level.WARNING, "Invalid tile-source " + source + ", using http");
+				return new HttpTileSource(plugin.httpClient);
+		}
+	}
+	
+}
@@ -0,0 +1,217 @@
+package nl.dantevg.dynmapexport;
+
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Content-addressed store of tile images, keyed by the SHA-256 hash of the
+ * tile file. When enabled, the tile files in export directories are hardlinks
+ * to the files in this store, so that identical tiles in different exports
+ * only take up disk space once.
+ */
+public class TileStore {
+	private final Logger logger;
+	private final File dataFolder;
+	private volatile boolean enabled;
+	/**
+	 * Adding and copying tiles (shared) must not overlap with removing unused
+	 * tiles (exclusive), or a tile could be removed right before it is linked
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	public TileStore(DynmapExport plugin) {
+		this(plugin.logger, plugin.getDataFolder(), plugin.config.getBoolean("deduplicate-tiles"));
+	}
+	
+	/**
+	 * @param logger     the logger to log errors to
+	 * @param dataFolder the data folder of the plugin
+	 * @param enabled    whether to store tiles
+	 */
+	TileStore(@NotNull Logger logger, @NotNull File dataFolder, boolean enabled) {
+		this.logger = logger;
+		this.dataFolder = dataFolder;
+		this.enabled = enabled;
+	}
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Add a downloaded tile to the store. Afterwards, <code>file</code> is a
+	 * hardlink to the stored tile. Does nothing when the store is disabled.
+	 *
+	 * @param file the tile file
+	 * @throws IOException when the tile could not be read or linked
+	 */
+	public void add(@NotNull File file) throws IOException {
+		if (!enabled) return;
+		
+		Path blob = Paths.getTileStoreFile(dataFolder, hash(file)).toPath();
+		lock.readLock().lock();
+		try {
+			Files.createDirectories(blob.getParent());
+			// New content: the file itself becomes the stored tile
+			link(blob, file.toPath());
+		} catch (FileAlreadyExistsException e) {
+			// Known content: replace the file by a link to the stored tile
+			Path temp = file.toPath().resolveSibling(file.getName() + ".tmp");
+			Files.deleteIfExists(temp);
+			if (link(temp, blob)) {
+				Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Copy an unmodified tile from a previous export to a new export. When the
+	 * store is enabled, <code>dest</code> becomes a hardlink to the same file.
+	 *
+	 * @param source the tile file of the previous export
+	 * @param dest   the tile file of the new export
+	 * @throws IOException when the tile could not be copied or linked
+	 */
+	public void copy(@NotNull File source, @NotNull File dest) throws IOException {
+		if (enabled) {
+			lock.readLock().lock();
+			try {
+				Files.deleteIfExists(dest.toPath());
+				if (link(dest.toPath(), source.toPath())) return;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+		Files.copy(source.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	/**
+	 * Find the stored tiles that tile files are hardlinks to. Must be called
+	 * before the tile files are removed, after which the stored tiles can be
+	 * passed to {@link #removeUnreferenced(Collection)}.
+	 *
+	 * @param file a tile file, or a directory with tile files
+	 * @return the stored tiles
+	 */
+	public @NotNull Set<File> getStoredTiles(@NotNull File file) {
+		Set<File> blobs = new HashSet<>();
+		if (!Files.isDirectory(Paths.getTileStoreDir(dataFolder).toPath())) return blobs;
+		
+		File[] files = file.isDirectory() ? file.listFiles(File::isFile) : new File[]{file};
+		for (File tileFile : (files != null) ? files : new File[0]) {
+			try {
+				// Only files with other links can be stored tiles
+				if (getLinkCount(tileFile.toPath()) <= 1) continue;
+				File blob = Paths.getTileStoreFile(dataFolder, hash(tileFile));
+				if (blob.isFile() && Files.isSameFile(blob.toPath(), tileFile.toPath())) blobs.add(blob);
+			} catch (UnsupportedOperationException | IllegalArgumentException e) {
+				logger.log(Level.FINE, "File system does not report hardlink counts, "
+						+ "not removing unused tiles from the tile store");
+				return blobs;
+			} catch (NoSuchFileException ignored) {
+				// Already removed
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Could not check tile file " + tileFile, e);
+			}
+		}
+		return blobs;
+	}
+	
+	/**
+	 * Remove the stored tiles that are not used by any export anymore. Only
+	 * works on file systems that report the number of hardlinks to a file.
+	 *
+	 * @param blobs the stored tiles that removed tile files were links to,
+	 *              see {@link #getStoredTiles(File)}
+	 * @return the number of removed tiles
+	 */
+	public int removeUnreferenced(@NotNull Collection<File> blobs) {
+		int nRemoved = 0;
+		for (File blob : blobs) {
+			// Only keep adding and copying tiles waiting for a single tile
+			lock.writeLock().lock();
+			try {
+				if (getLinkCount(blob.toPath()) <= 1 && blob.delete()) nRemoved++;
+			} catch (NoSuchFileException ignored) {
+				// Already removed
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Could not check tile store file " + blob, e);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+		if (nRemoved > 0) logger.log(Level.CONFIG, "Removed " + nRemoved + " unused tiles from the tile store");
+		return nRemoved;
+	}
+	
+	/**
+	 * Create a hardlink, disabling the store if the file system does not
+	 * support hardlinks (or not between the store and the export directories).
+	 * Other errors, like too many links to the stored tile, only keep this
+	 * tile from being linked.
+	 *
+	 * @return whether the link was created
+	 */
+	private boolean link(@NotNull Path link, @NotNull Path existing) throws IOException {
+		try {
+			Files.createLink(link, existing);
+			return true;
+		} catch (FileAlreadyExistsException | NoSuchFileException e) {
+			throw e;
+		} catch (UnsupportedOperationException e) {
+			disable();
+			return false;
+		} catch (FileSystemException e) {
+			if (isCrossDevice(e)) {
+				disable();
+			} else {
+				logger.log(Level.WARNING, "Could not hardlink " + link + " to " + existing
+						+ ", keeping a separate copy", e);
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * @param e the error of creating a hardlink
+	 * @return whether the error is that the link and the existing file are
+	 * on different file systems
+	 */
+	static boolean isCrossDevice(@NotNull FileSystemException e) {
+		String reason = e.getReason();
+		if (reason == null) return false;
+		reason = reason.toLowerCase(Locale.ROOT);
+		// EXDEV on Linux and macOS, ERROR_NOT_SAME_DEVICE on Windows
+		return reason.contains("cross-device") || reason.contains("different disk drive");
+	}
+	
+	private static int getLinkCount(@NotNull Path file) throws IOException {
+		return (int) Files.getAttribute(file, "unix:nlink");
+	}
+	
+	private void disable() {
+		if (!enabled) return;
+		enabled = false;
+		logger.log(Level.WARNING, "The file system does not support hardlinks between the tile store "
+				+ "and the exports, disabling tile deduplication");
+	}
+	
+	private static @NotNull String hash(@NotNull File file) throws IOException {
+		return com.google.common.io.Files.asByteSource(file).hash(Hashing.sha256()).toString();
+	}
+	
+}
@@ -0,0 +1,155 @@
+package nl.dantevg.dynmapexport;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.Rectangle;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Creates an animated PNG from the history of combined images of a map, with
+ * one frame per combined image. Only the first frame contains the whole
+ * image. Every next frame contains only the area that changed since the
+ * previous export, which is recorded in the {@link ExportManifest} from the
+ * tiles that changed.
+ * <p>
+ * The combined images are read and the frames are written one row at a time,
+ * so the memory needed does not depend on the number of frames nor on the size
+ * of the images.
+ */
+public class TimeLapse {
+	static final int DEFAULT_FRAME_DELAY_MILLIS = 100;
+	
+	private final DynmapExport plugin;
+	
+	public TimeLapse(@NotNull DynmapExport plugin) {
+		this.plugin = plugin;
+	}
+	
+	/**
+	 * Create a time-lapse of all combined images of a map.
+	 *
+	 * @param config           the export configuration
+	 * @param frameDelayMillis how long to show every frame, in milliseconds
+	 * @return the time-lapse file, or null if it could not be created
+	 */
+	public @Nullable File create(@NotNull ExportConfig config, int frameDelayMillis) {
+		List<Frame> frames = getFrames(config);
+		if (frames.isEmpty()) {
+			plugin.logger.log(Level.WARNING, String.format("Map %s:%s has no combined images for a time-lapse",
+					config.world.name, config.map.name));
+			return null;
+		}
+		Rectangle bounds = frames.get(0).area;
+		
+		File file = Paths.getLocalTimeLapseFile(plugin, config);
+		File tempFile = new File(file.getPath() + ".tmp");
+		boolean saved = false;
+		int[] row = new int[bounds.width];
+		try (ApngWriter writer = new ApngWriter(new BufferedOutputStream(new FileOutputStream(tempFile)),
+				bounds.width, bounds.height, frames.size(), plugin.tileCombiner.getCompressionLevel(),
+				plugin.tileCombiner.getEncodeExecutor())) {
+			for (Frame frame : frames) writeFrame(writer, frame, row, frameDelayMillis);
+			writer.finish();
+			saved = true;
+		} catch (IOException e) {
+			plugin.logger.log(Level.SEVERE, "Cannot save time-lapse to " + file, e);
+		} finally {
+			if (!saved) tempFile.delete();
+		}
+		if (!saved) return null;
+		
+		try {
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			plugin.logger.log(Level.SEVERE, "Cannot save time-lapse to " + file, e);
+			tempFile.delete();
+			return null;
+		}
+		long nDeltaFrames = frames.stream().filter(frame -> !frame.area.equals(bounds)).count();
+		plugin.logger.log(Level.INFO, String.format("Created time-lapse of map %s:%s with %d frames (%d partial)",
+				config.world.name, config.map.name, frames.size(), nDeltaFrames));
+		return file;
+	}
+	
+	/**
+	 * Find the combined images of a map, and the area of each image that is
+	 * needed on top of the previous frame. A frame can only be partial when
+	 * the previous frame is the export right before it, because the changed
+	 * area in the manifest is relative to that export.
+	 */
+	private @NotNull List<Frame> getFrames(@NotNull ExportConfig config) {
+		List<ExportManifest.Entry> entries = plugin.getManifest(config).getEntries();
+		List<Frame> frames = new ArrayList<>();
+		Rectangle bounds = null;
+		int previousIndex = -1;
+		for (int i = 0; i < entries.size(); i++) {
+			ExportManifest.Entry entry = entries.get(i);
+			File file = Paths.getLocalCombinedFile(plugin, config, entry.instant);
+			if (!entry.combined || !file.isFile()) continue;
+			
+			// Only the header is read here
+			Rectangle size;
+			try (PngReader reader = new PngReader(new BufferedInputStream(new FileInputStream(file)))) {
+				size = new Rectangle(reader.getWidth(), reader.getHeight());
+			} catch (IOException e) {
+				plugin.logger.log(Level.WARNING, "Skipping unreadable combined image " + file
+						+ " in time-lapse: " + e.getMessage());
+				continue;
+			}
+			if (bounds == null) {
+				bounds = size;
+			} else if (!bounds.equals(size)) {
+				plugin.logger.log(Level.WARNING, String.format("Skipping combined image %s in time-lapse, "
+						+ "its size %dx%d differs from %dx%d", file, size.width, size.height, bounds.width, bounds.height));
+				continue;
+			}
+			
+			Rectangle area = bounds;
+			if (previousIndex == i - 1 && entry.changedArea != null) {
+				area = entry.changedArea.intersection(bounds);
+				// A frame cannot be empty
+				if (area.isEmpty()) area = new Rectangle(1, 1);
+			}
+			frames.add(new Frame(file, area));
+			previousIndex = i;
+		}
+		return frames;
+	}
+	
+	/**
+	 * Copy the area of a frame from its combined image into the animation,
+	 * one row at a time.
+	 */
+	private static void writeFrame(@NotNull ApngWriter writer, @NotNull Frame frame, int @NotNull [] row,
+	                               int frameDelayMillis) throws IOException {
+		Rectangle area = frame.area;
+		try (PngReader reader = new PngReader(new BufferedInputStream(new FileInputStream(frame.file)));
+		     PngWriter frameWriter = writer.writeFrame(area.x, area.y, area.width, area.height, frameDelayMillis)) {
+			for (int y = 0; y < area.y + area.height; y++) {
+				reader.readRow(row, 0);
+				if (y >= area.y) frameWriter.writeRow(row, area.x);
+			}
+			frameWriter.finish();
+		}
+	}
+	
+	private static class Frame {
+		final @NotNull File file;
+		/**
+		 * The area of the combined image to draw over the previous frame
+		 */
+		final @NotNull Rectangle area;
+		
+		Frame(@NotNull File file, @NotNull Rectangle area) {
+			this.file = file;
+			this.area = area;
+		}
+	}
+	
+}
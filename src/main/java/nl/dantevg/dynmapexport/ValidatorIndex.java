@@ -0,0 +1,114 @@
+package nl.dantevg.dynmapexport;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * The HTTP validators (<code>Last-Modified</code> and <code>ETag</code>) of
+ * every tile in an export, stored next to the exports of a map. Used to only
+ * download tiles that Dynmap has re-rendered since that export.
+ */
+public class ValidatorIndex {
+	private static final String FILENAME = "validators.json";
+	
+	private final @Nullable Instant instant;
+	private final Map<String, DynmapHttpClient.Validators> tiles = new ConcurrentHashMap<>();
+	
+	public ValidatorIndex(@Nullable Instant instant) {
+		this.instant = instant;
+	}
+	
+	/**
+	 * Get the validators of the tile stored in <code>file</code>.
+	 *
+	 * @param file the local tile file
+	 * @return the validators, or null if there are none for this tile
+	 */
+	public @Nullable DynmapHttpClient.Validators get(@NotNull File file) {
+		return tiles.get(file.getName());
+	}
+	
+	public void put(@NotNull File file, @Nullable DynmapHttpClient.Validators validators) {
+		if (validators != null && !validators.isEmpty()) tiles.put(file.getName(), validators);
+	}
+	
+	/**
+	 * Load the validator index of a map.
+	 *
+	 * @param plugin  the DynmapExport plugin
+	 * @param config  the export configuration
+	 * @param instant the export that the validators need to belong to
+	 * @return the stored validators, or an empty index if there are none for
+	 * the export at <code>instant</code>
+	 */
+	public static @NotNull ValidatorIndex load(@NotNull DynmapExport plugin,
+	                                           @NotNull ExportConfig config,
+	                                           @Nullable Instant instant) {
+		ValidatorIndex index = new ValidatorIndex(instant);
+		if (instant == null) return index;
+		
+		Stored stored = read(plugin, config);
+		if (stored != null && stored.tiles != null && instant.toString().equals(stored.instant)) {
+			index.tiles.putAll(stored.tiles);
+		}
+		return index;
+	}
+	
+	/**
+	 * Save this index for the map, replacing the index of any earlier export.
+	 * The validators of other export configurations of the same map and export
+	 * are kept.
+	 *
+	 * @param plugin the DynmapExport plugin
+	 * @param config the export configuration
+	 */
+	public void save(@NotNull DynmapExport plugin, @NotNull ExportConfig config) {
+		if (instant == null) return;
+		
+		Stored stored = read(plugin, config);
+		if (stored == null || stored.tiles == null || !instant.toString().equals(stored.instant)) {
+			stored = new Stored();
+			stored.instant = instant.toString();
+			stored.tiles = new HashMap<>();
+		}
+		stored.tiles.putAll(tiles);
+		
+		File file = getFile(plugin, config);
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+			new Gson().toJson(stored, writer);
+		} catch (IOException e) {
+			plugin.logger.log(Level.WARNING, "Could not save tile validators to " + file, e);
+		}
+	}
+	
+	private static @Nullable Stored read(@NotNull DynmapExport plugin, @NotNull ExportConfig config) {
+		File file = getFile(plugin, config);
+		if (!file.isFile()) return null;
+		try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+			return new Gson().fromJson(reader, Stored.class);
+		} catch (IOException | JsonParseException e) {
+			plugin.logger.log(Level.WARNING, "Could not read tile validators from " + file, e);
+			return null;
+		}
+	}
+	
+	private static @NotNull File getFile(@NotNull DynmapExport plugin, @NotNull ExportConfig config) {
+		return new File(Paths.getLocalMapDir(plugin, config), FILENAME);
+	}
+	
+	private static class Stored {
+		String instant;
+		Map<String, DynmapHttpClient.Validators> tiles;
+	}
+	
+}
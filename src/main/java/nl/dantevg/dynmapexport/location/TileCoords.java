@@ -26,6 +26,17 @@ public class TileCoords {
 		return new TileCoords(zoomedCeil(x, zoom), zoomedCeil(y, zoom));
 	}
 	
+	/**
+	 * Get the coordinates of the zoomed-out tile that contains this tile, like
+	 * Dynmap names them: x is rounded down and y is rounded up.
+	 *
+	 * @param zoom the zoom-out level
+	 * @return the coordinates of the tile at zoom level <code>zoom</code>
+	 */
+	public @NotNull TileCoords toZoom(int zoom) {
+		return new TileCoords(zoomedFloor(x, zoom), zoomedCeil(y, zoom));
+	}
+	
 	@Override
 	public @NotNull String toString() {
 		return x + SEPARATOR + y;
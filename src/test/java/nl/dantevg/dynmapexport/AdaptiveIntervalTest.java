@@ -0,0 +1,78 @@
+package nl.dantevg.dynmapexport;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptiveIntervalTest {
+	static final Duration MIN = Duration.ofMinutes(1);
+	static final Duration MAX = Duration.ofHours(1);
+	static final double TARGET = 0.05;
+	
+	@Test
+	@DisplayName("Quiet maps back off until the maximum interval")
+	void backsOffWhenQuiet() {
+		AdaptiveInterval interval = new AdaptiveInterval(MIN, MAX, TARGET, Duration.ofMinutes(5));
+		Duration previous = interval.getInterval();
+		for (int i = 0; i < 4; i++) {
+			Duration next = interval.update(0);
+			assertTrue(next.compareTo(previous) > 0, "interval grows: " + next);
+			assertTrue(next.compareTo(previous.multipliedBy(2)) <= 0, "at most doubles: " + next);
+			previous = next;
+		}
+		for (int i = 0; i < 10; i++) interval.update(0);
+		assertEquals(MAX, interval.getInterval());
+	}
+	
+	@Test
+	@DisplayName("A single quiet export does not double the interval")
+	void backsOffGradually() {
+		AdaptiveInterval interval = new AdaptiveInterval(MIN, MAX, TARGET, Duration.ofMinutes(6));
+		assertEquals(Duration.ofMinutes(8), interval.update(0));
+		assertTrue(interval.update(0).compareTo(Duration.ofMinutes(16)) < 0);
+	}
+	
+	@Test
+	@DisplayName("A restored interval continues where it left off")
+	void restore() {
+		AdaptiveInterval interval = new AdaptiveInterval(MIN, MAX, TARGET, Duration.ofMinutes(5));
+		for (int i = 0; i < 3; i++) interval.update(0);
+		AdaptiveInterval restored = new AdaptiveInterval(MIN, MAX, TARGET, Duration.ofMinutes(5));
+		restored.restore(interval.getInterval(), interval.getAverageChangeFraction());
+		assertEquals(interval.getInterval(), restored.getInterval());
+		assertEquals(interval.update(0), restored.update(0));
+		
+		restored.restore(Duration.ofDays(1), TARGET);
+		assertEquals(MAX, restored.getInterval());
+	}
+	
+	@Test
+	@DisplayName("A spike in changes tightens the interval right away")
+	void tightensOnSpike() {
+		AdaptiveInterval interval = new AdaptiveInterval(MIN, MAX, TARGET, MAX);
+		for (int i = 0; i < 10; i++) interval.update(0);
+		assertEquals(Duration.ofMinutes(30), interval.update(0.5));
+		for (int i = 0; i < 10; i++) interval.update(0.5);
+		assertEquals(MIN, interval.getInterval());
+	}
+	
+	@Test
+	@DisplayName("Changes at the target keep the interval")
+	void steadyAtTarget() {
+		AdaptiveInterval interval = new AdaptiveInterval(MIN, MAX, TARGET, Duration.ofMinutes(10));
+		for (int i = 0; i < 10; i++) {
+			assertEquals(Duration.ofMinutes(10), interval.update(TARGET));
+		}
+	}
+	
+	@Test
+	@DisplayName("The initial interval is clamped between minimum and maximum")
+	void clampsInitial() {
+		assertEquals(MIN, new AdaptiveInterval(MIN, MAX, TARGET, Duration.ofSeconds(1)).getInterval());
+		assertEquals(MAX, new AdaptiveInterval(MIN, MAX, TARGET, Duration.ofDays(1)).getInterval());
+	}
+	
+}
@@ -0,0 +1,154 @@
+package nl.dantevg.dynmapexport;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.imageio.ImageIO;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ApngWriterTest {
+	static final int WIDTH = 300;
+	static final int HEIGHT = 200;
+	static final List<Rectangle> AREAS = Arrays.asList(
+			new Rectangle(WIDTH, HEIGHT),
+			new Rectangle(20, 30, 128, 128),
+			new Rectangle(WIDTH - 1, HEIGHT - 1, 1, 1));
+	
+	@DisplayName("Every frame decodes to the pixels of its area")
+	@ParameterizedTest(name = "{0} threads")
+	@ValueSource(ints = {0, 2})
+	void frames(int nThreads) throws IOException {
+		List<int[]> images = new ArrayList<>();
+		for (int i = 0; i < AREAS.size(); i++) images.add(PngWriterTest.createPixels(WIDTH, HEIGHT + i));
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ExecutorService executor = (nThreads > 0) ? Executors.newFixedThreadPool(nThreads) : null;
+		try (ApngWriter writer = new ApngWriter(out, WIDTH, HEIGHT, AREAS.size(), 6, executor)) {
+			for (int i = 0; i < AREAS.size(); i++) {
+				Rectangle area = AREAS.get(i);
+				try (PngWriter frameWriter = writer.writeFrame(area.x, area.y, area.width, area.height, 100)) {
+					for (int y = area.y; y < area.y + area.height; y++) {
+						frameWriter.writeRow(images.get(i), y * WIDTH + area.x);
+					}
+					frameWriter.finish();
+				}
+			}
+			writer.finish();
+		} finally {
+			if (executor != null) executor.shutdown();
+		}
+		
+		List<Chunk> chunks = readChunks(out.toByteArray());
+		assertEquals("IHDR", chunks.get(0).type);
+		assertEquals("acTL", chunks.get(1).type);
+		assertEquals(AREAS.size(), new DataInputStream(new ByteArrayInputStream(chunks.get(1).data)).readInt());
+		assertEquals("IEND", chunks.get(chunks.size() - 1).type);
+		
+		// Split the chunks into frames, checking the sequence numbers
+		List<ByteArrayOutputStream> frameData = new ArrayList<>();
+		int sequence = 0;
+		for (Chunk chunk : chunks) {
+			DataInputStream data = new DataInputStream(new ByteArrayInputStream(chunk.data));
+			switch (chunk.type) {
+				case "fcTL":
+					assertEquals(sequence++, data.readInt());
+					int width = data.readInt();
+					int height = data.readInt();
+					assertEquals(AREAS.get(frameData.size()), new Rectangle(data.readInt(), data.readInt(), width, height));
+					frameData.add(new ByteArrayOutputStream());
+					break;
+				case "IDAT":
+					assertEquals(1, frameData.size(), "IDAT belongs to the first frame");
+					frameData.get(0).write(chunk.data);
+					break;
+				case "fdAT":
+					assertEquals(sequence++, data.readInt());
+					frameData.get(frameData.size() - 1).write(chunk.data, 4, chunk.data.length - 4);
+					break;
+			}
+		}
+		assertEquals(AREAS.size(), frameData.size());
+		
+		for (int i = 0; i < AREAS.size(); i++) {
+			Rectangle area = AREAS.get(i);
+			BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+					toPng(area.width, area.height, frameData.get(i).toByteArray())));
+			assertNotNull(image);
+			for (int y = 0; y < area.height; y++) {
+				for (int x = 0; x < area.width; x++) {
+					assertEquals(images.get(i)[(area.y + y) * WIDTH + area.x + x] & 0xFFFFFF,
+							image.getRGB(x, y) & 0xFFFFFF, "frame " + i + " pixel " + x + "," + y);
+				}
+			}
+		}
+	}
+	
+	@Test
+	@DisplayName("The first frame covers the whole image")
+	void partialFirstFrame() throws IOException {
+		try (ApngWriter writer = new ApngWriter(new ByteArrayOutputStream(), 10, 10, 2, 6, null)) {
+			assertThrows(IllegalArgumentException.class, () -> writer.writeFrame(0, 0, 5, 5, 100));
+			writer.writeFrame(0, 0, 10, 10, 100);
+			assertThrows(IllegalArgumentException.class, () -> writer.writeFrame(8, 8, 5, 5, 100));
+			assertThrows(IllegalStateException.class, writer::finish);
+		}
+	}
+	
+	/**
+	 * Read all chunks of a PNG, checking their CRC.
+	 */
+	static List<Chunk> readChunks(byte[] png) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(png));
+		in.skipBytes(8); // signature
+		List<Chunk> chunks = new ArrayList<>();
+		while (in.available() > 0) {
+			byte[] data = new byte[in.readInt()];
+			byte[] type = new byte[4];
+			in.readFully(type);
+			in.readFully(data);
+			CRC32 crc = new CRC32();
+			crc.update(type);
+			crc.update(data);
+			String typeStr = new String(type, StandardCharsets.US_ASCII);
+			assertEquals((int) crc.getValue(), in.readInt(), "CRC of " + typeStr);
+			chunks.add(new Chunk(typeStr, data));
+		}
+		return chunks;
+	}
+	
+	/**
+	 * Wrap the image data of a single frame in a standalone PNG.
+	 */
+	static byte[] toPng(int width, int height, byte[] imageData) throws IOException {
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(png);
+		PngWriter.writeHeader(out, width, height);
+		PngWriter.writeChunk(out, "IDAT", imageData, imageData.length);
+		PngWriter.writeChunk(out, "IEND", new byte[0], 0);
+		return png.toByteArray();
+	}
+	
+	static class Chunk {
+		final String type;
+		final byte[] data;
+		
+		Chunk(String type, byte[] data) {
+			this.type = type;
+			this.data = data;
+		}
+	}
+	
+}
@@ -0,0 +1,77 @@
+package nl.dantevg.dynmapexport;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BaselineCacheTest {
+	@TempDir
+	File dir;
+	
+	static BufferedImage createImage() {
+		return new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB);
+	}
+	
+	@Test
+	@DisplayName("Tiles of a new baseline stay cached, tiles of older baselines are dropped")
+	void invalidate() throws IOException {
+		File mapDir = new File(dir, "exports/world/flat");
+		File previous = new File(mapDir, "previous/0_0.png");
+		File next = new File(mapDir, "next/0_0.png");
+		previous.getParentFile().mkdirs();
+		ImageIO.write(createImage(), "png", previous);
+		
+		BaselineCache cache = new BaselineCache(1024 * 1024);
+		BufferedImage previousImage = cache.get(previous);
+		assertSame(previousImage, cache.get(previous), "cached after reading");
+		BufferedImage nextImage = createImage();
+		cache.put(next, nextImage);
+		
+		cache.invalidate(mapDir, next.getParentFile());
+		// The file of the new baseline does not exist, so it must come from the cache
+		assertSame(nextImage, cache.get(next));
+		assertNotSame(previousImage, cache.get(previous));
+	}
+	
+	@Test
+	@DisplayName("Tiles of discarded exports are dropped")
+	void remove() throws IOException {
+		File tile = new File(dir, "exports/world/flat/discarded/0_0.png");
+		tile.getParentFile().mkdirs();
+		ImageIO.write(createImage(), "png", tile);
+		BaselineCache cache = new BaselineCache(1024 * 1024);
+		BufferedImage image = createImage();
+		cache.put(tile, image);
+		assertSame(image, cache.get(tile));
+		
+		cache.remove(tile.getParentFile());
+		assertNotSame(image, cache.get(tile));
+	}
+	
+	@Test
+	@DisplayName("The least recently used tiles are evicted")
+	void evict() throws IOException {
+		// Every image takes 64 bytes
+		BaselineCache cache = new BaselineCache(128);
+		File[] files = new File[3];
+		BufferedImage[] images = new BufferedImage[3];
+		for (int i = 0; i < 3; i++) {
+			files[i] = new File(dir, i + ".png");
+			ImageIO.write(createImage(), "png", files[i]);
+			images[i] = createImage();
+			cache.put(files[i], images[i]);
+			if (i == 1) cache.get(files[0]);
+		}
+		assertSame(images[0], cache.get(files[0]));
+		assertSame(images[2], cache.get(files[2]));
+		assertNotSame(images[1], cache.get(files[1]));
+	}
+	
+}
@@ -0,0 +1,139 @@
+package nl.dantevg.dynmapexport;
+
+import com.sun.net.httpserver.HttpServer;
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirtyTileTrackerTest {
+	static final ExportConfig config = TestConfigs.flat(0, new TileCoords(0, 0), new TileCoords(3, 3));
+	static final ExportConfig zoomedConfig = TestConfigs.flat(1, new TileCoords(0, 0), new TileCoords(3, 3));
+	
+	HttpServer server;
+	/**
+	 * The tile updates of the next poll, or null to respond with an error
+	 */
+	List<String> nextUpdates = new ArrayList<>();
+	long timestamp = 1000;
+	DirtyTileTracker tracker;
+	
+	@BeforeEach
+	void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/up/world/world/", exchange -> {
+			byte[] body;
+			if (nextUpdates == null) {
+				body = "error".getBytes(StandardCharsets.UTF_8);
+				exchange.sendResponseHeaders(500, body.length);
+			} else {
+				StringBuilder json = new StringBuilder("{\"timestamp\":" + (timestamp += 1000) + ",\"updates\":[");
+				json.append("{\"type\":\"chat\",\"timestamp\":0}");
+				for (String name : nextUpdates) {
+					json.append(",{\"type\":\"tile\",\"name\":\"").append(name).append("\",\"timestamp\":0}");
+				}
+				body = json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+				exchange.sendResponseHeaders(200, body.length);
+			}
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+		
+		DynmapHttpClient httpClient = new DynmapHttpClient("localhost:" + server.getAddress().getPort(),
+				Logger.getLogger("DirtyTileTrackerTest"), Duration.ofSeconds(1), Duration.ofSeconds(1),
+				0, Duration.ZERO, Duration.ZERO);
+		tracker = new DirtyTileTracker(httpClient, Logger.getLogger("DirtyTileTrackerTest"), Duration.ofMinutes(1));
+		tracker.track(Arrays.asList(config, zoomedConfig));
+	}
+	
+	@AfterEach
+	void stopServer() {
+		server.stop(0);
+	}
+	
+	@Test
+	@DisplayName("Dirty tiles are unknown until the first export")
+	void unknownBeforeExport() {
+		nextUpdates = Collections.singletonList("flat/0_0/1_2.png");
+		tracker.poll();
+		assertNull(tracker.take(config).tiles);
+		assertNull(tracker.take(TestConfigs.flat(2, new TileCoords(0, 0))));
+	}
+	
+	@Test
+	@DisplayName("Updated tiles in the export rectangle become dirty")
+	void markDirty() {
+		tracker.poll();
+		tracker.commit(tracker.take(config));
+		tracker.commit(tracker.take(zoomedConfig));
+		
+		nextUpdates = Arrays.asList(
+				"flat/0_0/1_2.png",
+				"flat/0_0/9_9.png", // outside the rectangle
+				"cave/0_0/1_1.png", // other map
+				"flat/0_0/zz_0_4.png", // coarser than both configurations
+				"flat/0_0/z_2_2.png");
+		tracker.poll();
+		assertEquals(new HashSet<>(Arrays.asList(new TileCoords(1, 2))), tracker.take(config).tiles);
+		assertEquals(new HashSet<>(Arrays.asList(new TileCoords(0, 2), new TileCoords(2, 2))),
+				tracker.take(zoomedConfig).tiles);
+	}
+	
+	@Test
+	@DisplayName("Tiles updated after the start of an export stay dirty")
+	void commitSnapshot() {
+		tracker.poll();
+		tracker.commit(tracker.take(config));
+		
+		nextUpdates = Collections.singletonList("flat/0_0/1_2.png");
+		tracker.poll();
+		DirtyTileTracker.Snapshot snapshot = tracker.take(config);
+		nextUpdates = Collections.singletonList("flat/0_0/3_3.png");
+		tracker.poll();
+		tracker.commit(snapshot);
+		assertEquals(Collections.singleton(new TileCoords(3, 3)), tracker.take(config).tiles);
+	}
+	
+	@Test
+	@DisplayName("A failed poll makes the dirty tiles unknown until the next export")
+	void failedPoll() {
+		tracker.poll();
+		tracker.commit(tracker.take(config));
+		assertEquals(Collections.emptySet(), tracker.take(config).tiles);
+		
+		nextUpdates = null;
+		tracker.poll();
+		DirtyTileTracker.Snapshot snapshot = tracker.take(config);
+		assertNull(snapshot.tiles);
+		
+		nextUpdates = Collections.emptyList();
+		tracker.poll();
+		tracker.commit(snapshot);
+		assertEquals(Collections.emptySet(), tracker.take(config).tiles);
+	}
+	
+	@Test
+	@DisplayName("Parses Dynmap tile paths")
+	void parseTile() {
+		DirtyTileTracker.UpdatedTile tile = DirtyTileTracker.parseTile("flat/-1_0/zzz_-40_8.png");
+		assertNotNull(tile);
+		assertEquals("flat", tile.prefix);
+		assertEquals(3, tile.zoom);
+		assertEquals(new TileCoords(-40, 8), tile.tile);
+		assertEquals(new TileCoords(5, -7), DirtyTileTracker.parseTile("t/0_-1/5_-7.jpg").tile);
+		assertNull(DirtyTileTracker.parseTile("flat/0_0/z5_7.png"));
+		assertNull(DirtyTileTracker.parseTile("flat/0_0/marker.png"));
+		assertNull(DirtyTileTracker.parseTile("1_2.png"));
+	}
+	
+}
@@ -0,0 +1,134 @@
+package nl.dantevg.dynmapexport;
+
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExportArchiveTest {
+	@TempDir
+	File dir;
+	
+	@Test
+	@DisplayName("Reads back every tile that was written")
+	void roundTrip() throws IOException {
+		File file = new File(dir, "export.tiles");
+		File tileFile = new File(dir, "z_2_-4.png");
+		Files.write(tileFile.toPath(), tile(7, 300));
+		try (ExportArchive.Writer writer = new ExportArchive.Writer(file)) {
+			for (int x = -2; x <= 2; x++) {
+				assertTrue(writer.add(new TileCoords(x, 5), 0, ByteBuffer.wrap(tile(x, 100 + x * 10))));
+			}
+			assertTrue(writer.add(new TileCoords(2, -4), 1, tileFile));
+			assertFalse(writer.add(new TileCoords(0, 5), 0, ByteBuffer.wrap(tile(99, 10))), "duplicate tile");
+			writer.finish();
+		}
+		
+		try (ExportArchive archive = ExportArchive.open(file)) {
+			assertEquals(6, archive.getTiles().size());
+			for (int x = -2; x <= 2; x++) {
+				assertEquals(ByteBuffer.wrap(tile(x, 100 + x * 10)), archive.getTile(new TileCoords(x, 5), 0),
+						"tile " + x);
+			}
+			assertEquals(ByteBuffer.wrap(tile(7, 300)), archive.getTile(new TileCoords(2, -4), 1));
+			assertTrue(archive.contains(new TileCoords(2, -4), 1));
+			assertNull(archive.getTile(new TileCoords(2, -4), 0));
+			assertNull(archive.getTile(new TileCoords(3, 5), 0));
+		}
+	}
+	
+	@Test
+	@DisplayName("Closed archives can be replaced and are not read anymore")
+	void replace() throws IOException {
+		File file = new File(dir, "export.tiles");
+		File tempFile = new File(dir, "export.tiles.tmp");
+		TileCoords tile = new TileCoords(0, 0);
+		for (File out : new File[] {file, tempFile}) {
+			try (ExportArchive.Writer writer = new ExportArchive.Writer(out)) {
+				writer.add(tile, 0, ByteBuffer.wrap(tile(out == file ? 1 : 2, 100)));
+				writer.finish();
+			}
+		}
+		
+		ExportArchive archive = ExportArchive.open(file);
+		ByteBuffer read = archive.getTile(tile, 0);
+		archive.close();
+		assertThrows(ClosedChannelException.class, () -> archive.getTile(tile, 0));
+		assertEquals(ByteBuffer.wrap(tile(1, 100)), read, "tiles stay valid after closing");
+		
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		try (ExportArchive replaced = ExportArchive.open(file)) {
+			assertEquals(ByteBuffer.wrap(tile(2, 100)), replaced.getTile(tile, 0));
+		}
+		Files.delete(file.toPath());
+	}
+	
+	@Test
+	@DisplayName("Reads tiles as a stream")
+	void inputStream() throws IOException {
+		byte[] data = tile(3, 1000);
+		try (InputStream in = ExportArchive.asInputStream(ByteBuffer.wrap(data))) {
+			byte[] read = new byte[data.length];
+			assertEquals(1, in.read(read, 0, 1));
+			assertEquals(data.length - 1, in.read(read, 1, data.length));
+			assertArrayEquals(data, read);
+			assertEquals(-1, in.read());
+		}
+	}
+	
+	@Test
+	@DisplayName("Rejects files that are not archives")
+	void invalidFile() throws IOException {
+		File empty = new File(dir, "empty.tiles");
+		Files.write(empty.toPath(), new byte[0]);
+		assertThrows(IOException.class, () -> ExportArchive.open(empty));
+		
+		File file = new File(dir, "truncated.tiles");
+		try (ExportArchive.Writer writer = new ExportArchive.Writer(file)) {
+			writer.add(new TileCoords(0, 0), 0, ByteBuffer.wrap(tile(0, 100)));
+			writer.finish();
+		}
+		try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+			truncated.setLength(truncated.length() - 1);
+		}
+		assertThrows(IOException.class, () -> ExportArchive.open(file));
+	}
+	
+	@Test
+	@DisplayName("Parses local tile file names")
+	void parseTileName() {
+		ExportArchive.Key key = ExportArchive.parseTileName("zz_-8_16.png");
+		assertNotNull(key);
+		assertEquals(new TileCoords(-8, 16), key.tile);
+		assertEquals(2, key.zoom);
+		assertEquals(new ExportArchive.Key(new TileCoords(3, 4), 0), ExportArchive.parseTileName("3_4.png"));
+		assertNull(ExportArchive.parseTileName("fingerprints.dat"));
+		assertNull(ExportArchive.parseTileName("z3_4.png"));
+		assertNull(ExportArchive.parseTileName("3_4_5.png"));
+		
+		Set<ExportArchive.Key> keys = new HashSet<>();
+		keys.add(new ExportArchive.Key(new TileCoords(1, 1), 0));
+		assertFalse(keys.contains(new ExportArchive.Key(new TileCoords(1, 1), 1)));
+	}
+	
+	static byte[] tile(int seed, int length) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+	
+}
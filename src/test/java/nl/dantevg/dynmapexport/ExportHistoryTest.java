@@ -0,0 +1,168 @@
+package nl.dantevg.dynmapexport;
+
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.*;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExportHistoryTest {
+	static final Logger logger = Logger.getLogger("ExportHistoryTest");
+	static final ExportConfig config = TestConfigs.flat(0, new TileCoords(0, 0), new TileCoords(1, 1));
+	static final List<TileCoords> tiles = Downloader.configToTileLocations(config);
+	
+	@TempDir
+	File dir;
+	
+	ExportManifest manifest;
+	ExportHistory history;
+	/**
+	 * The contents of every tile of every export, to compare read tiles to
+	 */
+	final Map<Instant, Map<TileCoords, byte[]>> exports = new TreeMap<>();
+	
+	void createHistory(int keyframeInterval, boolean packExports) {
+		manifest = ExportManifest.load(logger, dir, config);
+		history = new ExportHistory(logger, dir, c -> manifest, new ExportMetrics(logger, null),
+				new TileStore(logger, dir, false), ExportHistory.HistoryMode.DELTA, keyframeInterval, packExports);
+	}
+	
+	/**
+	 * Save an export in which one tile changed since the previous export, and
+	 * compact and pack the history like an export does.
+	 */
+	Instant export(int n) throws IOException {
+		Instant instant = Instant.ofEpochSecond(n * 3600L);
+		Map<TileCoords, byte[]> contents = new HashMap<>();
+		for (int i = 0; i < tiles.size(); i++) {
+			// Tile i changes in exports i, i + 4, i + 8, ...
+			int version = (n - i + tiles.size()) / tiles.size();
+			contents.put(tiles.get(i), ("tile " + i + " version " + version).getBytes(StandardCharsets.UTF_8));
+		}
+		for (Map.Entry<TileCoords, byte[]> entry : contents.entrySet()) {
+			File file = Paths.getLocalTileFile(dir, config, instant, entry.getKey(), config.zoom);
+			file.getParentFile().mkdirs();
+			Files.write(file.toPath(), entry.getValue());
+		}
+		exports.put(instant, contents);
+		manifest.addExport(instant, contents.size(), 0.25, null);
+		history.compact(config);
+		history.pack(config);
+		return instant;
+	}
+	
+	void assertTilesReadable() throws IOException {
+		for (Map.Entry<Instant, Map<TileCoords, byte[]>> export : exports.entrySet()) {
+			for (Map.Entry<TileCoords, byte[]> tile : export.getValue().entrySet()) {
+				ByteBuffer data = history.readTile(config, export.getKey(), tile.getKey(), config.zoom);
+				assertNotNull(data, "export " + export.getKey() + " has tile " + tile.getKey());
+				assertEquals(ByteBuffer.wrap(tile.getValue()), data,
+						"tile " + tile.getKey() + " of export " + export.getKey());
+			}
+		}
+	}
+	
+	void remove(Instant instant) throws IOException {
+		assertTrue(history.prepareRemoval(config, instant));
+		manifest.setDeleted(instant);
+		File exportDir = Paths.getLocalExportDir(dir, config, instant);
+		File[] files = exportDir.listFiles();
+		for (File file : (files != null) ? files : new File[0]) Files.delete(file.toPath());
+		Files.deleteIfExists(exportDir.toPath());
+		Files.deleteIfExists(Paths.getLocalArchiveFile(dir, config, instant).toPath());
+		exports.remove(instant);
+	}
+	
+	List<Boolean> getDeltaFlags() {
+		List<Boolean> flags = new ArrayList<>();
+		for (ExportManifest.Entry entry : manifest.getEntries()) {
+			if (entry.hasTiles) flags.add(entry.delta);
+		}
+		return flags;
+	}
+	
+	@Test
+	@DisplayName("Tiles of delta exports read the same as the saved tiles")
+	void roundTrip() throws IOException {
+		createHistory(24, false);
+		Instant first = export(0);
+		for (int n = 1; n < 6; n++) {
+			export(n);
+			assertTilesReadable();
+		}
+		
+		// All exports except the first and the latest only keep the changed tile
+		for (Instant instant : exports.keySet()) {
+			File[] files = Paths.getLocalExportDir(dir, config, instant).listFiles();
+			int nFiles = (files != null) ? files.length : 0;
+			boolean complete = instant.equals(first) || instant.equals(((TreeMap<Instant, ?>) exports).lastKey());
+			assertEquals(complete ? tiles.size() : 1, nFiles, "tile files of export " + instant);
+		}
+	}
+	
+	@Test
+	@DisplayName("Tiles of packed delta exports read the same as the saved tiles")
+	void roundTripPacked() throws IOException {
+		createHistory(3, true);
+		for (int n = 0; n < 6; n++) export(n);
+		assertTilesReadable();
+		for (Instant instant : exports.keySet()) {
+			boolean latest = instant.equals(((TreeMap<Instant, ?>) exports).lastKey());
+			assertEquals(!latest, Paths.getLocalArchiveFile(dir, config, instant).isFile());
+			assertEquals(latest, Paths.getLocalExportDir(dir, config, instant).isDirectory());
+		}
+	}
+	
+	@Test
+	@DisplayName("Every keyframe-interval-th export is a keyframe")
+	void keyframeInterval() throws IOException {
+		createHistory(3, false);
+		List<Instant> instants = new ArrayList<>();
+		for (int n = 0; n < 8; n++) instants.add(export(n));
+		
+		assertEquals(Arrays.asList(false, true, true, false, true, true, false, false), getDeltaFlags());
+		assertEquals(Arrays.asList(instants.get(5), instants.get(4), instants.get(3)),
+				manifest.getDeltaChain(instants.get(5)));
+		assertEquals(Collections.singletonList(instants.get(3)), manifest.getDeltaChain(instants.get(3)));
+		assertEquals(Collections.singletonList(instants.get(7)), manifest.getDeltaChain(instants.get(7)));
+		assertTilesReadable();
+	}
+	
+	@Test
+	@DisplayName("Removing a keyframe makes the next export a keyframe")
+	void removeKeyframe() throws IOException {
+		createHistory(3, false);
+		List<Instant> instants = new ArrayList<>();
+		for (int n = 0; n < 5; n++) instants.add(export(n));
+		assertEquals(Arrays.asList(false, true, true, false, false), getDeltaFlags());
+		
+		remove(instants.get(0));
+		assertEquals(Arrays.asList(false, true, false, false), getDeltaFlags());
+		assertEquals(Arrays.asList(instants.get(2), instants.get(1)), manifest.getDeltaChain(instants.get(2)));
+		assertTilesReadable();
+	}
+	
+	@Test
+	@DisplayName("Removing a delta export keeps the next delta export readable")
+	void removeDelta() throws IOException {
+		createHistory(3, true);
+		List<Instant> instants = new ArrayList<>();
+		for (int n = 0; n < 5; n++) instants.add(export(n));
+		
+		remove(instants.get(1));
+		assertEquals(Arrays.asList(false, true, false, false), getDeltaFlags());
+		assertEquals(Arrays.asList(instants.get(2), instants.get(0)), manifest.getDeltaChain(instants.get(2)));
+		assertTilesReadable();
+	}
+	
+}
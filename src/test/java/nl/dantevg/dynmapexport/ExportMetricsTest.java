@@ -0,0 +1,126 @@
+package nl.dantevg.dynmapexport;
+
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExportMetricsTest {
+	static final ExportConfig config = TestConfigs.flat(0, new TileCoords(0, 0), new TileCoords(3, 3));
+	static final String LABELS = "export=\"world/flat/0/0,0/3,3\",world=\"world\",map=\"flat\"";
+	
+	@TempDir
+	File dir;
+	
+	/**
+	 * Measure an export of 16 tiles, 10 of which are fetched in 1 to 10 ms.
+	 */
+	static void measureExport(ExportMetrics metrics) {
+		metrics.start(config);
+		for (int i = 1; i <= 10; i++) {
+			metrics.addFetch(config, i * 1000000L, 100);
+			metrics.addTile(config, Downloader.TileStatus.DOWNLOADED);
+		}
+		for (int i = 0; i < 6; i++) metrics.addTile(config, Downloader.TileStatus.NOT_MODIFIED);
+		metrics.addBytesWritten(config, 5000);
+		metrics.addTime(config, ExportMetrics.Phase.COMBINE, 2000000000L);
+		metrics.finish(config, true);
+	}
+	
+	@Test
+	@DisplayName("Fetch time quantiles use the nearest rank")
+	void fetchQuantiles() {
+		ExportMetrics.Run run = new ExportMetrics.Run(Instant.EPOCH, 0);
+		assertEquals(0, run.getFetchQuantile(0.5));
+		for (int i = 10; i >= 1; i--) run.addFetch(i);
+		run.finish(1, true);
+		assertEquals(5, run.getFetchQuantile(0.5));
+		assertEquals(9, run.getFetchQuantile(0.9));
+		assertEquals(10, run.getFetchQuantile(0.99));
+		assertEquals(10, run.getFetchQuantile(1));
+		assertEquals(1, run.getFetchQuantile(0));
+	}
+	
+	@Test
+	@DisplayName("Exports are summed and the latest export is kept")
+	void prometheus() {
+		ExportMetrics metrics = new ExportMetrics(Logger.getLogger("ExportMetricsTest"), null);
+		measureExport(metrics);
+		measureExport(metrics);
+		metrics.start(config);
+		metrics.finish(config, false);
+		
+		String text = metrics.toPrometheus();
+		assertTrue(text.contains("# TYPE dynmapexport_exports_total counter\n"));
+		assertTrue(text.contains("dynmapexport_exports_total{" + LABELS + ",result=\"exported\"} 2\n"));
+		assertTrue(text.contains("dynmapexport_exports_total{" + LABELS + ",result=\"skipped\"} 1\n"));
+		assertTrue(text.contains("dynmapexport_tiles_total{" + LABELS + ",status=\"downloaded\"} 20\n"));
+		assertTrue(text.contains("dynmapexport_tiles_total{" + LABELS + ",status=\"not_modified\"} 12\n"));
+		assertTrue(text.contains("dynmapexport_downloaded_bytes_total{" + LABELS + "} 2000\n"));
+		assertTrue(text.contains("dynmapexport_written_bytes_total{" + LABELS + "} 12000\n"));
+		assertTrue(text.contains("dynmapexport_phase_seconds_total{" + LABELS + ",phase=\"combine\"} 4.0\n"));
+		assertTrue(text.contains("dynmapexport_tile_fetch_seconds_count{" + LABELS + "} 20\n"));
+		assertTrue(text.contains("dynmapexport_tile_fetch_seconds_sum{" + LABELS + "} 0.11\n"));
+		// The latest export did not fetch anything
+		assertFalse(text.contains("quantile="));
+	}
+	
+	@Test
+	@DisplayName("Measurements outside of an export are ignored")
+	void notRunning() {
+		ExportMetrics metrics = new ExportMetrics(Logger.getLogger("ExportMetricsTest"), null);
+		metrics.addFetch(config, 1000, 100);
+		metrics.finish(config, true);
+		assertTrue(metrics.getSummary(null, null).isEmpty());
+		
+		measureExport(metrics);
+		List<String> summary = metrics.getSummary("world", "flat");
+		assertFalse(summary.isEmpty());
+		assertTrue(summary.stream().anyMatch(line -> line.contains("10 downloaded, 6 not modified, 0 failed")));
+		assertTrue(summary.stream().anyMatch(line -> line.contains("p50 5 ms, p90 9 ms")));
+		assertTrue(metrics.getSummary("world", "cave").isEmpty());
+	}
+	
+	@Test
+	@DisplayName("Metrics are saved after every export and served over HTTP")
+	void saveAndServe() throws IOException {
+		File file = new File(dir, "metrics.prom");
+		ExportMetrics metrics = new ExportMetrics(Logger.getLogger("ExportMetricsTest"), file);
+		metrics.startServer(new InetSocketAddress("localhost", 0));
+		try {
+			measureExport(metrics);
+			String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+			assertTrue(text.contains("dynmapexport_tile_fetch_seconds{" + LABELS + ",quantile=\"0.5\"} 0.005\n"));
+			
+			InetSocketAddress address = metrics.getServerAddress();
+			assertNotNull(address);
+			HttpURLConnection connection = (HttpURLConnection) new URL(
+					"http://localhost:" + address.getPort() + "/metrics").openConnection();
+			assertEquals(200, connection.getResponseCode());
+			assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"));
+			try (InputStream in = connection.getInputStream()) {
+				byte[] body = new byte[text.length() * 2];
+				int length = 0, n;
+				while ((n = in.read(body, length, body.length - length)) > 0) length += n;
+				assertEquals(metrics.toPrometheus(), new String(body, 0, length, StandardCharsets.UTF_8));
+			}
+		} finally {
+			metrics.shutdown();
+		}
+	}
+	
+}
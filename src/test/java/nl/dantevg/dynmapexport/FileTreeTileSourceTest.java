@@ -0,0 +1,136 @@
+package nl.dantevg.dynmapexport;
+
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileTreeTileSourceTest {
+	static final Logger logger = Logger.getLogger("FileTreeTileSourceTest");
+	static final TileCoords tile = new TileCoords(2, 1);
+	
+	@TempDir
+	File dir;
+	File tilesDir;
+	File exportDir;
+	ExportConfig config;
+	
+	/**
+	 * Create a Dynmap tiles directory with a single tile.
+	 */
+	@BeforeEach
+	void createTiles() throws IOException {
+		tilesDir = new File(dir, "tiles");
+		exportDir = new File(dir, "export");
+		exportDir.mkdirs();
+		config = TestConfigs.flat(0, new TileCoords(0, 0), new TileCoords(2, 2));
+		File file = new FileTreeTileSource(tilesDir, false, logger).getTileFile(config, tile);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), image(100));
+	}
+	
+	@Test
+	@DisplayName("Copies the tile with its modification time and size as validators")
+	void fetchTile() throws IOException {
+		FileTreeTileSource source = new FileTreeTileSource(tilesDir, false, logger);
+		Path tileFile = source.getTileFile(config, tile).toPath();
+		assertEquals(new File(tilesDir, "world/flat/0_0/2_1.png"), tileFile.toFile());
+		
+		File dest = new File(exportDir, "2_1.png");
+		DynmapHttpClient.Download download = source.fetch(config, tile, dest, null);
+		assertFalse(download.notModified);
+		assertEquals(100, download.bytes);
+		assertArrayEquals(image(100), Files.readAllBytes(dest.toPath()));
+		assertFalse(Files.isSameFile(tileFile, dest.toPath()), "copied, not linked");
+		assertEquals(new DynmapHttpClient.Validators(
+				Long.toString(Files.getLastModifiedTime(tileFile).toMillis()), "100"), download.validators);
+	}
+	
+	@Test
+	@DisplayName("Does not copy tiles with the same modification time and size")
+	void notModified() throws IOException {
+		FileTreeTileSource source = new FileTreeTileSource(tilesDir, false, logger);
+		Path tileFile = source.getTileFile(config, tile).toPath();
+		DynmapHttpClient.Download first = source.fetch(config, tile, new File(exportDir, "2_1.png"), null);
+		
+		File dest = new File(exportDir, "next.png");
+		DynmapHttpClient.Download second = source.fetch(config, tile, dest, first.validators);
+		assertTrue(second.notModified);
+		assertFalse(dest.exists());
+		
+		// A new modification time or size means the tile changed
+		Files.setLastModifiedTime(tileFile, FileTime.fromMillis(
+				Files.getLastModifiedTime(tileFile).toMillis() + 1000));
+		DynmapHttpClient.Download touched = source.fetch(config, tile, dest, first.validators);
+		assertFalse(touched.notModified);
+		assertTrue(dest.delete());
+		
+		FileTime modified = Files.getLastModifiedTime(tileFile);
+		Files.write(tileFile, image(120));
+		Files.setLastModifiedTime(tileFile, modified);
+		DynmapHttpClient.Download resized = source.fetch(config, tile, dest, touched.validators);
+		assertFalse(resized.notModified);
+		assertArrayEquals(image(120), Files.readAllBytes(dest.toPath()));
+	}
+	
+	@Test
+	@DisplayName("Hardlinks tiles with link-tiles")
+	void link() throws IOException {
+		FileTreeTileSource source = new FileTreeTileSource(tilesDir, true, logger);
+		File dest = new File(exportDir, "2_1.png");
+		Files.write(dest.toPath(), image(10));
+		DynmapHttpClient.Download download = source.fetch(config, tile, dest, null);
+		assertFalse(download.notModified);
+		assertEquals(100, download.bytes);
+		assertTrue(Files.isSameFile(source.getTileFile(config, tile).toPath(), dest.toPath()));
+	}
+	
+	@Test
+	@DisplayName("Copies tiles from then on when hardlinking fails")
+	void linkFallback() throws IOException {
+		AtomicInteger nLinks = new AtomicInteger();
+		FileTreeTileSource source = new FileTreeTileSource(tilesDir, true, logger) {
+			@Override
+			void createLink(Path link, Path existing) throws IOException {
+				nLinks.incrementAndGet();
+				throw new FileSystemException(link.toString(), existing.toString(), "Operation not permitted");
+			}
+		};
+		for (String name : new String[] {"first.png", "second.png"}) {
+			File dest = new File(exportDir, name);
+			DynmapHttpClient.Download download = source.fetch(config, tile, dest, null);
+			assertEquals(100, download.bytes);
+			assertArrayEquals(image(100), Files.readAllBytes(dest.toPath()));
+		}
+		assertEquals(1, nLinks.get(), "does not try to link again");
+	}
+	
+	@Test
+	@DisplayName("Fails for tiles that Dynmap does not have")
+	void missingTile() {
+		FileTreeTileSource source = new FileTreeTileSource(tilesDir, false, logger);
+		File dest = new File(exportDir, "0_0.png");
+		assertThrows(FileNotFoundException.class, () -> source.fetch(config, new TileCoords(0, 0), dest, null));
+		assertFalse(dest.exists());
+	}
+	
+	static byte[] image(int length) {
+		byte[] image = new byte[length];
+		for (int i = 0; i < image.length; i++) image[i] = (byte) (i * 7 + length);
+		return image;
+	}
+	
+}
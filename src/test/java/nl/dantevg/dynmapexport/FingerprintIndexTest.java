@@ -0,0 +1,101 @@
+package nl.dantevg.dynmapexport;
+
+import nl.dantevg.dynmapexport.FingerprintIndex.Fingerprint;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FingerprintIndexTest {
+	static final Logger logger = Logger.getLogger("FingerprintIndexTest");
+	
+	@TempDir
+	File dir;
+	
+	@Test
+	@DisplayName("Fingerprints survive saving and loading")
+	void roundTrip() {
+		Fingerprint original = fingerprint("a", 1);
+		Fingerprint other = fingerprint("b", 2);
+		FingerprintIndex index = new FingerprintIndex();
+		index.put(new File("0_0.png"), original);
+		File file = new File(dir, "fingerprints.dat");
+		index.save(file, logger);
+		
+		FingerprintIndex loaded = FingerprintIndex.load(file, logger);
+		assertEquals(1, loaded.size());
+		Fingerprint read = loaded.get(new File("0_0.png"));
+		assertNotNull(read);
+		assertEquals("a", read.hash);
+		assertEquals(original.getMinPixelsChanged(other), read.getMinPixelsChanged(other));
+		assertEquals(original.getMaxPixelsChanged(other), read.getMaxPixelsChanged(other));
+	}
+	
+	@Test
+	@DisplayName("Saving keeps the tiles of other configurations in the file")
+	void merge() {
+		File file = new File(dir, "fingerprints.dat");
+		FingerprintIndex first = new FingerprintIndex();
+		first.put(new File("0_0.png"), fingerprint("a", 1));
+		first.put(new File("1_0.png"), fingerprint("b", 2));
+		first.save(file, logger);
+		
+		FingerprintIndex second = new FingerprintIndex();
+		second.put(new File("1_0.png"), fingerprint("c", 3));
+		second.put(new File("z_0_0.png"), fingerprint("d", 4));
+		second.save(file, logger);
+		
+		FingerprintIndex loaded = FingerprintIndex.load(file, logger);
+		assertEquals(3, loaded.size());
+		assertEquals("a", loaded.get(new File("0_0.png")).hash);
+		assertEquals("c", loaded.get(new File("1_0.png")).hash);
+		assertEquals("d", loaded.get(new File("z_0_0.png")).hash);
+	}
+	
+	@Test
+	@DisplayName("Missing and unreadable files give an empty index")
+	void unreadable() throws IOException {
+		assertEquals(0, FingerprintIndex.load(new File(dir, "missing.dat"), logger).size());
+		File corrupt = new File(dir, "corrupt.dat");
+		Files.write(corrupt.toPath(), new byte[] {1, 2, 3});
+		assertEquals(0, FingerprintIndex.load(corrupt, logger).size());
+		
+		// An unreadable file is replaced on save
+		FingerprintIndex index = new FingerprintIndex();
+		index.put(new File("0_0.png"), fingerprint("a", 1));
+		index.save(corrupt, logger);
+		assertEquals(1, FingerprintIndex.load(corrupt, logger).size());
+	}
+	
+	@Test
+	@DisplayName("Changed tiles are found without reading tile files")
+	void changedTiles() {
+		FingerprintIndex from = new FingerprintIndex();
+		from.put(new File("0_0.png"), fingerprint("a", 1));
+		from.put(new File("1_0.png"), fingerprint("b", 2));
+		FingerprintIndex to = new FingerprintIndex();
+		to.put(new File("0_0.png"), fingerprint("a", 1));
+		to.put(new File("1_0.png"), fingerprint("c", 3));
+		to.put(new File("2_0.png"), fingerprint("d", 4));
+		assertEquals(new HashSet<>(Arrays.asList("1_0.png", "2_0.png")),
+				to.getChangedTiles(from));
+		assertEquals(Collections.emptySet(), from.getChangedTiles(from));
+	}
+	
+	static Fingerprint fingerprint(String hash, int seed) {
+		BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+		for (int i = 0; i < 16 * 16; i++) image.setRGB(i % 16, i / 16, 0xff000000 | (i * seed * 0x010203));
+		return Fingerprint.of(hash, image);
+	}
+	
+}
@@ -0,0 +1,66 @@
+package nl.dantevg.dynmapexport;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PngReaderTest {
+	@DisplayName("Reads the pixels written by PngWriter")
+	@ParameterizedTest(name = "{0}x{1}")
+	@CsvSource({"1, 1", "128, 128", "300, 257", "20000, 3"})
+	void readPngWriter(int width, int height) throws IOException {
+		int[] pixels = PngWriterTest.createPixels(width, height);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (PngWriter writer = new PngWriter(out, width, height)) {
+			for (int y = 0; y < height; y++) writer.writeRow(pixels, y * width);
+			writer.finish();
+		}
+		for (int i = 0; i < pixels.length; i++) pixels[i] &= 0xFFFFFF;
+		assertArrayEquals(pixels, read(out.toByteArray(), width, height));
+	}
+	
+	@Test
+	@DisplayName("Reads the pixels written by ImageIO")
+	void readImageIO() throws IOException {
+		int width = 300;
+		int height = 200;
+		int[] pixels = PngWriterTest.createPixels(width, height);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		image.setRGB(0, 0, width, height, pixels, 0, width);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		
+		int[] expected = image.getRGB(0, 0, width, height, null, 0, width);
+		for (int i = 0; i < expected.length; i++) expected[i] &= 0xFFFFFF;
+		assertArrayEquals(expected, read(out.toByteArray(), width, height));
+	}
+	
+	@Test
+	@DisplayName("Rejects images with an alpha channel")
+	void unsupportedFormat() throws IOException {
+		BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		assertThrows(IOException.class, () -> new PngReader(new ByteArrayInputStream(out.toByteArray())));
+	}
+	
+	static int[] read(byte[] png, int width, int height) throws IOException {
+		int[] pixels = new int[width * height];
+		try (PngReader reader = new PngReader(new ByteArrayInputStream(png))) {
+			assertEquals(width, reader.getWidth());
+			assertEquals(height, reader.getHeight());
+			for (int y = 0; y < height; y++) reader.readRow(pixels, y * width);
+		}
+		return pixels;
+	}
+	
+}
@@ -0,0 +1,93 @@
+package nl.dantevg.dynmapexport;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Adler32;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PngWriterTest {
+	@DisplayName("Written PNG decodes to the same pixels")
+	@ParameterizedTest(name = "{0}x{1}, compression level {2}, {3} threads")
+	@CsvSource({"1, 1, -1, 0", "128, 128, -1, 0", "300, 257, 9, 0", "1000, 3, 0, 0", "3, 1000, 1, 0",
+			"1, 1, -1, 4", "128, 128, 6, 4", "1000, 1000, 6, 4", "20000, 20, 1, 2", "3, 50000, 9, 3"})
+	void roundTrip(int width, int height, int compressionLevel, int nThreads) throws IOException {
+		int[] pixels = createPixels(width, height);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ExecutorService executor = (nThreads > 0) ? Executors.newFixedThreadPool(nThreads) : null;
+		try (PngWriter writer = new PngWriter(out, width, height, compressionLevel, executor)) {
+			for (int y = 0; y < height; y++) writer.writeRow(pixels, y * width);
+			writer.finish();
+		} finally {
+			if (executor != null) executor.shutdown();
+		}
+		
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+		assertNotNull(image);
+		assertEquals(width, image.getWidth());
+		assertEquals(height, image.getHeight());
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				assertEquals(pixels[y * width + x] & 0xFFFFFF, image.getRGB(x, y) & 0xFFFFFF,
+						"pixel " + x + "," + y);
+			}
+		}
+	}
+	
+	@Test
+	@DisplayName("Cannot finish before all rows are written")
+	void finishTooEarly() throws IOException {
+		try (PngWriter writer = new PngWriter(new ByteArrayOutputStream(), 2, 2)) {
+			writer.writeRow(new int[2], 0);
+			assertThrows(IllegalStateException.class, writer::finish);
+		}
+	}
+	
+	@Test
+	@DisplayName("Combined Adler-32 checksum equals the checksum of all data")
+	void combineAdler32() {
+		byte[] data = new byte[200_000];
+		new Random(1).nextBytes(data);
+		Adler32 whole = new Adler32();
+		whole.update(data);
+		
+		for (int split : new int[] {0, 1, 65521, 100_000, data.length}) {
+			Adler32 first = new Adler32();
+			first.update(data, 0, split);
+			Adler32 second = new Adler32();
+			second.update(data, split, data.length - split);
+			assertEquals(whole.getValue(),
+					PngWriter.combineAdler32(first.getValue(), second.getValue(), data.length - split),
+					"split at " + split);
+		}
+	}
+	
+	/**
+	 * Create pixels with smooth areas and noise, so that every filter type
+	 * gets used.
+	 */
+	static int[] createPixels(int width, int height) {
+		Random random = new Random(width * 31 + height);
+		int[] pixels = new int[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				pixels[y * width + x] = ((x + y) % 64 < 32)
+						? (x * 3 & 0xFF) << 16 | (y * 5 & 0xFF) << 8 | ((x ^ y) & 0xFF)
+						: random.nextInt();
+			}
+		}
+		return pixels;
+	}
+	
+}
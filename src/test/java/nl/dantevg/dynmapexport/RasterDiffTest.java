@@ -0,0 +1,133 @@
+package nl.dantevg.dynmapexport;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RasterDiffTest {
+	static final int SIZE = 128;
+	
+	@DisplayName("Changed pixel count equals a per-pixel getRGB comparison")
+	@ParameterizedTest(name = "{0} vs {1}, {2} changed pixels")
+	@MethodSource("imagePairProvider")
+	void countChangedPixels(String fromType, String toType, int nChanged, BufferedImage from, BufferedImage to) {
+		assertEquals(nChanged, countChangedPixelsRGB(from, to));
+		assertEquals(nChanged, RasterDiff.countChangedPixels(from, to));
+	}
+	
+	@DisplayName("Early exit still tells whether the limit is reached")
+	@ParameterizedTest(name = "{0} vs {1}, {2} changed pixels")
+	@MethodSource("imagePairProvider")
+	void countChangedPixelsWithLimit(String fromType, String toType, int nChanged, BufferedImage from, BufferedImage to) {
+		for (int limit : new int[] {0, 1, nChanged - 1, nChanged, nChanged + 1, SIZE * SIZE}) {
+			boolean reached = RasterDiff.countChangedPixels(from, to, limit) >= limit;
+			assertEquals(nChanged >= limit, reached, "limit " + limit);
+		}
+	}
+	
+	@Test
+	@DisplayName("Images of different sizes are completely changed")
+	void differentSizes() {
+		BufferedImage from = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+		BufferedImage to = new BufferedImage(SIZE / 2, SIZE / 2, BufferedImage.TYPE_INT_RGB);
+		assertEquals(SIZE * SIZE / 4, RasterDiff.countChangedPixels(from, to));
+	}
+	
+	static Stream<Arguments> imagePairProvider() throws IOException {
+		Stream.Builder<Arguments> arguments = Stream.builder();
+		for (int nChanged : new int[] {0, 1, 500, SIZE * SIZE}) {
+			BufferedImage from = createImage(1);
+			BufferedImage to = changePixels(from, nChanged);
+			BufferedImage fromPng = roundTripPNG(from);
+			BufferedImage toPng = roundTripPNG(to);
+			arguments.add(Arguments.of("INT_ARGB", "INT_ARGB", nChanged, from, to));
+			arguments.add(Arguments.of("PNG", "PNG", nChanged, fromPng, toPng));
+			arguments.add(Arguments.of("PNG", "INT_ARGB", nChanged, fromPng, to));
+			arguments.add(Arguments.of("RGBA", "RGBA", nChanged, convertToRGBA(from), convertToRGBA(to)));
+			arguments.add(Arguments.of("RGBA", "4BYTE_ABGR", nChanged,
+					convertToRGBA(from), convert(to, BufferedImage.TYPE_4BYTE_ABGR)));
+			arguments.add(Arguments.of("4BYTE_ABGR", "4BYTE_ABGR", nChanged,
+					convert(from, BufferedImage.TYPE_4BYTE_ABGR), convert(to, BufferedImage.TYPE_4BYTE_ABGR)));
+			arguments.add(Arguments.of("INT_RGB", "INT_RGB", nChanged,
+					convert(from, BufferedImage.TYPE_INT_RGB), convert(to, BufferedImage.TYPE_INT_RGB)));
+		}
+		return arguments.build();
+	}
+	
+	static int countChangedPixelsRGB(BufferedImage from, BufferedImage to) {
+		int changed = 0;
+		for (int x = 0; x < from.getWidth(); x++) {
+			for (int y = 0; y < from.getHeight(); y++) {
+				if (from.getRGB(x, y) != to.getRGB(x, y)) changed++;
+			}
+		}
+		return changed;
+	}
+	
+	static BufferedImage createImage(long seed) {
+		Random random = new Random(seed);
+		BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+		for (int y = 0; y < SIZE; y++) {
+			for (int x = 0; x < SIZE; x++) {
+				image.setRGB(x, y, 0xff000000 | random.nextInt(0x1000000));
+			}
+		}
+		return image;
+	}
+	
+	/**
+	 * Copy an image and invert the colour of the first <code>n</code> pixels in
+	 * column-major order, so that changed pixels span several rows.
+	 */
+	static BufferedImage changePixels(BufferedImage image, int n) {
+		BufferedImage changed = convert(image, BufferedImage.TYPE_INT_ARGB);
+		for (int i = 0; i < n; i++) {
+			int x = i / SIZE;
+			int y = i % SIZE;
+			changed.setRGB(x, y, changed.getRGB(x, y) ^ 0x00ffffff);
+		}
+		return changed;
+	}
+	
+	static BufferedImage convert(BufferedImage image, int type) {
+		BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+		converted.getGraphics().drawImage(image, 0, 0, null);
+		return converted;
+	}
+	
+	/**
+	 * Convert an image to byte-interleaved RGBA (<code>TYPE_CUSTOM</code>),
+	 * which is how some PNG readers return images with alpha.
+	 */
+	static BufferedImage convertToRGBA(BufferedImage image) {
+		BufferedImage converted = ImageTypeSpecifier.createInterleaved(
+						ColorSpace.getInstance(ColorSpace.CS_sRGB), new int[] {0, 1, 2, 3},
+						DataBuffer.TYPE_BYTE, true, false)
+				.createBufferedImage(image.getWidth(), image.getHeight());
+		assertEquals(BufferedImage.TYPE_CUSTOM, converted.getType());
+		converted.getGraphics().drawImage(image, 0, 0, null);
+		return converted;
+	}
+	
+	static BufferedImage roundTripPNG(BufferedImage image) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+	}
+	
+}
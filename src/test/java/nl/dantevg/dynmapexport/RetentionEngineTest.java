@@ -0,0 +1,150 @@
+package nl.dantevg.dynmapexport;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetentionEngineTest {
+	static final Logger logger = Logger.getLogger("RetentionEngineTest");
+	static final ExportConfig config = TestConfigs.flat(0, new TileCoords(0, 0));
+	static final int UNSET = RetentionPolicy.UNSET;
+	
+	@TempDir
+	File dir;
+	
+	ExportManifest manifest;
+	ExportHistory history;
+	TileStore tileStore;
+	final List<Instant> exports = new ArrayList<>();
+	
+	@BeforeEach
+	void createHistory() {
+		manifest = ExportManifest.load(logger, dir, config);
+		tileStore = new TileStore(logger, dir, false);
+		history = new ExportHistory(logger, dir, c -> manifest, new ExportMetrics(logger, null), tileStore,
+				ExportHistory.HistoryMode.FULL, 24, false);
+	}
+	
+	RetentionEngine createEngine(RetentionPolicy policy, int keepTiles) {
+		return new RetentionEngine(logger, dir, c -> manifest, history, tileStore, policy, 0, keepTiles,
+				100, Duration.ZERO, MoreExecutors.newDirectExecutorService());
+	}
+	
+	RetentionEngine createEngine(int keepTiles) {
+		return createEngine(new RetentionPolicy(UNSET, UNSET, UNSET, ZoneOffset.UTC), keepTiles);
+	}
+	
+	/**
+	 * Save an export with a single tile, and combine it if
+	 * <code>combined</code>.
+	 */
+	void export(int n, boolean combined) throws IOException {
+		Instant instant = Instant.ofEpochSecond(n * 3600L);
+		File tile = Paths.getLocalTileFile(dir, config, instant, new TileCoords(0, 0), config.zoom);
+		tile.getParentFile().mkdirs();
+		Files.write(tile.toPath(), ("tile " + n).getBytes(StandardCharsets.UTF_8));
+		manifest.addExport(instant, 1, 1, null);
+		if (combined) {
+			Files.write(Paths.getLocalCombinedFile(dir, config, instant).toPath(),
+					("combined " + n).getBytes(StandardCharsets.UTF_8));
+			manifest.setCombined(instant);
+		}
+		exports.add(instant);
+	}
+	
+	void export(int nExports) throws IOException {
+		for (int n = 0; n < nExports; n++) export(n, true);
+	}
+	
+	List<Instant> getExportsWithTileDirs() {
+		List<Instant> instants = new ArrayList<>();
+		for (Instant instant : exports) {
+			if (Paths.getLocalExportDir(dir, config, instant).isDirectory()) instants.add(instant);
+		}
+		return instants;
+	}
+	
+	@Test
+	@DisplayName("keep-tiles keeps the tile directories of the newest combined exports")
+	void selectTileDirs() throws IOException {
+		export(5);
+		assertEquals(exports.subList(0, 3), createEngine(2).selectTileDirs(config));
+		assertEquals(Collections.emptyList(), createEngine(-1).selectTileDirs(config));
+		
+		// Exports that were not combined keep their tiles
+		export(5, false);
+		export(6, true);
+		assertEquals(exports.subList(0, 5), createEngine(1).selectTileDirs(config));
+	}
+	
+	@Test
+	@DisplayName("The latest export keeps its tiles with keep-tiles 0")
+	void keepTilesZero() throws IOException {
+		export(3);
+		RetentionEngine engine = createEngine(0);
+		assertEquals(exports.subList(0, 2), engine.selectTileDirs(config));
+		
+		engine.schedule(config);
+		assertEquals(Collections.singletonList(exports.get(2)), getExportsWithTileDirs());
+		assertEquals(exports.get(2), manifest.getLatestExport());
+	}
+	
+	@Test
+	@DisplayName("Removes exports that the policy does not keep")
+	void removeExports() throws IOException {
+		export(4);
+		createEngine(new RetentionPolicy(2, UNSET, UNSET, ZoneOffset.UTC), -1).schedule(config);
+		
+		for (int i = 0; i < exports.size(); i++) {
+			boolean kept = i >= 2;
+			assertEquals(kept, Paths.getLocalCombinedFile(dir, config, exports.get(i)).isFile(), "export " + i);
+			assertEquals(kept, Paths.getLocalExportDir(dir, config, exports.get(i)).isDirectory(), "export " + i);
+		}
+		assertEquals(exports.get(3), manifest.getLatestExport());
+	}
+	
+	@Test
+	@DisplayName("Maps that are being exported are retried once the export is done")
+	void deferred() throws IOException {
+		export(3);
+		RetentionEngine engine = createEngine(1);
+		
+		manifest.getHistoryLock().lock();
+		try {
+			CompletableFuture.runAsync(() -> engine.schedule(config)).join();
+			assertEquals(exports, getExportsWithTileDirs(), "skipped while exporting");
+		} finally {
+			manifest.getHistoryLock().unlock();
+		}
+		
+		engine.retryDeferred(config);
+		assertEquals(Collections.singletonList(exports.get(2)), getExportsWithTileDirs());
+	}
+	
+	@Test
+	@DisplayName("Maps that were not skipped are not retried")
+	void notDeferred() throws IOException {
+		RetentionEngine engine = createEngine(1);
+		engine.schedule(config);
+		export(3);
+		engine.retryDeferred(config);
+		assertEquals(exports, getExportsWithTileDirs());
+	}
+	
+}
@@ -0,0 +1,71 @@
+package nl.dantevg.dynmapexport;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetentionPolicyTest {
+	static final Instant START = Instant.parse("2024-01-01T00:00:00Z");
+	static final int UNSET = RetentionPolicy.UNSET;
+	
+	/**
+	 * An export every 15 minutes, for 40 days
+	 */
+	static List<Instant> createExports() {
+		List<Instant> exports = new ArrayList<>();
+		for (int i = 0; i < 40 * 24 * 4; i++) exports.add(START.plus(Duration.ofMinutes(15L * i)));
+		return exports;
+	}
+	
+	@Test
+	@DisplayName("Without rules, all exports are kept")
+	void keepAll() {
+		RetentionPolicy policy = new RetentionPolicy(UNSET, UNSET, UNSET, ZoneOffset.UTC);
+		assertTrue(policy.keepsAll());
+		assertEquals(new HashSet<>(createExports()), policy.select(createExports()));
+	}
+	
+	@Test
+	@DisplayName("keep-last keeps the newest exports")
+	void keepLast() {
+		List<Instant> exports = createExports();
+		Set<Instant> keep = new RetentionPolicy(3, UNSET, UNSET, ZoneOffset.UTC).select(exports);
+		assertEquals(new HashSet<>(exports.subList(exports.size() - 3, exports.size())), keep);
+		assertEquals(Collections.singleton(exports.get(exports.size() - 1)),
+				new RetentionPolicy(0, UNSET, UNSET, ZoneOffset.UTC).select(exports));
+	}
+	
+	@Test
+	@DisplayName("keep-hourly and keep-daily keep the newest export of every period")
+	void keepHourlyAndDaily() {
+		List<Instant> exports = createExports();
+		Instant last = exports.get(exports.size() - 1);
+		Set<Instant> keep = new RetentionPolicy(UNSET, 24, 30, ZoneOffset.UTC).select(exports);
+		
+		for (int hour = 0; hour < 24; hour++) {
+			assertTrue(keep.contains(last.minus(Duration.ofHours(hour))), "hour " + hour);
+		}
+		for (int day = 0; day < 30; day++) {
+			assertTrue(keep.contains(last.minus(Duration.ofDays(day))), "day " + day);
+		}
+		// The hourly and daily exports overlap for the newest day
+		assertEquals(24 + 29, keep.size());
+	}
+	
+	@Test
+	@DisplayName("Oldest exports are removed until under the maximum size, except the newest")
+	void overSize() {
+		SortedMap<Instant, Long> sizes = new TreeMap<>();
+		for (int i = 0; i < 5; i++) sizes.put(START.plusSeconds(i), 10L);
+		assertEquals(Arrays.asList(START, START.plusSeconds(1)), RetentionPolicy.selectOverSize(sizes, 30));
+		assertEquals(Collections.emptyList(), RetentionPolicy.selectOverSize(sizes, 50));
+		assertEquals(4, RetentionPolicy.selectOverSize(sizes, 0).size());
+	}
+	
+}
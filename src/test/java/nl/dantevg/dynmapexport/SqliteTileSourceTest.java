@@ -0,0 +1,141 @@
+package nl.dantevg.dynmapexport;
+
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SqliteTileSourceTest {
+	
+	@TempDir
+	File dir;
+	File database;
+	SqliteTileSource source;
+	
+	/**
+	 * Create a database with Dynmap's SQLite schema, with tiles (0..2, 0..2)
+	 * of the standard variant of the flat map at zoom level 0, and a single
+	 * tile of another variant.
+	 */
+	@BeforeEach
+	void createDatabase() throws SQLException {
+		database = new File(dir, "dynmap.db");
+		try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + database.getPath());
+		     Statement statement = connection.createStatement()) {
+			statement.executeUpdate("CREATE TABLE Maps (ID INTEGER PRIMARY KEY AUTOINCREMENT, "
+					+ "WorldID STRING NOT NULL, MapID STRING NOT NULL, Variant STRING NOT NULL, "
+					+ "ServerID INTEGER NOT NULL DEFAULT 0)");
+			statement.executeUpdate("CREATE TABLE Tiles (MapID INT NOT NULL, x INT NOT NULL, y INT NOT NULL, "
+					+ "zoom INT NOT NULL, HashCode INT NOT NULL, LastUpdate INT NOT NULL, Format INT NOT NULL, "
+					+ "Image BLOB, PRIMARY KEY(MapID, x, y, zoom))");
+			statement.executeUpdate("INSERT INTO Maps (WorldID, MapID, Variant) VALUES ('world', 'flat', 'STANDARD')");
+			statement.executeUpdate("INSERT INTO Maps (WorldID, MapID, Variant) VALUES ('world', 'flat', 'DAY')");
+			
+			try (PreparedStatement insert = connection.prepareStatement(
+					"INSERT INTO Tiles VALUES (?, ?, ?, 0, ?, ?, 0, ?)")) {
+				for (int x = 0; x <= 2; x++) {
+					for (int y = 0; y <= 2; y++) {
+						insert.setInt(1, 1);
+						insert.setInt(2, x);
+						insert.setInt(3, y);
+						insert.setInt(4, hashCode(x, y));
+						insert.setLong(5, 1000L + x);
+						insert.setBytes(6, image(x, y));
+						insert.executeUpdate();
+					}
+				}
+				insert.setInt(1, 2);
+				insert.setInt(2, 5);
+				insert.setInt(3, 5);
+				insert.executeUpdate();
+			}
+		}
+		source = new SqliteTileSource(database, Logger.getLogger("SqliteTileSourceTest"));
+	}
+	
+	@AfterEach
+	void close() {
+		source.close();
+	}
+	
+	@Test
+	@DisplayName("Fetches the image and validators of every tile in the rectangle")
+	void fetchTiles() throws IOException {
+		ExportConfig config = TestConfigs.flat(0, new TileCoords(0, 0), new TileCoords(1, 2));
+		File exportDir = new File(dir, "export");
+		exportDir.mkdirs();
+		for (int x = 0; x <= 1; x++) {
+			for (int y = 0; y <= 2; y++) {
+				File dest = new File(exportDir, x + "_" + y + ".png");
+				DynmapHttpClient.Download download = source.fetch(config, new TileCoords(x, y), dest, null);
+				assertFalse(download.notModified);
+				assertEquals(image(x, y).length, download.bytes);
+				assertArrayEquals(image(x, y), Files.readAllBytes(dest.toPath()));
+				assertEquals(new DynmapHttpClient.Validators(Long.toString(1000L + x),
+						Integer.toString(hashCode(x, y))), download.validators);
+			}
+		}
+	}
+	
+	@Test
+	@DisplayName("Does not read tiles with the same hash code and update time")
+	void notModified() throws IOException {
+		ExportConfig config = TestConfigs.flat(0, new TileCoords(0, 0), new TileCoords(2, 2));
+		TileCoords tile = new TileCoords(2, 1);
+		File dest = new File(dir, "2_1.png");
+		DynmapHttpClient.Download first = source.fetch(config, tile, dest, null);
+		assertTrue(dest.delete());
+		
+		File nextDest = new File(new File(dir, "next"), "2_1.png");
+		nextDest.getParentFile().mkdirs();
+		DynmapHttpClient.Download second = source.fetch(config, tile, nextDest, first.validators);
+		assertTrue(second.notModified);
+		assertFalse(nextDest.exists());
+		
+		DynmapHttpClient.Download changed = source.fetch(config, tile, nextDest,
+				new DynmapHttpClient.Validators("999", first.validators.etag));
+		assertFalse(changed.notModified);
+		assertTrue(nextDest.exists());
+	}
+	
+	@Test
+	@DisplayName("Fails for tiles that Dynmap does not have")
+	void missingTile() {
+		ExportConfig config = TestConfigs.flat(0, new TileCoords(0, 0), new TileCoords(5, 5));
+		assertThrows(IOException.class, () -> source.fetch(config, new TileCoords(5, 5),
+				new File(dir, "5_5.png"), null));
+	}
+	
+	@Test
+	@DisplayName("Does not create a missing database")
+	void missingDatabase() {
+		File missing = new File(dir, "missing.db");
+		SqliteTileSource missingSource = new SqliteTileSource(missing, Logger.getLogger("SqliteTileSourceTest"));
+		ExportConfig config = TestConfigs.flat(0, new TileCoords(0, 0), new TileCoords(0, 0));
+		assertThrows(IOException.class, () -> missingSource.fetch(config, new TileCoords(0, 0),
+				new File(dir, "0_0.png"), null));
+		assertFalse(missing.exists());
+	}
+	
+	static int hashCode(int x, int y) {
+		return x * 31 + y;
+	}
+	
+	static byte[] image(int x, int y) {
+		byte[] image = new byte[100 + x * 10 + y];
+		for (int i = 0; i < image.length; i++) image[i] = (byte) (i * x + y);
+		return image;
+	}
+	
+}
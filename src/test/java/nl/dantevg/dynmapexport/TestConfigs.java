@@ -0,0 +1,45 @@
+package nl.dantevg.dynmapexport;
+
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Export configurations of the flat map of the world "world", shared by the
+ * tests. The world and map are only set up once, and never changed.
+ */
+final class TestConfigs {
+	static final DynmapWebAPI.World WORLD = createWorld();
+	static final DynmapWebAPI.Map FLAT = createFlat();
+	
+	private TestConfigs() {
+	}
+	
+	/**
+	 * @return an export configuration of the tiles from <code>from</code> to
+	 * <code>to</code> (inclusive) of the flat map
+	 */
+	static @NotNull ExportConfig flat(int zoom, @NotNull TileCoords from, @NotNull TileCoords to) {
+		return new ExportConfig(WORLD, FLAT, zoom, from, to);
+	}
+	
+	/**
+	 * @return an export configuration of a single tile of the flat map
+	 */
+	static @NotNull ExportConfig flat(int zoom, @NotNull TileCoords tile) {
+		return new ExportConfig(WORLD, FLAT, zoom, tile);
+	}
+	
+	private static @NotNull DynmapWebAPI.World createWorld() {
+		DynmapWebAPI.World world = new DynmapWebAPI.World();
+		world.name = "world";
+		return world;
+	}
+	
+	private static @NotNull DynmapWebAPI.Map createFlat() {
+		DynmapWebAPI.Map flat = new DynmapWebAPI.Map();
+		flat.name = "flat";
+		flat.prefix = "flat";
+		return flat;
+	}
+	
+}
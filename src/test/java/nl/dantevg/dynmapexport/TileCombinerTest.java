@@ -0,0 +1,99 @@
+package nl.dantevg.dynmapexport;
+
+import nl.dantevg.dynmapexport.location.TileCoords;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TileCombinerTest {
+	static final int SIZE = TileCombiner.PIXELS_PER_TILE;
+	static final ExportConfig config = TestConfigs.flat(0, new TileCoords(0, 0), new TileCoords(1, 1));
+	
+	@Test
+	@DisplayName("Streaming combine draws the same image as a full combine")
+	void streaming() throws IOException {
+		Map<TileCoords, BufferedImage> tiles = createTiles(0xff000000);
+		assertArrayEquals(getPixels(TileCombiner.combine(config, tiles::get)),
+				read(write(writer -> TileCombiner.writeRows(config, tiles::get, writer))));
+	}
+	
+	@Test
+	@DisplayName("Incremental combine clears changed tiles that became (partly) transparent")
+	void incrementalTransparent() throws IOException {
+		Map<TileCoords, BufferedImage> previousTiles = createTiles(0xff000000);
+		byte[] previous = write(writer -> TileCombiner.writeImage(TileCombiner.combine(config, previousTiles::get), writer));
+		
+		TileCoords changed = new TileCoords(1, 0);
+		Map<TileCoords, BufferedImage> tiles = new HashMap<>(previousTiles);
+		BufferedImage transparent = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+		for (int y = 0; y < SIZE; y++) {
+			// Top half fully transparent, bottom half half-transparent
+			for (int x = 0; x < SIZE; x++) transparent.setRGB(x, y, (y < SIZE / 2) ? 0 : 0x80ff8000);
+		}
+		tiles.put(changed, transparent);
+		
+		byte[] incremental;
+		try (PngReader reader = new PngReader(new ByteArrayInputStream(previous))) {
+			incremental = write(writer -> TileCombiner.updateRows(config, tiles::get, reader,
+					Collections.singleton(changed), writer));
+		}
+		assertArrayEquals(getPixels(TileCombiner.combine(config, tiles::get)), read(incremental));
+	}
+	
+	/**
+	 * Create the four tiles of the export, each opaque with its own colour.
+	 */
+	static Map<TileCoords, BufferedImage> createTiles(int alpha) {
+		Map<TileCoords, BufferedImage> tiles = new HashMap<>();
+		for (int x = 0; x <= 1; x++) {
+			for (int y = 0; y <= 1; y++) {
+				BufferedImage tile = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+				for (int i = 0; i < SIZE * SIZE; i++) {
+					tile.setRGB(i % SIZE, i / SIZE, alpha | (x * 0x600000 + y * 0x6000 + i % 251));
+				}
+				tiles.put(new TileCoords(x, y), tile);
+			}
+		}
+		return tiles;
+	}
+	
+	static int[] getPixels(BufferedImage image) {
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData().clone();
+		for (int i = 0; i < pixels.length; i++) pixels[i] &= 0xFFFFFF;
+		return pixels;
+	}
+	
+	static byte[] write(RowWriter rows) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (PngWriter writer = new PngWriter(out, TileCombiner.getWidth(config), TileCombiner.getHeight(config))) {
+			rows.writeTo(writer);
+			writer.finish();
+		}
+		return out.toByteArray();
+	}
+	
+	static int[] read(byte[] png) throws IOException {
+		try (PngReader reader = new PngReader(new ByteArrayInputStream(png))) {
+			int width = reader.getWidth();
+			int[] pixels = new int[width * reader.getHeight()];
+			for (int y = 0; y < reader.getHeight(); y++) reader.readRow(pixels, y * width);
+			return pixels;
+		}
+	}
+	
+	@FunctionalInterface
+	interface RowWriter {
+		void writeTo(PngWriter writer) throws IOException;
+	}
+	
+}
@@ -0,0 +1,138 @@
+package nl.dantevg.dynmapexport;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TileStoreTest {
+	static final Logger logger = Logger.getLogger("TileStoreTest");
+	
+	@TempDir
+	File dir;
+	File first;
+	File second;
+	TileStore store;
+	
+	/**
+	 * Create the tile directories of two exports.
+	 */
+	@BeforeEach
+	void createExportDirs() {
+		first = new File(dir, "exports/first");
+		second = new File(dir, "exports/second");
+		first.mkdirs();
+		second.mkdirs();
+		store = new TileStore(logger, dir, true);
+	}
+	
+	File writeTile(File exportDir, String name, String content) throws IOException {
+		File file = new File(exportDir, name);
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+	
+	int getLinkCount(File file) throws IOException {
+		return (int) Files.getAttribute(file.toPath(), "unix:nlink");
+	}
+	
+	int countStoredTiles() throws IOException {
+		File storeDir = Paths.getTileStoreDir(dir);
+		if (!storeDir.isDirectory()) return 0;
+		return (int) Files.walk(storeDir.toPath()).filter(Files::isRegularFile).count();
+	}
+	
+	@Test
+	@DisplayName("Tiles with the same content are stored once")
+	void add() throws IOException {
+		File a = writeTile(first, "0_0.png", "tile a");
+		File b = writeTile(second, "0_0.png", "tile a");
+		File c = writeTile(second, "1_0.png", "tile c");
+		store.add(a);
+		store.add(b);
+		store.add(c);
+		
+		assertTrue(Files.isSameFile(a.toPath(), b.toPath()));
+		assertFalse(Files.isSameFile(a.toPath(), c.toPath()));
+		assertEquals(3, getLinkCount(a));
+		assertEquals(2, countStoredTiles());
+		assertEquals("tile a", new String(Files.readAllBytes(b.toPath()), StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	@DisplayName("Copied tiles are links to the same stored tile")
+	void copy() throws IOException {
+		File a = writeTile(first, "0_0.png", "tile a");
+		store.add(a);
+		File copy = new File(second, "0_0.png");
+		store.copy(a, copy);
+		assertTrue(Files.isSameFile(a.toPath(), copy.toPath()));
+		assertEquals(3, getLinkCount(a));
+		
+		// Without the store, tiles are copied
+		TileStore disabled = new TileStore(logger, dir, false);
+		File separate = new File(second, "1_0.png");
+		disabled.copy(a, separate);
+		assertFalse(Files.isSameFile(a.toPath(), separate.toPath()));
+		assertEquals("tile a", new String(Files.readAllBytes(separate.toPath()), StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	@DisplayName("Stored tiles are removed once no export uses them")
+	void removeUnreferenced() throws IOException {
+		File shared = writeTile(first, "0_0.png", "shared");
+		store.add(shared);
+		store.copy(shared, new File(second, "0_0.png"));
+		store.add(writeTile(first, "1_0.png", "only first"));
+		assertEquals(2, countStoredTiles());
+		
+		Set<File> blobs = store.getStoredTiles(first);
+		assertEquals(2, blobs.size());
+		for (File file : first.listFiles()) Files.delete(file.toPath());
+		Files.delete(first.toPath());
+		
+		assertEquals(1, store.removeUnreferenced(blobs));
+		assertEquals(1, countStoredTiles());
+		assertEquals("shared", new String(Files.readAllBytes(new File(second, "0_0.png").toPath()),
+				StandardCharsets.UTF_8));
+		
+		// Removing the last export removes the last stored tile
+		blobs = store.getStoredTiles(second);
+		Files.delete(new File(second, "0_0.png").toPath());
+		assertEquals(1, store.removeUnreferenced(blobs));
+		assertEquals(0, countStoredTiles());
+	}
+	
+	@Test
+	@DisplayName("Tiles that are not links are not looked up in the store")
+	void notStored() throws IOException {
+		store.add(writeTile(first, "0_0.png", "stored"));
+		File copy = writeTile(second, "0_0.png", "stored");
+		assertEquals(new HashSet<>(), store.getStoredTiles(copy));
+		assertEquals(new HashSet<>(), store.getStoredTiles(new File(dir, "missing.png")));
+	}
+	
+	@Test
+	@DisplayName("Only links across file systems disable the store")
+	void crossDevice() {
+		assertTrue(TileStore.isCrossDevice(new FileSystemException("a", "b", "Invalid cross-device link")));
+		assertTrue(TileStore.isCrossDevice(new FileSystemException("a", "b", "Cross-device link")));
+		assertTrue(TileStore.isCrossDevice(new FileSystemException("a", "b",
+				"The system cannot move the file to a different disk drive.")));
+		assertFalse(TileStore.isCrossDevice(new FileSystemException("a", "b", "Too many links")));
+		assertFalse(TileStore.isCrossDevice(new FileSystemException("a", "b", "Permission denied")));
+		assertFalse(TileStore.isCrossDevice(new FileSystemException("a")));
+	}
+	
+}
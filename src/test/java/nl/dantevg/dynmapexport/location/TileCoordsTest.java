@@ -0,0 +1,26 @@
+package nl.dantevg.dynmapexport.location;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TileCoordsTest {
+	@DisplayName("Tile coordinates to the containing zoomed-out tile")
+	@ParameterizedTest(name = "zoom {2} @ {0},{1} -> {3},{4}")
+	@CsvSource({
+			"0, 0, 1, 0, 0",
+			"1, 1, 1, 0, 2",
+			"-1, -1, 1, -2, 0",
+			"-3, -3, 1, -4, -2",
+			"5, -6, 2, 4, -4",
+			"7, 7, 3, 0, 8",
+			"-8, -8, 3, -8, -8",
+			"4, 4, 0, 4, 4",
+	})
+	void toZoom(int x, int y, int zoom, int zoomedX, int zoomedY) {
+		assertEquals(new TileCoords(zoomedX, zoomedY), new TileCoords(x, y).toZoom(zoom));
+	}
+	
+}